@@ -0,0 +1,382 @@
+package cs4520.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Runs the server's benchmarks in the manner of JMH: each benchmark is set up once, warmed up for a few
+ * timed iterations whose results are thrown away, then measured for several more, every iteration counting
+ * how many operations its threads complete in a fixed time. Results are written as a JSON array with one
+ * benchmark per line, so a run can be saved and given back as the baseline of a later run, which then
+ * reports how much each benchmark has changed.
+ *
+ * Usage: BenchRunner [--filter=<regex>] [--warmup=<iterations>] [--iterations=<iterations>] [--time=<ms per iteration>]
+ *                    [--out=<results file, stdout if not given>] [--baseline=<results of an earlier run>] [--list]
+ *
+ * The loopback benchmarks start a Server in this JVM, so need the same javax.net.ssl keystore and
+ * truststore properties as the server and client, and are skipped without them.
+ */
+public class BenchRunner {
+	private static volatile long mSink;		// results of every operation folded together, so none can be optimised away
+	
+	private int mWarmup = 3;				// iterations run before measuring
+	private int mIterations = 5;			// iterations measured
+	private long mTime = 1000;				// length of each iteration, in ms
+	private Pattern mFilter;				// only benchmarks whose toString() matches are run, or null for all
+	private PrintStream mProgress = System.err;	// where progress and the human readable summary go
+	
+	/**
+	 * Builds every benchmark in the suite, in the order they are run
+	 * @return The benchmarks
+	 */
+	public static List<Benchmark> suite()
+	{
+		List<Benchmark> suite = new ArrayList<Benchmark>();
+		
+		suite.add(new HashBench(HashBench.Operation.Generate));
+		suite.add(new HashBench(HashBench.Operation.Check));
+		suite.add(new ParseBench(ParseBench.Message.Ack));
+		suite.add(new ParseBench(ParseBench.Message.Listing));
+		suite.add(new ValidateLoginBench().threads(1));
+		suite.add(new ValidateLoginBench().threads(4));
+		suite.add(new UserDataBench(1000));
+		suite.add(new UserDataBench(100000));
+		suite.add(new UserDataBench(1000000));
+		suite.add(new SecretBench().threads(1));
+		suite.add(new SecretBench().threads(4));
+		for(String mode : new String[] { "blocking", "nio" })
+		{
+			suite.add(new LoopbackBench(mode, LoopbackBench.Operation.Login));
+			suite.add(new LoopbackBench(mode, LoopbackBench.Operation.Query));
+		}
+		
+		return suite;
+	}
+	
+	/**
+	 * Runs every benchmark that matches the filter
+	 * @param _benchmarks The benchmarks to choose from
+	 * @param _out Where to write the results
+	 * @param _baseline Scores of an earlier run by benchmark, or null
+	 * @throws IOException If the results cannot be written
+	 */
+	public void run(List<Benchmark> _benchmarks, Writer _out, Map<String, Double> _baseline) throws IOException
+	{
+		_out.write("[\n");
+		boolean first = true;
+		
+		for(Benchmark benchmark : _benchmarks)
+		{
+			if(mFilter != null && !mFilter.matcher(benchmark.toString()).find())
+				continue;
+			
+			Result result = measure(benchmark);
+			if(result == null)
+				continue;
+			
+			_out.write(first ? "  " : ",\n  ");
+			_out.write(result.toJson());
+			_out.flush();
+			first = false;
+			
+			Double before = _baseline == null ? null : _baseline.get(result.key());
+			mProgress.println(result.summary() + (before == null ? "" : String.format(Locale.ROOT, " (%+.1f%% vs baseline)", 100 * (result.mScore / before - 1))));
+		}
+		
+		_out.write("\n]\n");
+		_out.flush();
+	}
+	
+	/**
+	 * Sets up, warms up, measures and tears down one benchmark
+	 * @param _benchmark The benchmark
+	 * @return Its result, or null if it could not be set up
+	 */
+	private Result measure(Benchmark _benchmark)
+	{
+		mProgress.println("# " + _benchmark);
+		
+		try {
+			_benchmark.setUp();
+		} catch (Exception e) {
+			mProgress.println("# skipped, could not set up: " + e);
+			return null;
+		}
+		
+		try {
+			for(int i = 0; i < mWarmup; i++)
+				mProgress.println(String.format(Locale.ROOT, "  warmup %d: %.3f ops/s", i + 1, iteration(_benchmark)));
+			
+			double[] scores = new double[mIterations];
+			for(int i = 0; i < mIterations; i++)
+			{
+				scores[i] = iteration(_benchmark);
+				mProgress.println(String.format(Locale.ROOT, "  iteration %d: %.3f ops/s", i + 1, scores[i]));
+			}
+			
+			return new Result(_benchmark, scores);
+		} catch (Exception e) {
+			mProgress.println("# failed: " + e);
+			return null;
+		} finally {
+			try {
+				_benchmark.tearDown();
+			} catch (Exception e) {
+				mProgress.println("# could not tear down: " + e);
+			}
+		}
+	}
+	
+	/**
+	 * Runs one timed iteration: every thread calls the operation until the time is up, and the operations
+	 * completed are divided by the time taken, including the last operation of each thread
+	 * @param _benchmark The benchmark
+	 * @return The throughput of all threads together, in operations per second
+	 * @throws Exception The first exception thrown by an operation
+	 */
+	private double iteration(final Benchmark _benchmark) throws Exception
+	{
+		final int threads = _benchmark.threadCount();
+		final long[] operations = new long[threads];
+		final Exception[] failures = new Exception[threads];
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicBoolean stop = new AtomicBoolean();
+		Thread[] workers = new Thread[threads];
+		
+		for(int t = 0; t < threads; t++)
+		{
+			final int index = t;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					long sink = 0;
+					long count = 0;
+					
+					try {
+						start.await();
+						while(!stop.get())
+						{
+							sink ^= _benchmark.operation(index);
+							count++;
+						}
+					} catch (Exception e) {
+						failures[index] = e;
+					}
+					
+					operations[index] = count;
+					mSink ^= sink;
+				}
+			}, "bench-" + t);
+			workers[t].start();
+		}
+		
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(mTime);
+		stop.set(true);
+		for(Thread worker : workers)
+			worker.join();
+		long elapsed = System.nanoTime() - begin;
+		
+		long total = 0;
+		for(int t = 0; t < threads; t++)
+		{
+			if(failures[t] != null)
+				throw failures[t];
+			total += operations[t];
+		}
+		
+		return total / (elapsed / 1e9);
+	}
+	
+	/**
+	 * Reads the scores of an earlier run, as written by run()
+	 * @param _file The earlier run's results
+	 * @return The scores by benchmark and parameters
+	 * @throws IOException
+	 */
+	static Map<String, Double> readBaseline(Path _file) throws IOException
+	{
+		Map<String, Double> scores = new HashMap<String, Double>();
+		Pattern line = Pattern.compile("\"benchmark\":\"([^\"]*)\",\"params\":(\\{[^}]*\\}).*\"score\":([-0-9.eE+]+)");
+		
+		for(String text : Files.readAllLines(_file, StandardCharsets.UTF_8))
+		{
+			Matcher matcher = line.matcher(text);
+			if(matcher.find())
+				scores.put(matcher.group(1) + matcher.group(2), Double.parseDouble(matcher.group(3)));
+		}
+		
+		return scores;
+	}
+	
+	public static void main(String[] args) throws IOException
+	{
+		BenchRunner runner = new BenchRunner();
+		String out = null;
+		String baseline = null;
+		boolean list = false;
+		
+		try {
+			for(String arg : args)
+			{
+				String[] parts = arg.split("=", 2);
+				String value = parts.length > 1 ? parts[1] : "";
+				
+				switch(parts[0])
+				{
+				case "--filter":
+					runner.mFilter = Pattern.compile(value);
+					break;
+				case "--warmup":
+					runner.mWarmup = Integer.parseInt(value);
+					break;
+				case "--iterations":
+					runner.mIterations = Integer.parseInt(value);
+					break;
+				case "--time":
+					runner.mTime = Long.parseLong(value);
+					break;
+				case "--out":
+					out = value;
+					break;
+				case "--baseline":
+					baseline = value;
+					break;
+				case "--list":
+					list = true;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option '" + arg + "'");
+				}
+			}
+			
+			if(runner.mWarmup < 0 || runner.mIterations < 1 || runner.mTime < 1)
+				throw new IllegalArgumentException("--iterations and --time must be at least 1");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: BenchRunner [--filter=<regex>] [--warmup=<iterations>] [--iterations=<iterations>] [--time=<ms per iteration>]");
+			System.err.println("                   [--out=<results file, stdout if not given>] [--baseline=<results of an earlier run>] [--list]");
+			return;
+		}
+		
+		List<Benchmark> suite = suite();
+		if(list)
+		{
+			for(Benchmark benchmark : suite)
+				System.out.println(benchmark);
+			return;
+		}
+		
+		Map<String, Double> scores = baseline == null ? null : readBaseline(Paths.get(baseline));
+		Writer writer = out == null ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8) : Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8);
+		
+		try {
+			runner.run(suite, writer, scores);
+		} finally {
+			if(out != null)
+				writer.close();
+		}
+	}
+	
+	/**
+	 * The measured throughput of one benchmark
+	 */
+	private static class Result {
+		private Benchmark mBenchmark;	// the benchmark measured
+		private double[] mScores;		// throughput of each measured iteration, in ops/s
+		private double mScore;			// mean throughput
+		private double mStdev;			// standard deviation of the iterations' throughput
+		
+		/**
+		 * Constructor for Result
+		 * @param _benchmark The benchmark measured
+		 * @param _scores The throughput of each measured iteration
+		 */
+		Result(Benchmark _benchmark, double[] _scores)
+		{
+			mBenchmark = _benchmark;
+			mScores = _scores;
+			
+			double sum = 0;
+			for(double score : _scores)
+				sum += score;
+			mScore = sum / _scores.length;
+			
+			double squares = 0;
+			for(double score : _scores)
+				squares += (score - mScore) * (score - mScore);
+			mStdev = _scores.length > 1 ? Math.sqrt(squares / (_scores.length - 1)) : 0;
+		}
+		
+		/**
+		 * Getter for the key the result is compared with a baseline by
+		 * @return The benchmark's name and parameters as they appear in the JSON
+		 */
+		String key()
+		{
+			return mBenchmark.name() + params();
+		}
+		
+		/**
+		 * Formats the result as a single line JSON object
+		 * @return The JSON
+		 */
+		String toJson()
+		{
+			StringBuilder json = new StringBuilder();
+			json.append("{\"benchmark\":\"").append(mBenchmark.name()).append("\",\"params\":").append(params());
+			json.append(",\"mode\":\"thrpt\",\"threads\":").append(mBenchmark.threadCount());
+			json.append(",\"score\":").append(number(mScore));
+			json.append(",\"scoreStdev\":").append(number(mStdev));
+			json.append(",\"scoreUnit\":\"ops/s\"");
+			json.append(",\"nsPerOp\":").append(number(mScore == 0 ? 0 : mBenchmark.threadCount() * 1e9 / mScore));
+			json.append(",\"iterations\":[");
+			for(int i = 0; i < mScores.length; i++)
+				json.append(i == 0 ? "" : ",").append(number(mScores[i]));
+			json.append("]}");
+			return json.toString();
+		}
+		
+		/**
+		 * Formats the result for people
+		 * @return A one line summary
+		 */
+		String summary()
+		{
+			return String.format(Locale.ROOT, "%-60s %14.3f +/- %.3f ops/s", mBenchmark.toString(), mScore, mStdev);
+		}
+		
+		/**
+		 * Helper method to format the benchmark's parameters as a JSON object
+		 * @return The JSON
+		 */
+		private String params()
+		{
+			StringBuilder json = new StringBuilder("{");
+			for(Map.Entry<String, String> param : mBenchmark.params().entrySet())
+			{
+				if(json.length() > 1)
+					json.append(',');
+				json.append('"').append(param.getKey()).append("\":\"").append(param.getValue()).append('"');
+			}
+			return json.append('}').toString();
+		}
+		
+		/**
+		 * Helper method to format a number for JSON, which has no way to write infinity or NaN
+		 * @param _value The number
+		 * @return The number with three decimal places
+		 */
+		private static String number(double _value)
+		{
+			return Double.isFinite(_value) ? String.format(Locale.ROOT, "%.3f", _value) : "0";
+		}
+	}
+}
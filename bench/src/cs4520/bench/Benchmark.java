@@ -0,0 +1,108 @@
+package cs4520.bench;
+
+import java.util.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * One benchmark, measured by the BenchRunner as the throughput of repeated calls to operation(). A
+ * benchmark names itself and the parameters it was created with, so results of differently configured
+ * instances of the same class can be told apart and compared between runs.
+ */
+public abstract class Benchmark {
+	private String mName;				// the benchmark's name, "Class.operation" by convention
+	private Map<String, String> mParams = new LinkedHashMap<String, String>();	// the parameters the benchmark was created with
+	private int mThreads = 1;			// number of threads calling operation() at once
+	
+	/**
+	 * Constructor for Benchmark
+	 * @param _name The benchmark's name
+	 */
+	protected Benchmark(String _name)
+	{
+		mName = _name;
+	}
+	
+	/**
+	 * Records a parameter of this benchmark, for reporting
+	 * @param _name The parameter's name
+	 * @param _value The parameter's value
+	 * @return This benchmark, for chaining
+	 */
+	protected Benchmark param(String _name, Object _value)
+	{
+		mParams.put(_name, String.valueOf(_value));
+		return this;
+	}
+	
+	/**
+	 * Sets the number of threads that call operation() at once, each with its own thread index
+	 * @param _threads The number of threads
+	 * @return This benchmark, for chaining
+	 */
+	public Benchmark threads(int _threads)
+	{
+		mThreads = _threads;
+		param("threads", _threads);
+		return this;
+	}
+	
+	/**
+	 * Called once before the benchmark is warmed up, outside of any measurement
+	 * @throws Exception
+	 */
+	public void setUp() throws Exception
+	{
+	}
+	
+	/**
+	 * Called once after the benchmark has been measured
+	 * @throws Exception
+	 */
+	public void tearDown() throws Exception
+	{
+	}
+	
+	/**
+	 * Performs the operation being measured once
+	 * @param _thread The index of the calling thread, from 0 to threads() - 1
+	 * @return Any value derived from the operation's result, consumed by the runner so the JIT cannot drop the work
+	 * @throws Exception
+	 */
+	public abstract long operation(int _thread) throws Exception;
+	
+	/**
+	 * Getter for the benchmark's name
+	 * @return The name
+	 */
+	public String name()
+	{
+		return mName;
+	}
+	
+	/**
+	 * Getter for the parameters the benchmark was created with
+	 * @return The parameters by name
+	 */
+	public Map<String, String> params()
+	{
+		return mParams;
+	}
+	
+	/**
+	 * Getter for the number of threads that call operation() at once
+	 * @return The number of threads
+	 */
+	public int threadCount()
+	{
+		return mThreads;
+	}
+	
+	/**
+	 * Returns the benchmark's name and parameters, as it is identified in results
+	 */
+	public String toString()
+	{
+		return mParams.isEmpty() ? mName : mName + mParams;
+	}
+}
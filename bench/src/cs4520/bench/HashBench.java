@@ -0,0 +1,43 @@
+package cs4520.bench;
+
+import cs4520.server.UserSecret;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Benchmark of key derivation, which dominates the cost of a login: deriving a new user's hash from their
+ * secret with a fresh salt, and checking a secret against a stored hash.
+ */
+public class HashBench extends Benchmark {
+	public enum Operation
+	{
+		Generate,		// new UserSecret(secret), which salts and hashes the secret
+		Check			// UserSecret.checkSecret with the correct secret
+	}
+	
+	private Operation mOperation;	// which of the two is measured
+	private UserSecret mSecret;		// the stored secret that is checked against
+	
+	/**
+	 * Constructor for HashBench
+	 * @param _operation Which operation to measure
+	 */
+	public HashBench(Operation _operation)
+	{
+		super(_operation == Operation.Generate ? "HashBench.generateHash" : "HashBench.checkSecret");
+		mOperation = _operation;
+	}
+	
+	public void setUp()
+	{
+		mSecret = new UserSecret("canyoutellwhatitisyet");
+	}
+	
+	public long operation(int _thread)
+	{
+		if(mOperation == Operation.Generate)
+			return new UserSecret("canyoutellwhatitisyet").hash()[0];
+		
+		return mSecret.checkSecret("canyoutellwhatitisyet") ? 1 : 0;
+	}
+}
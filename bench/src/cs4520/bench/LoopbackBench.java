@@ -0,0 +1,121 @@
+package cs4520.bench;
+
+import java.io.IOException;
+import java.net.*;
+
+import cs4520.client.*;
+import cs4520.server.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * End to end benchmark against a Server started in this JVM and reached over the loopback interface:
+ * either a whole session (connect, TLS handshake, login, a fact query and close) or a single query's round
+ * trip over a session that stays open. The server logs only errors so its output does not get in the way.
+ */
+public class LoopbackBench extends Benchmark {
+	public enum Operation
+	{
+		Login,			// a new connection and login for every query
+		Query			// a query over an open session
+	}
+	
+	private String mMode;				// the server core, "blocking" or "nio"
+	private Operation mOperation;		// what each operation does
+	private int mPort;					// the port the server listens on
+	private Server mServer;				// the server, stopped once the benchmark is over
+	private Session[] mSessions;		// each thread's open session, for Query
+	
+	/**
+	 * Constructor for LoopbackBench
+	 * @param _mode The server core to run, "blocking" or "nio"
+	 * @param _operation What each operation does
+	 */
+	public LoopbackBench(String _mode, Operation _operation)
+	{
+		super(_operation == Operation.Login ? "LoopbackBench.loginAndQuery" : "LoopbackBench.query");
+		param("mode", _mode);
+		mMode = _mode;
+		mOperation = _operation;
+	}
+	
+	public void setUp() throws Exception
+	{
+		if(System.getProperty("javax.net.ssl.keyStore") == null || System.getProperty("javax.net.ssl.trustStore") == null)
+			throw new IllegalStateException("the javax.net.ssl keyStore and trustStore properties are not set");
+		
+		try (ServerSocket probe = new ServerSocket(0)) {
+			mPort = probe.getLocalPort();
+		}
+		
+		// the server is listening with its users added once constructed, the first session just warms it up
+		ServerOptions options = ServerOptions.parse(new String[] { "--port=" + mPort, "--mode=" + mMode, "--log-level=error", "--login-rate=0" }, mPort);
+		mServer = new Server(options);
+		Thread server = new Thread(mServer, "bench-server-" + mMode);
+		server.setDaemon(true);
+		server.start();
+		loginAndQuery();
+		
+		mSessions = new Session[threadCount()];
+	}
+	
+	public void tearDown() throws Exception
+	{
+		if(mSessions != null)
+		{
+			for(Session session : mSessions)
+			{
+				if(session != null)
+					session.close();
+			}
+		}
+		
+		// with every session closed the server drains at once, and its threads stop before the next benchmark
+		if(mServer != null)
+			mServer.close();
+		mServer = null;
+		mSessions = null;
+	}
+	
+	public long operation(int _thread) throws Exception
+	{
+		if(mOperation == Operation.Login)
+			return loginAndQuery();
+		
+		if(mSessions[_thread] == null)
+			mSessions[_thread] = open();
+		return mSessions[_thread].query("fact").length();
+	}
+	
+	/**
+	 * Helper method to run a whole session
+	 * @return The length of the query's answer
+	 * @throws IOException
+	 */
+	private long loginAndQuery() throws IOException
+	{
+		Session session = open();
+		try {
+			return session.query("fact").length();
+		} finally {
+			session.close();
+		}
+	}
+	
+	/**
+	 * Helper method to connect and log in
+	 * @return The open session
+	 * @throws IOException If the connection or login fails
+	 */
+	private Session open() throws IOException
+	{
+		Session session = new Client("localhost", mPort).openSession("rolfharris", "canyoutellwhatitisyet");
+		
+		if(!session.isValid())
+		{
+			session.close();
+			throw new IOException("login failed: " + session.login().response());
+		}
+		return session;
+	}
+}
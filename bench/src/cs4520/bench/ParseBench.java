@@ -0,0 +1,53 @@
+package cs4520.bench;
+
+import cs4520.client.ServerMessage;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Benchmark of parsing the server's messages on the client, reusing one ServerMessage as a connection does:
+ * a short Ack such as a secret query's answer, and a full part of a users listing.
+ */
+public class ParseBench extends Benchmark {
+	public enum Message
+	{
+		Ack,			// "ack:secret=<20 hex digits>"
+		Listing			// a users listing part of 32 "username|HASH" entries
+	}
+	
+	private String mText;				// the message parsed by every operation
+	private ServerMessage mMessage = new ServerMessage();	// the reused flyweight
+	
+	/**
+	 * Constructor for ParseBench
+	 * @param _message Which message to parse
+	 */
+	public ParseBench(Message _message)
+	{
+		super("ParseBench.parse");
+		param("message", _message.toString().toLowerCase());
+		
+		if(_message == Message.Ack)
+		{
+			mText = "ack:secret=0CA605AA410912D5AC32";
+		}
+		else
+		{
+			StringBuilder text = new StringBuilder("part:users=");
+			for(int i = 0; i < 32; i++)
+			{
+				if(i > 0)
+					text.append(',');
+				text.append("user").append(i).append("|5F4DCC3B5AA765D61D8327DEB882CF995F4DCC3B5AA765D61D8327DEB882CF99");
+			}
+			text.append(";version=1");
+			mText = text.toString();
+		}
+	}
+	
+	public long operation(int _thread)
+	{
+		ServerMessage message = mMessage.parse(mText);
+		return message.parameterCount() + message.value(0).length();
+	}
+}
@@ -0,0 +1,32 @@
+package cs4520.bench;
+
+import cs4520.server.SecretGenerator;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Benchmark of taking the secret served by a secret query, which is what Protocol.getSecretData does.
+ * With several threads the consumers contend for the ring, and once they outpace the producer the
+ * secrets are generated inline, so the result shows the rate the pipeline can sustain.
+ */
+public class SecretBench extends Benchmark {
+	private SecretGenerator mSecrets;	// the generator being drained
+	
+	/**
+	 * Constructor for SecretBench, use threads() to set the number of consumers
+	 */
+	public SecretBench()
+	{
+		super("SecretBench.getSecretData");
+	}
+	
+	public void setUp()
+	{
+		mSecrets = new SecretGenerator(4096);
+	}
+	
+	public long operation(int _thread)
+	{
+		return mSecrets.next().charAt(0);
+	}
+}
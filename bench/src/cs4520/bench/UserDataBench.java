@@ -0,0 +1,50 @@
+package cs4520.bench;
+
+import cs4520.server.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Benchmark of UserManager.getUserData, which lists every user, with a given number of users. The users
+ * are written straight into an in-memory store with one precomputed hash, as deriving a key for each of a
+ * million users would take far longer than the benchmark itself.
+ */
+public class UserDataBench extends Benchmark {
+	private int mCount;				// number of users listed
+	private UserStore mStore;		// the users
+	private UserManager mUsers;		// the manager listing them
+	
+	/**
+	 * Constructor for UserDataBench
+	 * @param _count The number of users to list
+	 */
+	public UserDataBench(int _count)
+	{
+		super("UserDataBench.getUserData");
+		param("users", _count);
+		mCount = _count;
+	}
+	
+	public void setUp() throws Exception
+	{
+		UserSecret secret = new UserSecret("meow");
+		
+		mStore = UserStore.inMemory();
+		for(int i = 0; i < mCount; i++)
+			mStore.append("user" + i, secret.salt(), secret.hash(), User.Level.Guest);
+		
+		mUsers = new UserManager(1, 1, 60000, mStore);
+	}
+	
+	public void tearDown() throws Exception
+	{
+		mStore.close();
+		mUsers = null;
+		mStore = null;
+	}
+	
+	public long operation(int _thread)
+	{
+		return mUsers.getUserData().length();
+	}
+}
@@ -0,0 +1,32 @@
+package cs4520.bench;
+
+import cs4520.server.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Benchmark of UserManager.validateLogin with every thread logging in as the same user at once, so the
+ * threads contend for the user's record and lockout state as a burst of logins to one account would.
+ */
+public class ValidateLoginBench extends Benchmark {
+	private UserManager mUsers;		// holds the one user logged in as
+	
+	/**
+	 * Constructor for ValidateLoginBench, use threads() to set the contention
+	 */
+	public ValidateLoginBench()
+	{
+		super("ValidateLoginBench.validateLogin");
+	}
+	
+	public void setUp()
+	{
+		mUsers = new UserManager(1, 1, 60000);
+		mUsers.addUser("rolfharris", "canyoutellwhatitisyet", User.Level.User);
+	}
+	
+	public long operation(int _thread)
+	{
+		return mUsers.validateLogin("rolfharris", "canyoutellwhatitisyet").ordinal();
+	}
+}
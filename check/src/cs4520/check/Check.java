@@ -0,0 +1,72 @@
+package cs4520.check;
+
+/**
+ * @author Oliver Maskery
+ *
+ * One check of a guarantee the server makes, run by the CheckRunner. A check passes by returning from run()
+ * and fails by throwing, normally through expect(), so a failure says which expectation was not met.
+ */
+public abstract class Check {
+	private String mName;				// the check's name, "Class.guarantee" by convention
+	
+	/**
+	 * Constructor for Check
+	 * @param _name The check's name
+	 */
+	protected Check(String _name)
+	{
+		mName = _name;
+	}
+	
+	/**
+	 * Runs the check
+	 * @throws Exception If the guarantee does not hold, or the check could not be run
+	 */
+	public abstract void run() throws Exception;
+	
+	/**
+	 * Fails the check unless a condition holds
+	 * @param _condition The condition expected to hold
+	 * @param _message What was expected, reported should the condition not hold
+	 * @throws CheckFailed If the condition does not hold
+	 */
+	protected static void expect(boolean _condition, String _message)
+	{
+		if(!_condition)
+			throw new CheckFailed(_message);
+	}
+	
+	/**
+	 * Getter for the check's name
+	 * @return The name
+	 */
+	public String name()
+	{
+		return mName;
+	}
+	
+	/**
+	 * Returns the check's name, as it is identified in results
+	 */
+	public String toString()
+	{
+		return mName;
+	}
+	
+	/**
+	 * Exception thrown when an expectation of a check is not met
+	 */
+	public static class CheckFailed extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Constructor for CheckFailed
+		 * @param _message What was expected
+		 */
+		public CheckFailed(String _message)
+		{
+			super(_message);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package cs4520.check;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Runs the server's checks one after another, printing whether each passed and exiting with a non-zero
+ * status if any failed, so a run can gate a build or be repeated to shake out rare interleavings.
+ *
+ * Usage: CheckRunner [--filter=<regex>] [--repeat=<runs of each check>] [--list]
+ */
+public class CheckRunner {
+	private Pattern mFilter;			// only checks whose name matches are run, or null for all
+	private int mRepeat = 1;			// times each check is run
+	
+	/**
+	 * Builds every check in the suite, in the order they are run
+	 * @return The checks
+	 */
+	public static List<Check> suite()
+	{
+		List<Check> suite = new ArrayList<Check>();
+		
+		suite.add(new TimerWheelCheck(TimerWheelCheck.Guarantee.Expiry));
+		suite.add(new TimerWheelCheck(TimerWheelCheck.Guarantee.Cancellation));
+		suite.add(new TimerWheelCheck(TimerWheelCheck.Guarantee.FailingTask));
+		suite.add(new LockoutCheck(LockoutCheck.Held.Memory));
+		suite.add(new LockoutCheck(LockoutCheck.Held.Store));
+		
+		return suite;
+	}
+	
+	/**
+	 * Runs every check that matches the filter
+	 * @param _checks The checks to choose from
+	 * @return The number of checks that failed
+	 */
+	public int run(List<Check> _checks)
+	{
+		int failed = 0;
+		
+		for(Check check : _checks)
+		{
+			if(mFilter != null && !mFilter.matcher(check.name()).find())
+				continue;
+			
+			for(int i = 0; i < mRepeat; i++)
+			{
+				long start = System.nanoTime();
+				String outcome;
+				
+				try {
+					check.run();
+					outcome = "PASS";
+				} catch (Check.CheckFailed e) {
+					outcome = "FAIL " + e.getMessage();
+					failed++;
+				} catch (Exception e) {
+					outcome = "FAIL " + e;
+					failed++;
+				}
+				
+				System.out.println(String.format(Locale.ROOT, "%-50s %8.1f ms  %s", check, (System.nanoTime() - start) / 1e6, outcome));
+			}
+		}
+		
+		return failed;
+	}
+	
+	public static void main(String[] args)
+	{
+		CheckRunner runner = new CheckRunner();
+		boolean list = false;
+		
+		try {
+			for(String arg : args)
+			{
+				String[] parts = arg.split("=", 2);
+				String value = parts.length > 1 ? parts[1] : "";
+				
+				switch(parts[0])
+				{
+				case "--filter":
+					runner.mFilter = Pattern.compile(value);
+					break;
+				case "--repeat":
+					runner.mRepeat = Integer.parseInt(value);
+					break;
+				case "--list":
+					list = true;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option '" + arg + "'");
+				}
+			}
+			
+			if(runner.mRepeat < 1)
+				throw new IllegalArgumentException("--repeat must be at least 1");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: CheckRunner [--filter=<regex>] [--repeat=<runs of each check>] [--list]");
+			System.exit(2);
+		}
+		
+		List<Check> suite = suite();
+		if(list)
+		{
+			for(Check check : suite)
+				System.out.println(check);
+			return;
+		}
+		
+		int failed = runner.run(suite);
+		System.out.println(failed == 0 ? "all checks passed" : failed + " failed");
+		
+		// the server's timer and hashing threads are daemons, but a failed check may have left others behind
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,167 @@
+package cs4520.check;
+
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs4520.server.User;
+import cs4520.server.UserStore;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Stress checks of a user's lockout, with many threads recording failed logins against one user at once.
+ * Exactly User.MaxLoginAttempts failures must be counted and lock the user, whatever the interleaving, so
+ * a failure that is lost or counted twice is caught, as is a lock taken too early or too late.
+ */
+public class LockoutCheck extends Check {
+	public enum Held
+	{
+		Memory,			// the user's state is held in the User itself
+		Store			// the user's state is held in its record in a UserStore file, each thread with its own User
+	}
+	
+	private static final int Threads = 8;			// threads failing logins at once
+	private static final int Failures = 50;			// failed logins recorded by each thread in a round
+	private static final int Rounds = 200;			// rounds run, the user being unlocked after each
+	
+	private Held mHeld;			// where the user's state is held
+	
+	/**
+	 * Constructor for LockoutCheck
+	 * @param _held Where the user's state is held
+	 */
+	public LockoutCheck(Held _held)
+	{
+		super("LockoutCheck." + _held.toString().toLowerCase());
+		mHeld = _held;
+	}
+	
+	public void run() throws Exception
+	{
+		Path dir = null;
+		UserStore store = null;
+		User[] users = new User[Threads];
+		
+		try {
+			if(mHeld == Held.Memory)
+			{
+				User user = new User("stress", null, User.Level.User);
+				for(int i = 0; i < Threads; i++)
+					users[i] = user;
+			}
+			else
+			{
+				dir = Files.createTempDirectory("lockout-check");
+				store = UserStore.open(dir.resolve("users.db"));
+				int slot = store.append("stress", new byte[16], new byte[32], User.Level.User);
+				for(int i = 0; i < Threads; i++)
+					users[i] = new User(store, slot);
+			}
+			
+			ExecutorService pool = Executors.newFixedThreadPool(Threads);
+			try {
+				checkShort(users, pool);
+				for(int round = 1; round <= Rounds; round++)
+					checkRound(users, pool, round);
+			} finally {
+				pool.shutdownNow();
+			}
+		} finally {
+			if(store != null)
+				store.close();
+			if(dir != null)
+			{
+				Files.deleteIfExists(dir.resolve("users.db.idx"));
+				Files.deleteIfExists(dir.resolve("users.db"));
+				Files.deleteIfExists(dir);
+			}
+		}
+	}
+	
+	/**
+	 * Records one fewer failure than locks the user, one from each of as many threads at once, and checks
+	 * every one was counted and the user is still unlocked
+	 * @param _users The views of the user, one for each thread
+	 * @param _pool The threads
+	 * @throws Exception If the guarantee does not hold, or a thread failed
+	 */
+	private void checkShort(User[] _users, ExecutorService _pool) throws Exception
+	{
+		int below = User.MaxLoginAttempts - 1;
+		int counted = fail(_users, _pool, below, 1, 1);
+		
+		expect(counted == below, below + " failures at once were all counted, " + counted + " were");
+		expect(_users[0].attempts() == below, "attempts() reads " + below + ", it read " + _users[0].attempts());
+		expect(!_users[0].isLocked(), "the user is not locked after " + below + " failures");
+		
+		// fail once more to lock, then lift the lock so the rounds start from nothing
+		expect(_users[0].incrementAttempts(1), "the last failure before the lock was counted");
+		expect(_users[0].isLocked() && _users[0].lockedAt() == 1, "the user was locked by the last failure");
+		expect(_users[0].unlock(1), "the lock was lifted");
+	}
+	
+	/**
+	 * Records many failures from every thread at once and checks exactly MaxLoginAttempts were counted and
+	 * locked the user, then lifts the lock and checks the count starts again
+	 * @param _users The views of the user, one for each thread
+	 * @param _pool The threads
+	 * @param _round The round, used as the time the lock begins so each lock is told apart
+	 * @throws Exception If the guarantee does not hold, or a thread failed
+	 */
+	private void checkRound(User[] _users, ExecutorService _pool, int _round) throws Exception
+	{
+		long now = _round + 1;
+		int counted = fail(_users, _pool, Threads, Failures, now);
+		User user = _users[_round % Threads];
+		
+		expect(counted == User.MaxLoginAttempts, "round " + _round + ": exactly " + User.MaxLoginAttempts
+				+ " of " + Threads * Failures + " failures were counted, " + counted + " were");
+		expect(user.attempts() == User.MaxLoginAttempts, "round " + _round + ": attempts() reads "
+				+ User.MaxLoginAttempts + ", it read " + user.attempts());
+		expect(user.isLocked() && user.lockedAt() == now, "round " + _round + ": the user is locked from " + now
+				+ ", lockedAt() read " + user.lockedAt());
+		
+		expect(!user.unlock(now - 1), "round " + _round + ": a different lock cannot lift this one");
+		expect(user.unlock(now), "round " + _round + ": the lock was lifted");
+		expect(!user.isLocked() && user.attempts() == 0, "round " + _round + ": the count starts again once unlocked");
+	}
+	
+	/**
+	 * Records failed logins from many threads released at the same moment
+	 * @param _users The views of the user, one for each thread
+	 * @param _pool The threads
+	 * @param _threads The number of threads that fail logins
+	 * @param _failures The failures each thread records
+	 * @param _now The time (in ms) recorded as the time the lock began
+	 * @return The number of failures that were counted
+	 * @throws Exception If a thread failed
+	 */
+	private static int fail(final User[] _users, ExecutorService _pool, int _threads, final int _failures, final long _now) throws Exception
+	{
+		final CyclicBarrier start = new CyclicBarrier(_threads);
+		final AtomicInteger counted = new AtomicInteger();
+		Future<?>[] done = new Future<?>[_threads];
+		
+		for(int i = 0; i < _threads; i++)
+		{
+			final User user = _users[i];
+			done[i] = _pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					start.await(10, TimeUnit.SECONDS);
+					for(int j = 0; j < _failures; j++)
+					{
+						if(user.incrementAttempts(_now))
+							counted.incrementAndGet();
+					}
+					return null;
+				}
+			});
+		}
+		
+		for(Future<?> future : done)
+			future.get(10, TimeUnit.SECONDS);
+		
+		return counted.get();
+	}
+}
@@ -0,0 +1,53 @@
+package cs4520.check;
+
+import java.util.concurrent.TimeUnit;
+
+import cs4520.server.Clock;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Clock that only moves when told to, so whatever a TimerWheel built on it expires can be checked at
+ * exactly the moments of interest, and hours of timers run through in moments
+ */
+public class ManualClock implements Clock {
+	private volatile long mNanos;		// the current time in ns
+	private final long mEpoch;			// the wall clock time (in ms) the clock started at
+	
+	/**
+	 * Constructor for ManualClock
+	 * @param _epoch The wall clock time (in ms) the clock reads before it is first moved
+	 */
+	public ManualClock(long _epoch)
+	{
+		mEpoch = _epoch;
+	}
+	
+	public long nanoTime()
+	{
+		return mNanos;
+	}
+	
+	public long millis()
+	{
+		return mEpoch + TimeUnit.NANOSECONDS.toMillis(mNanos);
+	}
+	
+	/**
+	 * Moves the clock on
+	 * @param _nanos How far (in ns) to move it
+	 */
+	public void advance(long _nanos)
+	{
+		mNanos += _nanos;
+	}
+	
+	/**
+	 * Moves the clock to a time
+	 * @param _nanos The time (in ns), which must not be earlier than the current time
+	 */
+	public void set(long _nanos)
+	{
+		mNanos = _nanos;
+	}
+}
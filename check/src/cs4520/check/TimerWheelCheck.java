@@ -0,0 +1,244 @@
+package cs4520.check;
+
+import java.util.*;
+
+import cs4520.server.TimerWheel;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Checks of the TimerWheel driven by a ManualClock, with timers spread across all four levels so that they
+ * cascade down the wheel before expiring. The clock is stopped at every timer's deadline in turn, so a timer
+ * that runs even one tick early or late, or twice, is caught.
+ */
+public class TimerWheelCheck extends Check {
+	public enum Guarantee
+	{
+		Expiry,			// every timer runs once, exactly at the tick it is due, whichever level it started on
+		Cancellation,	// a cancelled timer never runs, whether cancelled before or after it reached the wheel
+		FailingTask		// a task that throws is counted and does not stop the others due at the same tick
+	}
+	
+	private static final long Tick = 1000000;		// 1ms ticks, so a delay in ms is a delay in ticks
+	private static final int Timers = 20000;		// timers scheduled in each batch
+	private static final int[] LevelStarts = { 1, 1 << 8, 1 << 16, 1 << 24, 1 << 25 };	// delays (in ticks) that start on each level
+	
+	private Guarantee mGuarantee;	// which guarantee is checked
+	
+	/**
+	 * Constructor for TimerWheelCheck
+	 * @param _guarantee Which guarantee to check
+	 */
+	public TimerWheelCheck(Guarantee _guarantee)
+	{
+		super("TimerWheelCheck." + _guarantee.toString().substring(0, 1).toLowerCase() + _guarantee.toString().substring(1));
+		mGuarantee = _guarantee;
+	}
+	
+	public void run()
+	{
+		switch(mGuarantee)
+		{
+		case Expiry:
+			checkExpiry();
+			break;
+		case Cancellation:
+			checkCancellation();
+			break;
+		default:
+			checkFailingTask();
+			break;
+		}
+	}
+	
+	/**
+	 * Schedules one batch at the start and another part way through, once the wheel's position is no longer
+	 * aligned with any level, and checks each timer ran at its deadline
+	 */
+	private void checkExpiry()
+	{
+		ManualClock clock = new ManualClock(0);
+		TimerWheel wheel = new TimerWheel(clock, Tick);
+		Random random = new Random(4520);
+		Batch first = new Batch(clock, Timers);
+		Batch second = new Batch(clock, Timers);
+		TreeSet<Long> stops = new TreeSet<Long>();
+		
+		first.schedule(wheel, random, 0, stops);
+		long midway = (1 << 16) + 4467;
+		stops.add(midway);
+		
+		while(!stops.isEmpty())
+		{
+			long stop = stops.pollFirst();
+			clock.set(stop * Tick);
+			wheel.advance();
+			
+			if(stop == midway)
+				second.schedule(wheel, random, midway, stops);
+		}
+		
+		first.expectRun(null);
+		second.expectRun(null);
+		expect(wheel.pending() == 0, "no timers left pending, found " + wheel.pending());
+	}
+	
+	/**
+	 * Cancels a third of the timers before the wheel has placed them and another third once they are waiting
+	 * on every level of the wheel, and checks only the rest ran
+	 */
+	private void checkCancellation()
+	{
+		ManualClock clock = new ManualClock(0);
+		TimerWheel wheel = new TimerWheel(clock, Tick);
+		Random random = new Random(4521);
+		Batch batch = new Batch(clock, Timers);
+		TreeSet<Long> stops = new TreeSet<Long>();
+		boolean[] cancelled = new boolean[Timers];
+		
+		batch.schedule(wheel, random, 0, stops);
+		for(int i = 0; i < Timers; i += 3)
+			cancelled[i] = expectCancel(batch.mTimers[i]);
+		
+		// by now the first third have been cancelled before being placed, and the rest are placed
+		long placed = LevelStarts[1] / 2;
+		stops.add(placed);
+		
+		while(!stops.isEmpty())
+		{
+			long stop = stops.pollFirst();
+			clock.set(stop * Tick);
+			wheel.advance();
+			
+			if(stop == placed)
+			{
+				for(int i = 1; i < Timers; i += 3)
+				{
+					if(batch.mDue[i] > placed)
+						cancelled[i] = expectCancel(batch.mTimers[i]);
+				}
+			}
+		}
+		
+		batch.expectRun(cancelled);
+		expect(wheel.pending() == 0, "no timers left pending, found " + wheel.pending());
+		
+		for(int i = 0; i < Timers; i++)
+		{
+			expect(!batch.mTimers[i].cancel(), "a timer that has run or been cancelled cannot be cancelled again");
+			expect(batch.mTimers[i].isCancelled() == cancelled[i] && batch.mTimers[i].isExpired() == !cancelled[i],
+					"timer " + i + " reports whether it was cancelled or run");
+		}
+	}
+	
+	/**
+	 * Schedules three timers for the same tick, the middle one of which throws
+	 */
+	private void checkFailingTask()
+	{
+		ManualClock clock = new ManualClock(0);
+		TimerWheel wheel = new TimerWheel(clock, Tick);
+		final int[] ran = new int[1];
+		Runnable counting = new Runnable() {
+			public void run() {
+				ran[0]++;
+			}
+		};
+		
+		wheel.schedule(counting, 300);
+		wheel.schedule(new Runnable() {
+			public void run() {
+				throw new IllegalStateException("task failed on purpose");
+			}
+		}, 300);
+		wheel.schedule(counting, 300);
+		
+		clock.set(300 * Tick);
+		int run = wheel.advance();
+		
+		expect(ran[0] == 2 && run == 2, "both other tasks due at the tick ran, " + ran[0] + " did");
+		expect(wheel.failed() == 1, "the failing task was counted, failed() was " + wheel.failed());
+		expect(wheel.pending() == 0, "no timers left pending, found " + wheel.pending());
+	}
+	
+	/**
+	 * Helper method to cancel a timer that has not yet run
+	 * @param _timer The timer
+	 * @return True, for recording the timer as cancelled
+	 */
+	private static boolean expectCancel(TimerWheel.Timer _timer)
+	{
+		expect(_timer.cancel(), "a timer that has not run can be cancelled");
+		return true;
+	}
+	
+	/**
+	 * A batch of timers with random deadlines spread evenly across the levels of the wheel, each of which
+	 * records the tick it ran at
+	 */
+	private static class Batch
+	{
+		private ManualClock mClock;			// the clock the timers run by
+		private TimerWheel.Timer[] mTimers;	// the timers
+		private long[] mDue;				// the tick each timer is due at
+		private long[] mRan;				// the tick each timer ran at, or -1 if it has not
+		private int[] mRuns;				// the number of times each timer has run
+		
+		/**
+		 * Constructor for Batch
+		 * @param _clock The clock the timers run by
+		 * @param _timers The number of timers
+		 */
+		private Batch(ManualClock _clock, int _timers)
+		{
+			mClock = _clock;
+			mTimers = new TimerWheel.Timer[_timers];
+			mDue = new long[_timers];
+			mRan = new long[_timers];
+			mRuns = new int[_timers];
+			Arrays.fill(mRan, -1);
+		}
+		
+		/**
+		 * Schedules every timer in the batch, each on a level chosen in turn
+		 * @param _wheel The wheel to schedule on
+		 * @param _random Where the delays come from
+		 * @param _now The current tick
+		 * @param _stops The ticks the clock is stopped at, to which each timer's deadline is added
+		 */
+		private void schedule(TimerWheel _wheel, Random _random, long _now, Set<Long> _stops)
+		{
+			for(int i = 0; i < mTimers.length; i++)
+			{
+				int level = i % (LevelStarts.length - 1);
+				long delay = LevelStarts[level] + _random.nextInt(LevelStarts[level + 1] - LevelStarts[level]);
+				final int index = i;
+				
+				mDue[i] = _now + delay;
+				_stops.add(mDue[i]);
+				mTimers[i] = _wheel.schedule(new Runnable() {
+					public void run() {
+						mRan[index] = mClock.nanoTime() / Tick;
+						mRuns[index]++;
+					}
+				}, delay);
+			}
+		}
+		
+		/**
+		 * Checks each timer ran once at its deadline, or never if it was cancelled
+		 * @param _cancelled Which timers were cancelled, or null if none were
+		 */
+		private void expectRun(boolean[] _cancelled)
+		{
+			for(int i = 0; i < mTimers.length; i++)
+			{
+				if(_cancelled != null && _cancelled[i])
+					expect(mRuns[i] == 0, "cancelled timer " + i + " due at tick " + mDue[i] + " never ran, it ran at " + mRan[i]);
+				else
+					expect(mRuns[i] == 1 && mRan[i] == mDue[i], "timer " + i + " ran once at tick " + mDue[i]
+							+ ", it ran " + mRuns[i] + " times, last at " + mRan[i]);
+			}
+		}
+	}
+}
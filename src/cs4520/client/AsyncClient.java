@@ -0,0 +1,240 @@
+package cs4520.client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.*;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Asynchronous client for the CS4520 server. Logins and queries return a CompletableFuture at once rather than
+ * blocking, and every connection is driven by a small number of selector threads, so a caller can have many
+ * thousands of operations in flight without a thread for each. Each login needs its own connection as the
+ * protocol allows only one per connection, but a session opened with openSession carries any number of
+ * outstanding queries over its single connection.
+ *
+ * Every operation has a timeout, after which its future fails with a TimeoutException, and may be cancelled
+ * through its future. A login that times out or is cancelled closes its connection.
+ *
+ * Futures are completed on the client's own threads, so dependent actions attached without an executor run
+ * there and must not block, or they hold up every connection the thread drives.
+ */
+public class AsyncClient implements Closeable {
+	public static final long DefaultTimeout = 30*1000;	// how long (in ms) an operation waits unless told otherwise
+	
+	private InetSocketAddress mAddress;	// the server's address, resolved once
+	private Client.Encoding mEncoding;	// whether to speak the text protocol or binary frames
+	private SSLContext mContext;		// the SSL context every connection's engine is created from
+	private ClientLoop[] mLoops;		// the threads driving this client's connections
+	private AtomicInteger mNextLoop;	// the loop the next connection is given to, round robin
+	private volatile long mTimeout;		// how long (in ms) an operation waits by default
+	private volatile boolean mClosed;	// set once the client has been closed
+	
+	/**
+	 * Constructor for a client speaking the text protocol from a single thread
+	 * @param _target The target to connect to, either an IP or hostname for the machine running the CS4520 server.
+	 * @param _port The port number the server is listening on
+	 * @throws IOException
+	 */
+	public AsyncClient(String _target, int _port) throws IOException
+	{
+		this(_target, _port, Client.Encoding.Text, 1);
+	}
+	
+	/**
+	 * Constructor
+	 * @param _target The target to connect to, either an IP or hostname for the machine running the CS4520 server.
+	 * @param _port The port number the server is listening on
+	 * @param _encoding Whether to speak the text protocol or binary frames
+	 * @param _threads The number of threads driving connections, one is plenty unless connections are very busy
+	 * @throws IOException
+	 */
+	public AsyncClient(String _target, int _port, Client.Encoding _encoding, int _threads) throws IOException
+	{
+		mAddress = new InetSocketAddress(_target, _port);
+		mEncoding = _encoding;
+		mTimeout = DefaultTimeout;
+		mNextLoop = new AtomicInteger();
+		
+		try {
+			mContext = SSLContext.getDefault();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("no default SSL context", e);
+		}
+		
+		mLoops = new ClientLoop[Math.max(1, _threads)];
+		for(int i = 0; i < mLoops.length; i++)
+		{
+			mLoops[i] = new ClientLoop("async-client-" + i);
+			mLoops[i].start();
+		}
+	}
+	
+	/**
+	 * Sets how long operations wait for the server by default
+	 * @param _timeout The timeout in ms
+	 */
+	public void setTimeout(long _timeout)
+	{
+		mTimeout = _timeout;
+	}
+	
+	/**
+	 * Logs in to the server, performs a single query and disconnects, as Client.login does
+	 * @param _username The username to provide as part of the login credentials
+	 * @param _secret The 'secret' to provide as part of the login credentials
+	 * @param _query The query to perform once logged in
+	 * @return Whether or not the login attempt was successful, and if not, the reason for failure
+	 */
+	public CompletableFuture<LoginResult> login(String _username, String _secret, String _query)
+	{
+		return login(_username, _secret, _query, mTimeout);
+	}
+	
+	/**
+	 * Logs in to the server, performs a single query and disconnects, as Client.login does
+	 * @param _username The username to provide as part of the login credentials
+	 * @param _secret The 'secret' to provide as part of the login credentials
+	 * @param _query The query to perform once logged in
+	 * @param _timeout How long (in ms) the whole operation may take before failing with a TimeoutException
+	 * @return Whether or not the login attempt was successful, and if not, the reason for failure
+	 */
+	public CompletableFuture<LoginResult> login(String _username, String _secret, String _query, long _timeout)
+	{
+		AsyncConnection connection = connect();
+		return completeLogin(connection, connection.login(_username, _secret), _query, _timeout);
+	}
+	
+	/**
+	 * Logs in to the server with a session token from an earlier successful login, performs a single query and disconnects
+	 * @param _token The token returned by an earlier login (see LoginResult.token())
+	 * @param _query The query to perform once logged in
+	 * @return Whether or not the login attempt was successful, and if not, the reason for failure
+	 */
+	public CompletableFuture<LoginResult> loginWithToken(String _token, String _query)
+	{
+		AsyncConnection connection = connect();
+		return completeLogin(connection, connection.loginWithToken(_token), _query, mTimeout);
+	}
+	
+	/**
+	 * Opens a session on the server, logging in once and then serving any number of queries over one
+	 * connection until the session is closed
+	 * @param _username The username to provide as part of the login credentials
+	 * @param _secret The 'secret' to provide as part of the login credentials
+	 * @return The session, check AsyncSession.login() to see whether the login attempt was successful
+	 */
+	public CompletableFuture<AsyncSession> openSession(String _username, String _secret)
+	{
+		return openSession(_username, _secret, mTimeout);
+	}
+	
+	/**
+	 * Opens a session on the server, logging in once and then serving any number of queries over one
+	 * connection until the session is closed
+	 * @param _username The username to provide as part of the login credentials
+	 * @param _secret The 'secret' to provide as part of the login credentials
+	 * @param _timeout How long (in ms) the login may take before failing with a TimeoutException
+	 * @return The session, check AsyncSession.login() to see whether the login attempt was successful
+	 */
+	public CompletableFuture<AsyncSession> openSession(String _username, String _secret, long _timeout)
+	{
+		final AsyncConnection connection = connect();
+		final long timeout = mTimeout;
+		
+		CompletableFuture<AsyncSession> session = connection.login(_username, _secret).thenApply(new Function<LoginResult, AsyncSession>() {
+			public AsyncSession apply(LoginResult _login) {
+				if(_login.response() != LoginResult.Response.ValidCredentials)
+					connection.close();
+				return new AsyncSession(connection, _login, timeout);
+			}
+		});
+		
+		return closeOnFailure(connection, session, _timeout);
+	}
+	
+	/**
+	 * Closes every connection, failing any operations still in flight
+	 */
+	public void close()
+	{
+		mClosed = true;
+		for(ClientLoop loop : mLoops)
+			loop.shutdown();
+	}
+	
+	/**
+	 * Helper method to start a new connection on the next loop
+	 * @return The connection, requests may be made on it straight away
+	 * @throws IllegalStateException If the client has been closed
+	 */
+	private AsyncConnection connect()
+	{
+		if(mClosed)
+			throw new IllegalStateException("client is closed");
+		
+		ClientLoop loop = mLoops[Math.floorMod(mNextLoop.getAndIncrement(), mLoops.length)];
+		AsyncConnection connection = new AsyncConnection(loop, mContext.createSSLEngine(mAddress.getHostString(), mAddress.getPort()), mEncoding);
+		connection.connect(mAddress);
+		return connection;
+	}
+	
+	/**
+	 * Helper method that performs a single query once the login succeeds and then disconnects
+	 * @param _connection The connection the login was sent over
+	 * @param _login The result of the login
+	 * @param _query The query to perform once logged in
+	 * @param _timeout How long (in ms) the whole operation may take
+	 * @return The login result, including the query's result if the login succeeded
+	 */
+	private CompletableFuture<LoginResult> completeLogin(final AsyncConnection _connection, CompletableFuture<LoginResult> _login,
+			final String _query, long _timeout)
+	{
+		CompletableFuture<LoginResult> result = _login.thenCompose(new Function<LoginResult, CompletionStage<LoginResult>>() {
+			public CompletionStage<LoginResult> apply(final LoginResult _result) {
+				if(_result.response() != LoginResult.Response.ValidCredentials)
+					return CompletableFuture.completedFuture(_result);
+				
+				return _connection.query(_query).thenApply(new Function<String, LoginResult>() {
+					public LoginResult apply(String _queryResult) {
+						return new LoginResult(_result.response(), _queryResult, _result.level(), _result.token());
+					}
+				});
+			}
+		});
+		
+		// the connection is finished with once the query is answered, just as Client.login disconnects
+		result.thenRun(new Runnable() {
+			public void run() {
+				_connection.close();
+			}
+		});
+		
+		return closeOnFailure(_connection, result, _timeout);
+	}
+	
+	/**
+	 * Helper method to give an operation its timeout and abandon its connection if it fails, times out or is cancelled
+	 * @param _connection The connection the operation uses
+	 * @param _operation The operation's future
+	 * @param _timeout How long (in ms) the operation may take
+	 * @return The operation's future
+	 */
+	private static <T> CompletableFuture<T> closeOnFailure(final AsyncConnection _connection, CompletableFuture<T> _operation, long _timeout)
+	{
+		_operation.orTimeout(_timeout, TimeUnit.MILLISECONDS);
+		_operation.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T _result, Throwable _error) {
+				if(_error != null)
+					_connection.abort(_error);
+			}
+		});
+		
+		return _operation;
+	}
+}
@@ -0,0 +1,680 @@
+package cs4520.client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+import javax.net.ssl.*;
+
+import cs4520.protocol.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * One connection of an AsyncClient, drives an SSLEngine over a non-blocking SocketChannel from a ClientLoop.
+ * Requests may be made from any thread and are sent as soon as the connection allows, without waiting for
+ * earlier responses. The server answers in order, so each response completes the oldest outstanding request.
+ * All state is only touched on the owning loop's thread.
+ */
+class AsyncConnection {
+	private static final ByteBuffer Empty = ByteBuffer.allocate(0);	// source buffer used for handshake wraps
+	
+	private ArrayDeque<Request> mRequests = new ArrayDeque<Request>();		// requests sent or queued, oldest first
+	private ByteArrayOutputStream mPartial = new ByteArrayOutputStream();	// bytes of the line currently being received
+	private ServerMessage mMessage = new ServerMessage();	// reusable parser for the message most recently received
+	private ClientLoop mLoop;			// the loop that owns this connection
+	private SocketChannel mChannel;		// the channel to the server
+	private SelectionKey mKey;			// this connection's registration with the loop's selector
+	private SSLEngine mEngine;			// the TLS state machine for this connection
+	private FrameCodec mFrames;			// decoder for the server's frames, if speaking binary
+	private ByteBuffer mFrameIn;		// plain text bytes of frames not yet decoded, if speaking binary
+	private boolean mMagicChecked;		// set once the server has echoed the binary protocol magic
+	private ByteBuffer mNetIn;			// encrypted bytes read from the channel, not yet unwrapped
+	private ByteBuffer mAppIn;			// plain text bytes unwrapped by the engine
+	private ByteBuffer mNetOut;			// encrypted bytes waiting to be written to the channel
+	private ByteBuffer mAppOut;			// plain text requests waiting to be wrapped
+	private boolean mClosing;			// set once no more requests will be made, the connection closes when they are answered
+	private boolean mClosed;			// set once the channel has been closed
+	private CompletableFuture<Void> mDone = new CompletableFuture<Void>();	// completed once the channel has been closed
+	
+	/**
+	 * Constructor for AsyncConnection, nothing happens until connect is called
+	 * @param _loop The loop that will own this connection
+	 * @param _engine The client mode engine for this connection
+	 * @param _encoding Whether to speak the text protocol or binary frames
+	 */
+	AsyncConnection(ClientLoop _loop, SSLEngine _engine, Client.Encoding _encoding)
+	{
+		mLoop = _loop;
+		mEngine = _engine;
+		mEngine.setUseClientMode(true);
+		
+		SSLSession session = mEngine.getSession();
+		mNetIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		mNetOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		mAppIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		mAppOut = ByteBuffer.allocate(256);
+		
+		if(_encoding == Client.Encoding.Binary)
+		{
+			// the magic selects binary framing, it goes out ahead of the first request
+			mFrames = new FrameCodec();
+			mFrameIn = ByteBuffer.allocate(1024);
+			mAppOut.put(FrameCodec.Magic);
+		}
+	}
+	
+	/**
+	 * Starts connecting to the server on the loop's thread, requests can be made straight away
+	 * @param _address The server's address
+	 */
+	void connect(final InetSocketAddress _address)
+	{
+		mLoop.execute(new Runnable() {
+			public void run() {
+				if(mClosed)
+					return;
+				
+				try {
+					mChannel = SocketChannel.open();
+					mChannel.configureBlocking(false);
+					mChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					
+					if(mChannel.connect(_address))
+					{
+						mKey = mLoop.register(mChannel, SelectionKey.OP_READ, AsyncConnection.this);
+						begin();
+					}
+					else
+					{
+						mKey = mLoop.register(mChannel, SelectionKey.OP_CONNECT, AsyncConnection.this);
+					}
+				} catch (Exception e) {
+					abort(e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Sends login credentials
+	 * @param _username The username to provide as part of the login credentials
+	 * @param _secret The 'secret' to provide as part of the login credentials
+	 * @return The result of the login, completed when the server answers
+	 */
+	CompletableFuture<LoginResult> login(String _username, String _secret)
+	{
+		LoginRequest request = new LoginRequest();
+		send(request, Opcode.Login, _username, _secret);
+		return request.mResult;
+	}
+	
+	/**
+	 * Sends a session token from an earlier successful login in place of the username and secret
+	 * @param _token The token returned by an earlier login
+	 * @return The result of the login, completed when the server answers
+	 */
+	CompletableFuture<LoginResult> loginWithToken(String _token)
+	{
+		LoginRequest request = new LoginRequest();
+		send(request, Opcode.Token, _token);
+		return request.mResult;
+	}
+	
+	/**
+	 * Sends a query, which is only answered once logged in
+	 * @param _query The query to perform
+	 * @return The query's result, or the reason it was refused, completed when the server answers
+	 */
+	CompletableFuture<String> query(String _query)
+	{
+		QueryRequest request = new QueryRequest(_query);
+		send(request, Opcode.Query, _query);
+		return request.mResult;
+	}
+	
+	/**
+	 * Closes the connection once every request made so far has been answered
+	 */
+	void close()
+	{
+		mLoop.execute(new Runnable() {
+			public void run() {
+				mClosing = true;
+				try {
+					pump();
+				} catch (Exception e) {
+					abort(e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Getter for a future that completes once the connection has closed, whether gracefully or not
+	 * @return The future
+	 */
+	CompletableFuture<Void> done()
+	{
+		return mDone;
+	}
+	
+	/**
+	 * Closes the connection at once, failing every request still waiting for an answer, may be called from any thread
+	 * @param _error The reason the connection is being abandoned
+	 */
+	void abort(final Throwable _error)
+	{
+		if(!mLoop.inLoop())
+		{
+			mLoop.execute(new Runnable() {
+				public void run() {
+					abort(_error);
+				}
+			});
+			return;
+		}
+		
+		closeChannel(_error);
+	}
+	
+	/**
+	 * Helper method to queue a request on the loop's thread and send it as soon as the connection allows
+	 * @param _request The request awaiting the server's answer
+	 * @param _opcode The type of request
+	 * @param _fields The request's fields
+	 */
+	private void send(final Request _request, final Opcode _opcode, final String... _fields)
+	{
+		mLoop.execute(new Runnable() {
+			public void run() {
+				if(mClosed || mClosing)
+				{
+					_request.fail(new IOException("connection is closed"));
+					return;
+				}
+				
+				mRequests.add(_request);
+				write(_opcode, _fields);
+				try {
+					pump();
+				} catch (Exception e) {
+					abort(e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Helper method to queue a request for the server in the connection's encoding, it is encrypted and
+	 * written on the next pump
+	 * @param _opcode The type of request
+	 * @param _fields The request's fields, sent as one line each in the text protocol
+	 */
+	private void write(Opcode _opcode, String... _fields)
+	{
+		if(mFrames == null)
+		{
+			for(String field : _fields)
+			{
+				byte[] bytes = ((_opcode == Opcode.Token ? "token:" + field : field) + "\n").getBytes(Charset.defaultCharset());
+				ensureAppOut(bytes.length);
+				mAppOut.put(bytes);
+			}
+			return;
+		}
+		
+		ensureAppOut(FrameCodec.frameLength(_opcode, _fields));
+		FrameCodec.encode(mAppOut, _opcode, _fields);
+	}
+	
+	/**
+	 * Helper method to grow the outgoing plain text buffer if needed
+	 * @param _bytes The number of bytes about to be queued
+	 */
+	private void ensureAppOut(int _bytes)
+	{
+		if(mAppOut.remaining() < _bytes)
+		{
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(mAppOut.capacity() * 2, mAppOut.position() + _bytes));
+			mAppOut.flip();
+			grown.put(mAppOut);
+			mAppOut = grown;
+		}
+	}
+	
+	/**
+	 * Called by the loop when this connection's channel is connected, readable or writable
+	 * @param _key The selected key
+	 */
+	void handle(SelectionKey _key)
+	{
+		try {
+			if(_key.isValid() && _key.isConnectable())
+			{
+				if(!mChannel.finishConnect())
+					return;
+				begin();
+				return;
+			}
+			
+			if(_key.isValid() && _key.isReadable())
+			{
+				if(mChannel.read(mNetIn) < 0)
+				{
+					// the server has gone away, nothing outstanding will be answered now
+					try {
+						mEngine.closeInbound();
+					} catch (SSLException e) {
+						// the server did not send close_notify, which is common and harmless here
+					}
+					closeChannel(new EOFException("server closed the connection"));
+					return;
+				}
+			}
+			
+			pump();
+		} catch (Exception e) {
+			abort(e);
+		}
+	}
+	
+	/**
+	 * Helper method to start the handshake once connected, any requests already made go out when it completes
+	 * @throws IOException
+	 */
+	private void begin() throws IOException
+	{
+		mKey.interestOps(SelectionKey.OP_READ);
+		mEngine.beginHandshake();
+		pump();
+	}
+	
+	/**
+	 * Drives the engine as far as it can go without blocking: handshaking, wrapping queued requests, unwrapping
+	 * and dispatching responses, then flushes what it can to the channel
+	 * @throws IOException
+	 */
+	private void pump() throws IOException
+	{
+		if(mClosed || mChannel == null || !mChannel.isConnected())
+			return;
+		
+		boolean progress = true;
+		
+		while(progress && !mClosed)
+		{
+			switch(mEngine.getHandshakeStatus())
+			{
+			case NEED_TASK:
+				// delegated tasks are short lived key exchange steps, run them inline on the loop
+				Runnable task;
+				while((task = mEngine.getDelegatedTask()) != null)
+					task.run();
+				break;
+			case NEED_WRAP:
+				progress = wrap(Empty);
+				break;
+			case NEED_UNWRAP:
+			case NEED_UNWRAP_AGAIN:
+				progress = unwrap();
+				break;
+			default:
+				progress = false;
+				while(mEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && unwrap())
+					progress = true;
+				
+				if(mAppOut.position() > 0)
+				{
+					progress |= wrap(mAppOut);
+				}
+				else if(mClosing && mRequests.isEmpty() && !mEngine.isOutboundDone())
+				{
+					// everything asked has been answered, send close_notify
+					mEngine.closeOutbound();
+					progress = true;
+				}
+				break;
+			}
+		}
+		
+		if(mClosed)
+			return;
+		
+		flush();
+		
+		// once both sides have sent close_notify there is nothing left to say, closing any earlier could cut
+		// off the server's own close_notify
+		if(mEngine.isOutboundDone() && mEngine.isInboundDone() && mNetOut.position() == 0)
+		{
+			closeChannel(new IOException("connection is closed"));
+		}
+		else
+		{
+			// only ask to be told about writability while encrypted bytes are backed up
+			int interest = SelectionKey.OP_READ;
+			if(mNetOut.position() > 0)
+				interest |= SelectionKey.OP_WRITE;
+			mKey.interestOps(interest);
+		}
+	}
+	
+	/**
+	 * Encrypts data from the given buffer into the outgoing network buffer
+	 * @param _source Either the queued plain text or an empty buffer when the handshake needs to wrap
+	 * @return Whether any progress was made
+	 * @throws IOException
+	 */
+	private boolean wrap(ByteBuffer _source) throws IOException
+	{
+		boolean appData = (_source == mAppOut);
+		if(appData)
+			mAppOut.flip();
+		
+		try {
+			while(true)
+			{
+				SSLEngineResult result = mEngine.wrap(_source, mNetOut);
+				
+				switch(result.getStatus())
+				{
+				case BUFFER_OVERFLOW:
+					// make room by writing out what is already encrypted, give up until writable if we cannot
+					flush();
+					if(mNetOut.position() > 0)
+						return false;
+					if(mNetOut.capacity() < mEngine.getSession().getPacketBufferSize())
+						mNetOut = ByteBuffer.allocate(mEngine.getSession().getPacketBufferSize());
+					break;
+				default:
+					return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+				}
+			}
+		} finally {
+			if(appData)
+				mAppOut.compact();
+		}
+	}
+	
+	/**
+	 * Decrypts data from the incoming network buffer and dispatches any complete responses
+	 * @return Whether any progress was made
+	 * @throws IOException
+	 */
+	private boolean unwrap() throws IOException
+	{
+		SSLEngineResult result;
+		
+		mNetIn.flip();
+		try {
+			result = mEngine.unwrap(mNetIn, mAppIn);
+		} finally {
+			mNetIn.compact();
+		}
+		
+		switch(result.getStatus())
+		{
+		case BUFFER_UNDERFLOW:
+			// a partial record, grow the buffer if the record could never fit then wait for more bytes
+			int packetSize = mEngine.getSession().getPacketBufferSize();
+			if(mNetIn.capacity() < packetSize)
+			{
+				ByteBuffer grown = ByteBuffer.allocate(packetSize);
+				mNetIn.flip();
+				grown.put(mNetIn);
+				mNetIn = grown;
+			}
+			return false;
+		case BUFFER_OVERFLOW:
+			mAppIn = ByteBuffer.allocate(Math.max(mEngine.getSession().getApplicationBufferSize(), mAppIn.capacity() * 2));
+			return true;
+		case CLOSED:
+			// the server sent close_notify, whatever it has not answered yet never will be
+			dispatchReceived();
+			mClosing = true;
+			failRequests(new EOFException("server closed the connection"));
+			return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+		default:
+			break;
+		}
+		
+		dispatchReceived();
+		return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+	}
+	
+	/**
+	 * Splits the unwrapped plain text into messages and hands each to the oldest outstanding request
+	 * @throws IOException If the server sends a malformed or unexpected message
+	 */
+	private void dispatchReceived() throws IOException
+	{
+		mAppIn.flip();
+		
+		try {
+			if(mFrames != null)
+			{
+				dispatchFrames();
+				return;
+			}
+			
+			while(mAppIn.hasRemaining())
+			{
+				byte b = mAppIn.get();
+				
+				if(b == '\n')
+				{
+					String line = new String(mPartial.toByteArray(), Charset.defaultCharset());
+					if(line.endsWith("\r"))
+						line = line.substring(0, line.length() - 1);
+					
+					mPartial.reset();
+					dispatch(mMessage.parse(line));
+				}
+				else
+				{
+					mPartial.write(b);
+				}
+			}
+		} finally {
+			mAppIn.clear();
+		}
+	}
+	
+	/**
+	 * Decodes the unwrapped plain text of a binary connection into frames and dispatches each, keeping any
+	 * trailing partial frame for later
+	 * @throws IOException If the server sends a malformed frame
+	 */
+	private void dispatchFrames() throws IOException
+	{
+		if(mFrameIn.remaining() < mAppIn.remaining())
+		{
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(mFrameIn.capacity() * 2, mFrameIn.position() + mAppIn.remaining()));
+			mFrameIn.flip();
+			grown.put(mFrameIn);
+			mFrameIn = grown;
+		}
+		
+		mFrameIn.put(mAppIn);
+		mFrameIn.flip();
+		
+		try {
+			if(!mMagicChecked)
+			{
+				if(mFrameIn.remaining() < FrameCodec.Magic.length)
+					return;
+				
+				// the server echoes the magic to confirm it speaks binary frames
+				for(byte b : FrameCodec.Magic)
+				{
+					if(mFrameIn.get() != b)
+						throw new IOException("server does not support binary framing");
+				}
+				mMagicChecked = true;
+			}
+			
+			while(mFrames.decode(mFrameIn))
+				dispatch(mMessage.parse(mFrames));
+		} finally {
+			mFrameIn.compact();
+		}
+	}
+	
+	/**
+	 * Helper method to hand a message to the oldest outstanding request, which is finished with once it has
+	 * read its whole response
+	 * @param _message The message, only valid until the next message is parsed
+	 * @throws IOException If no request is waiting for an answer
+	 */
+	private void dispatch(ServerMessage _message) throws IOException
+	{
+		Request request = mRequests.peek();
+		if(request == null)
+			throw new IOException("unexpected message from server: " + _message);
+		
+		if(request.onMessage(_message))
+			mRequests.poll();
+	}
+	
+	/**
+	 * Writes as much of the encrypted output as the channel will currently accept
+	 * @throws IOException
+	 */
+	private void flush() throws IOException
+	{
+		mNetOut.flip();
+		try {
+			mChannel.write(mNetOut);
+		} finally {
+			mNetOut.compact();
+		}
+	}
+	
+	/**
+	 * Helper method to fail every request still waiting for an answer
+	 * @param _error The reason they will never be answered
+	 */
+	private void failRequests(Throwable _error)
+	{
+		Request request;
+		while((request = mRequests.poll()) != null)
+			request.fail(_error);
+	}
+	
+	/**
+	 * Closes the channel and fails every request still waiting for an answer
+	 * @param _error The reason any outstanding requests will never be answered
+	 */
+	private void closeChannel(Throwable _error)
+	{
+		if(mClosed)
+			return;
+		mClosed = true;
+		
+		if(mKey != null)
+			mKey.cancel();
+		
+		try {
+			if(mChannel != null)
+				mChannel.close();
+		} catch (IOException e) {
+			// nothing more can be done with this connection
+		}
+		
+		failRequests(_error);
+		mDone.complete(null);
+	}
+	
+	/**
+	 * A request waiting for the server's answer
+	 */
+	private static abstract class Request {
+		/**
+		 * Reads the next message of this request's response
+		 * @param _message The message
+		 * @return True once the whole response has been read
+		 */
+		abstract boolean onMessage(ServerMessage _message);
+		
+		/**
+		 * Fails the request, it will never be answered
+		 * @param _error The reason
+		 */
+		abstract void fail(Throwable _error);
+	}
+	
+	/**
+	 * Login credentials or a session token, answered by a single message
+	 */
+	private static class LoginRequest extends Request {
+		private CompletableFuture<LoginResult> mResult = new CompletableFuture<LoginResult>();	// the result of logging in
+		
+		boolean onMessage(ServerMessage _message)
+		{
+			mResult.complete(Client.loginResponse(_message));
+			return true;
+		}
+		
+		void fail(Throwable _error)
+		{
+			mResult.completeExceptionally(_error);
+		}
+	}
+	
+	/**
+	 * A query, answered by any number of parts and then an Ack, or by the reason it was refused. A response in
+	 * several parts is joined back together with ',' just as Client does.
+	 */
+	private static class QueryRequest extends Request {
+		private CompletableFuture<String> mResult = new CompletableFuture<String>();	// the query's result
+		private StringBuilder mParts = new StringBuilder();	// the parts of the response read so far
+		private boolean mAnswered;			// set once any part of the response carried a value
+		private String mName;				// the first word of the query, which names the value in each part
+		
+		/**
+		 * Constructor for QueryRequest
+		 * @param _query The query being asked
+		 */
+		QueryRequest(String _query)
+		{
+			int space = _query.indexOf(' ');
+			mName = space < 0 ? _query : _query.substring(0, space);
+		}
+		
+		boolean onMessage(ServerMessage _message)
+		{
+			if(_message.headerIs("part") || _message.headerIs("ack"))
+			{
+				CharSequence value = _message.parameter(mName);
+				
+				if(value != null)
+				{
+					if(mAnswered && value.length() > 0)
+						mParts.append(',');
+					mParts.append(value);
+					mAnswered = true;
+				}
+				
+				if(_message.headerIs("part"))
+					return false;
+				
+				mResult.complete(mAnswered ? mParts.toString() : null);
+			}
+			else
+			{
+				mResult.complete(_message.headerIs("invalid") ? _message.parameterString("reason") : null);
+			}
+			
+			return true;
+		}
+		
+		void fail(Throwable _error)
+		{
+			mResult.completeExceptionally(_error);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package cs4520.client;
+
+import java.io.Closeable;
+import java.util.concurrent.*;
+
+/**
+ * Asynchronous counterpart of Session, a logged in session with the CS4520 server over a single connection of
+ * an AsyncClient. Any number of queries may be outstanding at once, they are sent without waiting for earlier
+ * responses and the server answers them in order.
+ *
+ * A query that times out or is cancelled is not withdrawn from the server, its response is read and discarded
+ * when it arrives so that later queries still receive their own responses.
+ * @author Oliver Maskery
+ */
+public class AsyncSession implements Closeable {
+	private AsyncConnection mConnection;	// the connection this session's queries are sent over
+	private LoginResult mLogin;			// the result of logging in when the session was opened
+	private long mTimeout;				// how long (in ms) a query may wait for its response by default
+	private volatile boolean mClosed;	// set once the session has been closed
+	
+	/**
+	 * Constructor, sessions are opened through AsyncClient.openSession
+	 * @param _connection The connection this session's queries are sent over
+	 * @param _login The result of logging in
+	 * @param _timeout How long (in ms) a query may wait for its response by default
+	 */
+	AsyncSession(AsyncConnection _connection, LoginResult _login, long _timeout)
+	{
+		mConnection = _connection;
+		mLogin = _login;
+		mTimeout = _timeout;
+	}
+	
+	/**
+	 * Getter method for the result of logging in when this session was opened
+	 * @return The login result, including the privilege level and session token
+	 */
+	public LoginResult login()
+	{
+		return mLogin;
+	}
+	
+	/**
+	 * Method for determining whether the login succeeded and the session can serve queries
+	 * @return True if queries may be sent, false otherwise
+	 */
+	public boolean isValid()
+	{
+		return !mClosed && mLogin.response() == LoginResult.Response.ValidCredentials;
+	}
+	
+	/**
+	 * Performs a query with the client's default timeout
+	 * @param _query The query to perform
+	 * @return The query's result, or the reason it was refused, completed when the server answers
+	 * @throws IllegalStateException If the login failed or the session has been closed
+	 */
+	public CompletableFuture<String> query(String _query)
+	{
+		return query(_query, mTimeout);
+	}
+	
+	/**
+	 * Performs a query
+	 * @param _query The query to perform
+	 * @param _timeout How long (in ms) to wait for the response before failing with a TimeoutException
+	 * @return The query's result, or the reason it was refused, completed when the server answers
+	 * @throws IllegalStateException If the login failed or the session has been closed
+	 */
+	public CompletableFuture<String> query(String _query, long _timeout)
+	{
+		if(!isValid())
+			throw new IllegalStateException("session is not logged in");
+		
+		return mConnection.query(_query).orTimeout(_timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Closes the session, telling the server it can end the conversation, the connection is closed once
+	 * every outstanding query has been answered. Returns without waiting.
+	 */
+	public void close()
+	{
+		closeAsync();
+	}
+	
+	/**
+	 * Closes the session as close does
+	 * @return A future completed once the connection has closed
+	 */
+	public CompletableFuture<Void> closeAsync()
+	{
+		if(!mClosed)
+		{
+			if(isValid())
+				mConnection.query("close");
+			mClosed = true;
+			mConnection.close();
+		}
+		
+		return mConnection.done();
+	}
+}
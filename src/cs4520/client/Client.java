@@ -2,8 +2,13 @@ package cs4520.client;
 
 import java.net.*;
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.ByteBuffer;
 import javax.net.ssl.*;
 
+import cs4520.protocol.*;
+
 /**
  * @author Oliver Maskery
  * 
@@ -11,7 +16,21 @@ import javax.net.ssl.*;
  * 
  */
 public class Client {
-	private BufferedReader mReader;		// used to read from the client socket
+	public enum Encoding
+	{
+		Text,			// newline separated lines, the original protocol
+		Binary			// length-prefixed frames, no escaping or line scanning on either side
+	}
+	
+	private static final int PipelineWindow = 32;	// most queries sent ahead of their responses when pipelining
+	
+	private BufferedInputStream mInput;	// used to read from the client socket
+	private BufferedReader mReader;		// used to read lines from the client socket, if speaking text
+	private FrameCodec mFrames;			// used to decode frames from the client socket, if speaking binary
+	private ByteBuffer mFrameOut;		// reusable buffer that binary requests are encoded into
+	private boolean mMagicChecked;		// set once the server has echoed the binary protocol magic
+	private StringBuilder mLine;		// reusable buffer holding the line most recently read from the server
+	private ServerMessage mMessage;		// reusable parser for the message most recently read from the server
 	private PrintStream mWriter;		// used to write to the client socket
 	private LoginResult mResult;		// the result of logging in to the server and performing a query
 	private Socket mClient;				// the client socket to communicate with the server
@@ -24,12 +43,40 @@ public class Client {
 	 * @throws IOException
 	 */
 	public Client(String _target, int _port) throws UnknownHostException, IOException
+	{
+		this(_target, _port, Encoding.Text);
+	}
+	
+	/**
+	 * Client constructor
+	 * @param _target The target to connect to, either an IP or hostname for the machine running the CS4520 server.
+	 * @param _port The port number to establish the connection on, must be the same as the one the server is listening on.
+	 * @param _encoding Whether to speak the text protocol or binary frames
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 */
+	public Client(String _target, int _port, Encoding _encoding) throws UnknownHostException, IOException
 	{
 		mResult = null;
 		// establish a connection to the server, generally initialise the connection
 		mClient = SSLSocketFactory.getDefault().createSocket(_target, _port);
-		mReader = new BufferedReader(new InputStreamReader(mClient.getInputStream()));
-		mWriter = new PrintStream(mClient.getOutputStream());
+		mInput = new BufferedInputStream(mClient.getInputStream());
+		// requests are buffered and sent in batches, see send
+		mWriter = new PrintStream(new BufferedOutputStream(mClient.getOutputStream()));
+		mLine = new StringBuilder(256);
+		mMessage = new ServerMessage();
+		
+		if(_encoding == Encoding.Binary)
+		{
+			// the magic selects binary framing, it goes out with the first request
+			mFrames = new FrameCodec();
+			mFrameOut = ByteBuffer.allocate(256);
+			mWriter.write(FrameCodec.Magic, 0, FrameCodec.Magic.length);
+		}
+		else
+		{
+			mReader = new BufferedReader(new InputStreamReader(mInput));
+		}
 	}
 	
 	/**
@@ -50,73 +97,419 @@ public class Client {
 	 */
 	public LoginResult login(String _username, String _secret, String _query) throws IOException
 	{
-		LoginResult.Response loginResponse = LoginResult.Response.InvalidResponse;
-		LoginResult.Level privilageLevel = null;
-		String queryResponse = null;
+		// send the login credentials
+		write(Opcode.Login, _username, _secret);
+		flush();
 		
+		return completeLogin(_query);
+	}
+	
+	/**
+	 * Attempts to login to the CS4520 server with a session token from an earlier successful login, which
+	 * spares the server from hashing the secret again
+	 * @param _token The token returned by an earlier login (see LoginResult.token())
+	 * @param _query The query to perform once logged in
+	 * @return Whether or not the login attempt was successful, and if not, the reason for failure
+	 * @throws IOException
+	 */
+	public LoginResult loginWithToken(String _token, String _query) throws IOException
+	{
+		// present the token in place of the username and secret
+		write(Opcode.Token, _token);
+		flush();
+		
+		return completeLogin(_query);
+	}
+	
+	/**
+	 * Opens a session on the CS4520 server, logging in once and then serving any number of queries over this
+	 * connection until the session is closed
+	 * @param _username	The username to provide as part of the login credentials
+	 * @param _secret The 'secret' to provide as part of the login credentials
+	 * @return The session, check Session.login() to see whether the login attempt was successful
+	 * @throws IOException
+	 */
+	public Session openSession(String _username, String _secret) throws IOException
+	{
 		// send the login credentials
-		mWriter.println(_username);
-		mWriter.println(_secret);
+		write(Opcode.Login, _username, _secret);
+		flush();
+		
+		return new Session(this, readLoginResponse());
+	}
+	
+	/**
+	 * Opens a session on the CS4520 server using a session token from an earlier successful login
+	 * @param _token The token returned by an earlier login (see LoginResult.token())
+	 * @return The session, check Session.login() to see whether the login attempt was successful
+	 * @throws IOException
+	 */
+	public Session openSessionWithToken(String _token) throws IOException
+	{
+		// present the token in place of the username and secret
+		write(Opcode.Token, _token);
+		flush();
 		
+		return new Session(this, readLoginResponse());
+	}
+	
+	/**
+	 * Helper method that reads the server's response to the login credentials, performs a single query and
+	 * then disconnects
+	 * @param _query The query to perform once logged in
+	 * @return Whether or not the login attempt was successful, and if not, the reason for failure
+	 * @throws IOException
+	 */
+	private LoginResult completeLogin(String _query) throws IOException
+	{
+		LoginResult login = readLoginResponse();
+		String queryResponse = null;
+		
+		if(login.response() == LoginResult.Response.ValidCredentials)
+		{
+			queryResponse = query(_query);
+		}
+		
+		close();
+		
+		mResult = new LoginResult(login.response(), queryResponse, login.level(), login.token());
+		return mResult;
+	}
+	
+	/**
+	 * Helper method that reads the server's response to the login credentials
+	 * @return Whether or not the login attempt was successful, and if not, the reason for failure
+	 * @throws IOException
+	 */
+	private LoginResult readLoginResponse() throws IOException
+	{
 		// await the server's response
-		ServerMessage response = new ServerMessage(mReader.readLine());
+		return loginResponse(readMessage());
+	}
+	
+	/**
+	 * Helper method that interprets the server's response to the login credentials, shared with AsyncClient
+	 * @param _response The message the server answered the credentials with
+	 * @return Whether or not the login attempt was successful, and if not, the reason for failure
+	 */
+	static LoginResult loginResponse(ServerMessage _response)
+	{
+		LoginResult.Response loginResponse = LoginResult.Response.InvalidResponse;
+		LoginResult.Level privilageLevel = null;
+		String token = null;
 		
-		if(response.header().toLowerCase().equals("valid"))
+		if(_response.headerIs("valid"))
 		{
-			if(response.hasParameter("level"))
+			if(_response.hasParameter("level"))
 			{
 				loginResponse = LoginResult.Response.ValidCredentials;
-				privilageLevel = LoginResult.Level.valueOf(response.parameter("level"));
+				privilageLevel = LoginResult.Level.valueOf(_response.parameterString("level"));
+				token = _response.parameterString("token");
 			}
 		}
-		else if(response.header().toLowerCase().equals("invalid"))
+		else if(_response.headerIs("invalid"))
 		{
-			if(response.hasParameter("reason"))
+			if(_response.hasParameter("reason"))
 			{
-				loginResponse = LoginResult.Response.valueOf(response.parameter("reason"));
+				loginResponse = LoginResult.Response.valueOf(_response.parameterString("reason"));
 			}
 		}
 		
-		if(loginResponse == LoginResult.Response.ValidCredentials)
+		return new LoginResult(loginResponse, null, privilageLevel, token);
+	}
+	
+	/**
+	 * Sends a query to the server once logged in and waits for the response
+	 * @param _query The query to perform
+	 * @return The query's result, or the reason it was refused
+	 * @throws IOException
+	 */
+	String query(String _query) throws IOException
+	{
+		write(Opcode.Query, _query);
+		flush();
+		
+		return readQueryResponse(_query);
+	}
+	
+	/**
+	 * Sends several queries to the server without waiting for each response in turn, the server answers
+	 * pipelined queries in order so responses are matched to queries by position. At most PipelineWindow
+	 * queries are outstanding at once, so neither side can fill the other's buffers and deadlock.
+	 * @param _queries The queries to perform, in order
+	 * @return Each query's result, or the reason it was refused, in the same order as the queries
+	 * @throws IOException
+	 */
+	List<String> pipeline(List<String> _queries) throws IOException
+	{
+		ArrayList<String> results = new ArrayList<String>(_queries.size());
+		
+		for(int start = 0; start < _queries.size(); start += PipelineWindow)
 		{
-			mWriter.println(_query);
+			List<String> window = _queries.subList(start, Math.min(start + PipelineWindow, _queries.size()));
 			
-			response = new ServerMessage(mReader.readLine());
+			// the whole window goes out in a single flush
+			for(String query : window)
+			{
+				write(Opcode.Query, query);
+			}
+			flush();
 			
-			if(response.header().toLowerCase().equals("ack"))
+			for(String query : window)
 			{
-				if(response.hasParameter(_query))
-				{
-					queryResponse = response.parameter(_query);
-				}
+				results.add(readQueryResponse(query));
+			}
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Sends a query to the server once logged in and hands each part of the response to a listener as it is
+	 * read, rather than collecting the whole response first
+	 * @param _query The query to perform
+	 * @param _listener The listener that receives each part of the response
+	 * @return The final message of the response, an Ack or the reason the query was refused, valid only until the next message is read
+	 * @throws IOException
+	 */
+	ServerMessage queryStream(String _query, QueryListener _listener) throws IOException
+	{
+		write(Opcode.Query, _query);
+		flush();
+		
+		return readResponse(_query, _listener);
+	}
+	
+	/**
+	 * Helper method that reads the server's response to a query, handing the value of every Part and of the
+	 * final Ack to a listener
+	 * @param _query The query being answered, its first word names the value in each part
+	 * @param _listener The listener that receives each part of the response
+	 * @return The final message of the response
+	 * @throws IOException
+	 */
+	private ServerMessage readResponse(String _query, QueryListener _listener) throws IOException
+	{
+		int space = _query.indexOf(' ');
+		String name = space < 0 ? _query : _query.substring(0, space);
+		
+		ServerMessage response = readMessage();
+		
+		while(response.headerIs("part") || response.headerIs("ack"))
+		{
+			CharSequence value = response.parameter(name);
+			
+			if(value != null)
+			{
+				_listener.onPart(value);
 			}
-			else if(response.header().toLowerCase().equals("invalid"))
+			
+			if(response.headerIs("ack"))
+				break;
+			
+			response = readMessage();
+		}
+		
+		return response;
+	}
+	
+	/**
+	 * Helper method that reads and interprets the server's response to a query, a response in several parts
+	 * is joined back together with ','
+	 * @param _query The query being answered
+	 * @return The query's result, or the reason it was refused
+	 * @throws IOException
+	 */
+	private String readQueryResponse(String _query) throws IOException
+	{
+		String queryResponse = null;
+		final StringBuilder parts = new StringBuilder();
+		final boolean[] answered = { false };
+		
+		ServerMessage response = readResponse(_query, new QueryListener() {
+			public void onPart(CharSequence _value) {
+				if(answered[0] && _value.length() > 0)
+					parts.append(',');
+				parts.append(_value);
+				answered[0] = true;
+			}
+		});
+		
+		if(response.headerIs("ack"))
+		{
+			if(answered[0])
 			{
-				if(response.hasParameter("reason"))
-				{
-					queryResponse = response.parameter("reason");
-				}
+				queryResponse = parts.toString();
+			}
+		}
+		else if(response.headerIs("invalid"))
+		{
+			if(response.hasParameter("reason"))
+			{
+				queryResponse = response.parameterString("reason");
 			}
 		}
 		
-		mResult = new LoginResult(loginResponse, queryResponse, privilageLevel);
-		return mResult;
+		return queryResponse;
+	}
+	
+	/**
+	 * Helper method to buffer a request for the server in the negotiated encoding, nothing is sent until flush
+	 * @param _opcode The type of request
+	 * @param _fields The request's fields, sent as one line each in the text protocol
+	 */
+	private void write(Opcode _opcode, String... _fields)
+	{
+		if(mFrames == null)
+		{
+			for(String field : _fields)
+				mWriter.println(_opcode == Opcode.Token ? "token:" + field : field);
+			return;
+		}
+		
+		int length = FrameCodec.frameLength(_opcode, _fields);
+		if(mFrameOut.capacity() < length)
+			mFrameOut = ByteBuffer.allocate(length);
+		
+		mFrameOut.clear();
+		FrameCodec.encode(mFrameOut, _opcode, _fields);
+		mWriter.write(mFrameOut.array(), 0, mFrameOut.position());
+	}
+	
+	/**
+	 * Helper method to send the buffered requests to the server, they are written out together
+	 */
+	private void flush()
+	{
+		mWriter.flush();
+	}
+	
+	/**
+	 * Helper method to read a message from the server in the negotiated encoding, treating a disconnection as
+	 * an error. The same ServerMessage is returned every time, it is only valid until the next message is read.
+	 * @return The message read
+	 * @throws IOException
+	 */
+	private ServerMessage readMessage() throws IOException
+	{
+		if(mFrames == null)
+		{
+			if(!readLine(mLine))
+				throw new EOFException("server closed the connection");
+			
+			return mMessage.parse(mLine);
+		}
+		
+		if(!mMagicChecked)
+		{
+			// the server echoes the magic to confirm it speaks binary frames
+			byte[] magic = new byte[FrameCodec.Magic.length];
+			new DataInputStream(mInput).readFully(magic);
+			
+			if(!Arrays.equals(magic, FrameCodec.Magic))
+				throw new IOException("server does not support binary framing");
+			mMagicChecked = true;
+		}
+		
+		if(!mFrames.read(mInput))
+			throw new EOFException("server closed the connection");
+		
+		return mMessage.parse(mFrames);
+	}
+	
+	/**
+	 * Helper method to read a line from the server into a reusable buffer rather than a new String
+	 * @param _line The buffer to fill, its previous contents are discarded
+	 * @return True if a line was read, false if the server closed the connection first
+	 * @throws IOException
+	 */
+	private boolean readLine(StringBuilder _line) throws IOException
+	{
+		_line.setLength(0);
+		
+		while(true)
+		{
+			int c = mReader.read();
+			
+			if(c < 0)
+				return _line.length() > 0;
+			if(c == '\n')
+				break;
+			_line.append((char) c);
+		}
+		
+		// accept "\r\n" line endings as readLine() did
+		if(_line.length() > 0 && _line.charAt(_line.length() - 1) == '\r')
+			_line.setLength(_line.length() - 1);
+		
+		return true;
+	}
+	
+	/**
+	 * Closes the connection to the server
+	 * @throws IOException
+	 */
+	void close() throws IOException
+	{
+		mClient.close();
 	}
 	
 	public static void main(String[] args) {
 		testAllQueries("guest", "meow");
 		testAllQueries("rolfharris", "canyoutellwhatitisyet");
 		testAllQueries("admin", "secretsecret");
+		testTokenLogin("rolfharris", "canyoutellwhatitisyet");
+		testAllQueries("admin", "secretsecret", Encoding.Binary);
+		testUserListing("admin", "secretsecret", 2);
+		testStats("admin", "secretsecret");
+		testAsync("rolfharris", "canyoutellwhatitisyet", 16);
+		testPool("rolfharris", "canyoutellwhatitisyet", 5);
 	}
 	
 	public static void testAllQueries(String _username, String _secret)
 	{
-		test(_username, _secret, "fact");
-		test(_username, _secret, "secret");
-		test(_username, _secret, "users");
-		test(_username, _secret, "cats");
+		testAllQueries(_username, _secret, Encoding.Text);
 	}
-
+	
+	public static void testAllQueries(String _username, String _secret, Encoding _encoding)
+	{
+		try {
+			// Connect
+			System.out.print("Attempting " + _encoding.toString().toLowerCase() + " connection to CS4520 server...");
+			Client client = new Client("localhost", 28000, _encoding);
+			System.out.println("done!");
+			
+			// Attempt login, then run every query over the one session
+			System.out.print("Attempting login as '" + _username + "' with secret '" + _secret + "'...");
+			Session session = client.openSession(_username, _secret);
+			
+			if(!session.isValid())
+			{
+				System.out.println("failure!");
+				
+				System.out.println("Reason for failure: " + session.login().response().toString());
+				session.close();
+				return;
+			}
+			
+			System.out.println("success!");
+			System.out.println("User privelage level: " + session.login().level());
+			
+			// send all of the queries at once, the responses come back in the same order
+			String[] queries = { "fact", "secret", "users", "cats" };
+			List<String> responses = session.pipeline(queries);
+			
+			for(int i = 0; i < queries.length; i++)
+			{
+				System.out.println("Query '" + queries[i] + "' response: " + responses.get(i));
+			}
+			
+			session.close();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
 	public static void test(String _username, String _secret, String _query)
 	{
 		try {
@@ -149,4 +542,181 @@ public class Client {
 			e.printStackTrace(System.err);
 		}
 	}
+	
+	public static void testUserListing(String _username, String _secret, int _pageSize)
+	{
+		try {
+			// Log in and page through the user listing a few users at a time
+			System.out.print("Attempting login as '" + _username + "' to list users " + _pageSize + " at a time...");
+			Session session = new Client("localhost", 28000).openSession(_username, _secret);
+			
+			if(!session.isValid())
+			{
+				System.out.println("failure!");
+				System.out.println("Reason for failure: " + session.login().response().toString());
+				session.close();
+				return;
+			}
+			System.out.println("success!");
+			
+			int listed = session.listUsers(_pageSize, new UserListener() {
+				public void onUser(String _name, String _hash) {
+					System.out.println("User '" + _name + "' hash: " + _hash);
+				}
+			});
+			System.out.println("Users listed: " + (listed < 0 ? "refused" : Integer.toString(listed)));
+			
+			session.close();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	public static void testStats(String _username, String _secret)
+	{
+		try {
+			System.out.print("Attempting login as '" + _username + "' to fetch server statistics...");
+			Session session = new Client("localhost", 28000).openSession(_username, _secret);
+			
+			if(!session.isValid())
+			{
+				System.out.println("failure!");
+				System.out.println("Reason for failure: " + session.login().response().toString());
+				session.close();
+				return;
+			}
+			System.out.println("success!");
+			
+			Map<String, String> stats = session.stats();
+			if(stats == null)
+			{
+				System.out.println("Statistics refused");
+			}
+			else
+			{
+				for(Map.Entry<String, String> stat : stats.entrySet())
+					System.out.println("Stat " + stat.getKey() + ": " + stat.getValue());
+			}
+			
+			session.close();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	public static void testAsync(String _username, String _secret, int _count)
+	{
+		AsyncClient client = null;
+		try {
+			// Start every login at once, none of them waits for another
+			System.out.print("Attempting " + _count + " asynchronous logins as '" + _username + "' at once...");
+			client = new AsyncClient("localhost", 28000);
+			List<CompletableFuture<LoginResult>> logins = new ArrayList<CompletableFuture<LoginResult>>();
+			
+			for(int i = 0; i < _count; i++)
+			{
+				logins.add(client.login(_username, _secret, "fact"));
+			}
+			
+			int valid = 0;
+			for(CompletableFuture<LoginResult> login : logins)
+			{
+				if(login.join().response() == LoginResult.Response.ValidCredentials)
+					valid++;
+			}
+			System.out.println(valid == _count ? "success!" : "failure!");
+			System.out.println("Asynchronous logins accepted: " + valid + " of " + _count);
+			
+			// Open a session and have both queries in flight over its connection at once
+			AsyncSession session = client.openSession(_username, _secret).join();
+			CompletableFuture<String> fact = session.query("fact");
+			CompletableFuture<String> secret = session.query("secret");
+			
+			System.out.println("Asynchronous query 'fact' response: " + fact.join());
+			System.out.println("Asynchronous query 'secret' response: " + secret.join());
+			session.closeAsync().join();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace(System.err);
+		} finally {
+			if(client != null)
+				client.close();
+		}
+	}
+	
+	public static void testPool(String _username, String _secret, int _queries)
+	{
+		SessionPool pool = new SessionPool("localhost", 28000);
+		try {
+			// Each query borrows a session from the pool, only the first has to log in
+			System.out.print("Attempting " + _queries + " pooled queries as '" + _username + "'...");
+			String response = null;
+			
+			for(int i = 0; i < _queries; i++)
+			{
+				Session session = pool.acquire(_username, _secret);
+				if(!session.isValid())
+				{
+					System.out.println("failure!");
+					System.out.println("Reason for failure: " + session.login().response().toString());
+					pool.release(session);
+					return;
+				}
+				
+				try {
+					response = session.query("fact");
+					pool.release(session);
+				} catch (IOException e) {
+					pool.invalidate(session);
+					throw e;
+				}
+			}
+			
+			System.out.println("success!");
+			System.out.println("Pooled query 'fact' response: " + response);
+			System.out.println("Pooled sessions opened: " + pool.created() + ", reused: " + pool.reused());
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		} finally {
+			pool.close();
+		}
+	}
+	
+	public static void testTokenLogin(String _username, String _secret)
+	{
+		try {
+			// Log in normally to obtain a session token
+			System.out.print("Attempting login as '" + _username + "' to obtain a session token...");
+			LoginResult first = new Client("localhost", 28000).login(_username, _secret, "fact");
+			
+			if(first.token() == null)
+			{
+				System.out.println("failure!");
+				System.out.println("Reason for failure: " + first.response().toString());
+				return;
+			}
+			System.out.println("success!");
+			
+			// Reconnect with the token in place of the username and secret
+			System.out.print("Attempting login with session token and query type 'secret'...");
+			LoginResult result = new Client("localhost", 28000).loginWithToken(first.token(), "secret");
+			
+			if(result.response() == LoginResult.Response.ValidCredentials)
+			{
+				System.out.println("success!");
+				
+				System.out.println("User privelage level: " + result.level());
+				System.out.println("Query response: " + result.queryResult());
+			}
+			else
+			{
+				System.out.println("failure!");
+				
+				System.out.println("Reason for failure: " + result.response().toString());
+			}
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
 }
@@ -0,0 +1,140 @@
+package cs4520.client;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @author Oliver Maskery
+ *
+ * One selector driven thread of an AsyncClient, it owns a set of AsyncConnections and services all of their
+ * I/O without ever blocking on a single connection. The client side counterpart of the server's EventLoop.
+ */
+class ClientLoop implements Runnable {
+	// tasks handed to this loop by other threads, run on the loop's own thread between selects
+	private ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+	private Selector mSelector;			// selector used to wait on all of this loop's channels
+	private Thread mThread;				// the thread running this loop
+	private volatile boolean mStopping;	// set once the loop has been asked to stop
+	private volatile boolean mStopped;	// set once the loop has stopped, tasks are then run by whoever hands them over
+	
+	/**
+	 * Constructor for ClientLoop
+	 * @param _name The name given to the loop's thread
+	 * @throws IOException
+	 */
+	ClientLoop(String _name) throws IOException
+	{
+		mSelector = Selector.open();
+		mThread = new Thread(this, _name);
+		// an application that forgets to close its client should still be able to exit
+		mThread.setDaemon(true);
+	}
+	
+	/**
+	 * Starts the loop's thread
+	 */
+	void start()
+	{
+		mThread.start();
+	}
+	
+	/**
+	 * Runs a task on this loop's thread, waking the loop if it is waiting in select
+	 * @param _task The task to run
+	 */
+	void execute(Runnable _task)
+	{
+		mTasks.add(_task);
+		
+		if(mStopped)
+			runTasks();
+		else if(Thread.currentThread() != mThread)
+			mSelector.wakeup();
+	}
+	
+	/**
+	 * Checks whether the caller is running on this loop's thread
+	 * @return True if called from the loop's thread
+	 */
+	boolean inLoop()
+	{
+		return Thread.currentThread() == mThread;
+	}
+	
+	/**
+	 * Registers a channel with this loop's selector, must be called from the loop's thread
+	 * @param _channel The channel to register
+	 * @param _ops The operations of interest
+	 * @param _attachment The AsyncConnection that handles the channel's events
+	 * @return The key representing the registration
+	 * @throws IOException
+	 */
+	SelectionKey register(SocketChannel _channel, int _ops, AsyncConnection _attachment) throws IOException
+	{
+		return _channel.register(mSelector, _ops, _attachment);
+	}
+	
+	/**
+	 * Asks the loop to stop, every connection it still owns is aborted
+	 */
+	void shutdown()
+	{
+		mStopping = true;
+		mSelector.wakeup();
+	}
+	
+	/**
+	 * The loop itself, alternates between selecting ready channels and running queued tasks
+	 */
+	public void run()
+	{
+		while(!mStopping)
+		{
+			try {
+				mSelector.select();
+				
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					
+					AsyncConnection connection = (AsyncConnection) key.attachment();
+					connection.handle(key);
+				}
+				
+				runTasks();
+			} catch (Exception e) {
+				// a failure here must never take down every connection the loop owns
+				e.printStackTrace(System.err);
+			}
+		}
+		
+		for(SelectionKey key : mSelector.keys())
+			((AsyncConnection) key.attachment()).abort(new IOException("client closed"));
+		
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+			// the loop is finished with it either way
+		}
+		
+		// anything handed over from now on, or not yet run, finds its connection closed and fails at once
+		mStopped = true;
+		runTasks();
+	}
+	
+	/**
+	 * Helper method to run every queued task
+	 */
+	private void runTasks()
+	{
+		Runnable task;
+		while((task = mTasks.poll()) != null)
+		{
+			task.run();
+		}
+	}
+}
@@ -0,0 +1,457 @@
+package cs4520.client;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+import cs4520.util.LatencyHistogram;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Load generator for measuring the capacity of a CS4520 server. A number of threads each repeatedly connect,
+ * log in with a mix of valid, invalid and locked out credentials, perform one of a mix of queries when the
+ * login succeeds and disconnect, just as Client.login does.
+ *
+ * In closed loop mode each thread starts its next operation as soon as the last one finished, so the load
+ * offered falls as the server slows down. In open loop mode operations are started at a fixed rate however
+ * long the server takes, as independent users would, and each latency is measured from the time the operation
+ * was meant to start rather than when a thread got round to it. A slow response then counts against every
+ * operation it held up, rather than hiding them, which is the coordinated omission a closed loop suffers from.
+ * There must be enough threads to keep up with the rate, or operations queue for a thread and the latencies
+ * grow to show it.
+ */
+public class LoadGenerator {
+	public enum Mode
+	{
+		Closed,			// each thread starts an operation as soon as its last one finished
+		Open			// operations start at a fixed rate, however long earlier ones take
+	}
+	
+	public enum Credentials
+	{
+		Valid,			// the username and secret of one of the configured users
+		Invalid,		// a username the server does not know
+		Locked			// the lock user with a wrong secret, which locks them out after a few attempts
+	}
+	
+	private static final String[] Queries = { "fact", "secret", "users" };	// the queries performed after a valid login
+	
+	private String mHost;				// the machine running the server
+	private int mPort;					// the port the server is listening on
+	private Client.Encoding mEncoding;	// whether to speak the text protocol or binary frames
+	private Mode mMode;					// whether operations are started by finishing the last or at a fixed rate
+	private int mThreads;				// number of threads performing operations at once
+	private double mRate;				// operations started per second in open loop mode
+	private long mDuration;				// how long (in ns) operations are measured for
+	private long mWarmup;				// how long (in ns) operations are performed before they are measured
+	private long mInterval;				// time (in ns) a closed loop thread is expected to take per operation, 0 if unknown
+	private int[] mCredentialMix;		// relative weights of each kind of credentials
+	private int[] mQueryMix;			// relative weights of each query
+	private List<String[]> mUsers;		// the username and secret of every user with valid credentials
+	private String mLockUser;			// the user that is logged in to with wrong secrets
+	
+	private long mStart;				// time (in ns) the first operation was meant to start
+	private AtomicLong mNext;			// index of the next operation to start in open loop mode
+	private LatencyHistogram mLatency;	// time from when each operation was meant to start to when it finished
+	private LatencyHistogram mService;	// time from when each operation actually started to when it finished
+	private AtomicLong mOperations;		// operations measured
+	private AtomicLongArray mResponses;	// measured logins with each LoginResult.Response
+	private AtomicLongArray mAnswered;	// measured queries answered, by query
+	private ConcurrentHashMap<String, AtomicLong> mRefused;	// measured queries refused, by query and reason
+	private ConcurrentHashMap<String, AtomicLong> mErrors;	// measured operations that failed with an exception, by exception
+	
+	/**
+	 * Constructor for a load generator with the default options: a closed loop of 8 threads for 10 seconds,
+	 * 80% valid logins to 'rolfharris' and 'admin', 10% unknown users and 10% wrong secrets for 'guest'
+	 * @param _host The machine running the server
+	 * @param _port The port the server is listening on
+	 */
+	public LoadGenerator(String _host, int _port)
+	{
+		mHost = _host;
+		mPort = _port;
+		mEncoding = Client.Encoding.Text;
+		mMode = Mode.Closed;
+		mThreads = 8;
+		mRate = 0;
+		mDuration = TimeUnit.SECONDS.toNanos(10);
+		mWarmup = 0;
+		mInterval = 0;
+		mCredentialMix = new int[] { 80, 10, 10 };
+		mQueryMix = new int[] { 50, 30, 20 };
+		mUsers = new ArrayList<String[]>();
+		mUsers.add(new String[] { "rolfharris", "canyoutellwhatitisyet" });
+		mUsers.add(new String[] { "admin", "secretsecret" });
+		mLockUser = "guest";
+	}
+	
+	/**
+	 * Runs the load for the warmup and then the measured duration, returning once every operation has finished
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException
+	{
+		mLatency = new LatencyHistogram();
+		mService = new LatencyHistogram();
+		mOperations = new AtomicLong();
+		mNext = new AtomicLong();
+		mResponses = new AtomicLongArray(LoginResult.Response.values().length);
+		mAnswered = new AtomicLongArray(Queries.length);
+		mRefused = new ConcurrentHashMap<String, AtomicLong>();
+		mErrors = new ConcurrentHashMap<String, AtomicLong>();
+		
+		Thread[] threads = new Thread[mThreads];
+		mStart = System.nanoTime();
+		
+		for(int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "load-" + i);
+			threads[i].start();
+		}
+		
+		for(Thread thread : threads)
+			thread.join();
+	}
+	
+	/**
+	 * Performs operations on one thread until the warmup and measured duration have passed
+	 */
+	private void work()
+	{
+		long measureFrom = mStart + mWarmup;
+		long end = measureFrom + mDuration;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		
+		while(true)
+		{
+			long intended;
+			
+			if(mMode == Mode.Open)
+			{
+				// operations are handed out in order, each is meant to start 1 / rate after the last
+				intended = mStart + (long) (mNext.getAndIncrement() * 1e9 / mRate);
+				if(intended >= end)
+					return;
+				
+				long wait;
+				while((wait = intended - System.nanoTime()) > 0)
+					LockSupport.parkNanos(wait);
+			}
+			else
+			{
+				intended = System.nanoTime();
+				if(intended >= end)
+					return;
+			}
+			
+			boolean measured = intended >= measureFrom;
+			long started = System.nanoTime();
+			operation(random, measured);
+			long finished = System.nanoTime();
+			
+			if(measured)
+			{
+				mOperations.incrementAndGet();
+				mService.record(finished - started);
+				if(mMode == Mode.Open)
+					mLatency.record(finished - intended);
+				else
+					mLatency.record(finished - started, mInterval);
+			}
+		}
+	}
+	
+	/**
+	 * Performs one operation: connects, logs in with credentials picked from the mix, performs a query picked
+	 * from the mix if the login succeeded and disconnects
+	 * @param _random The calling thread's source of random numbers
+	 * @param _measured Whether the outcome should be counted
+	 */
+	private void operation(ThreadLocalRandom _random, boolean _measured)
+	{
+		String username;
+		String secret;
+		
+		switch(Credentials.values()[pick(_random, mCredentialMix)])
+		{
+		case Valid:
+			String[] user = mUsers.get(_random.nextInt(mUsers.size()));
+			username = user[0];
+			secret = user[1];
+			break;
+		case Invalid:
+			username = "load-" + Long.toHexString(_random.nextLong());
+			secret = "load";
+			break;
+		default:
+			username = mLockUser;
+			secret = "wrong-" + Long.toHexString(_random.nextLong());
+			break;
+		}
+		
+		Client client = null;
+		try {
+			client = new Client(mHost, mPort, mEncoding);
+			Session session = client.openSession(username, secret);
+			
+			if(_measured)
+				mResponses.incrementAndGet(session.login().response().ordinal());
+			
+			if(session.isValid())
+			{
+				int query = pick(_random, mQueryMix);
+				ServerMessage response = client.queryStream(Queries[query], new QueryListener() {
+					public void onPart(CharSequence _value) {
+						// only the outcome of the query is counted
+					}
+				});
+				
+				if(_measured)
+				{
+					if(response.headerIs("ack"))
+						mAnswered.incrementAndGet(query);
+					else
+						count(mRefused, Queries[query] + ":" + response.parameterString("reason"));
+				}
+			}
+			
+			session.close();
+		} catch (IOException e) {
+			if(_measured)
+				count(mErrors, e.getClass().getSimpleName());
+		} finally {
+			try {
+				if(client != null)
+					client.close();
+			} catch (IOException e) {
+				// the connection is being abandoned anyway
+			}
+		}
+	}
+	
+	/**
+	 * Helper method to pick an index at random in proportion to a set of weights
+	 * @param _random The source of random numbers
+	 * @param _weights The weight of each index, not all 0
+	 * @return The index picked
+	 */
+	private static int pick(ThreadLocalRandom _random, int[] _weights)
+	{
+		int total = 0;
+		for(int weight : _weights)
+			total += weight;
+		
+		int choice = _random.nextInt(total);
+		for(int i = 0; i < _weights.length; i++)
+		{
+			choice -= _weights[i];
+			if(choice < 0)
+				return i;
+		}
+		
+		return _weights.length - 1;
+	}
+	
+	/**
+	 * Helper method to increment a count by name
+	 * @param _counts The counts
+	 * @param _name The name of the count to increment
+	 */
+	private static void count(ConcurrentHashMap<String, AtomicLong> _counts, String _name)
+	{
+		AtomicLong count = _counts.get(_name);
+		if(count == null)
+		{
+			AtomicLong created = new AtomicLong();
+			count = _counts.putIfAbsent(_name, created);
+			if(count == null)
+				count = created;
+		}
+		count.incrementAndGet();
+	}
+	
+	/**
+	 * Prints the throughput, the outcome of every login and query and the latency percentiles of the last run
+	 * @param _out The stream to print to
+	 */
+	public void report(PrintStream _out)
+	{
+		long operations = mOperations.get();
+		double seconds = mDuration / 1e9;
+		
+		_out.println("Mode: " + mMode.toString().toLowerCase() + (mMode == Mode.Open ? " at " + mRate + "/s" : "")
+				+ ", " + mThreads + " threads, " + mEncoding.toString().toLowerCase() + " encoding, " + seconds + "s measured");
+		_out.println(String.format("Throughput: %d operations, %.1f/s", operations, operations / seconds));
+		
+		_out.println("Logins:");
+		for(LoginResult.Response response : LoginResult.Response.values())
+		{
+			if(mResponses.get(response.ordinal()) > 0)
+				printCount(_out, response.toString(), mResponses.get(response.ordinal()), operations);
+		}
+		
+		_out.println("Queries:");
+		for(int i = 0; i < Queries.length; i++)
+		{
+			if(mAnswered.get(i) > 0)
+				printCount(_out, Queries[i] + ":answered", mAnswered.get(i), operations);
+		}
+		for(Map.Entry<String, AtomicLong> refused : new TreeMap<String, AtomicLong>(mRefused).entrySet())
+			printCount(_out, refused.getKey(), refused.getValue().get(), operations);
+		
+		if(!mErrors.isEmpty())
+		{
+			_out.println("Errors:");
+			for(Map.Entry<String, AtomicLong> error : new TreeMap<String, AtomicLong>(mErrors).entrySet())
+				printCount(_out, error.getKey(), error.getValue().get(), operations);
+		}
+		
+		boolean corrected = mMode == Mode.Open || mInterval > 0;
+		_out.println("Latency (ms)          p50      p90      p99    p99.9      max     mean");
+		printLatency(_out, corrected ? "corrected" : "uncorrected", mLatency);
+		printLatency(_out, "service time", mService);
+	}
+	
+	/**
+	 * Helper method to print a count and its share of the operations
+	 * @param _out The stream to print to
+	 * @param _name The name of the count
+	 * @param _count The count
+	 * @param _operations The number of operations measured
+	 */
+	private static void printCount(PrintStream _out, String _name, long _count, long _operations)
+	{
+		_out.println(String.format("  %-32s %10d %6.2f%%", _name, _count, 100.0 * _count / Math.max(1, _operations)));
+	}
+	
+	/**
+	 * Helper method to print the percentiles of a histogram on one line
+	 * @param _out The stream to print to
+	 * @param _name The name of the histogram
+	 * @param _histogram The histogram
+	 */
+	private static void printLatency(PrintStream _out, String _name, LatencyHistogram _histogram)
+	{
+		_out.println(String.format("  %-16s %8.3f %8.3f %8.3f %8.3f %8.3f %8.3f", _name,
+				_histogram.percentile(0.5) / 1e6, _histogram.percentile(0.9) / 1e6, _histogram.percentile(0.99) / 1e6,
+				_histogram.percentile(0.999) / 1e6, _histogram.max() / 1e6, _histogram.mean() / 1e6));
+	}
+	
+	/**
+	 * Helper method to parse a mix of weights of the form "a:b:c"
+	 * @param _value The value given on the command line
+	 * @param _count The number of weights expected
+	 * @return The weights
+	 */
+	private static int[] parseMix(String _value, int _count)
+	{
+		String[] parts = _value.split(":");
+		if(parts.length != _count)
+			throw new IllegalArgumentException("Expected " + _count + " weights separated by ':' but got '" + _value + "'");
+		
+		int[] weights = new int[_count];
+		int total = 0;
+		for(int i = 0; i < _count; i++)
+		{
+			weights[i] = Integer.parseInt(parts[i]);
+			if(weights[i] < 0)
+				throw new IllegalArgumentException("Weights must not be negative");
+			total += weights[i];
+		}
+		
+		if(total == 0)
+			throw new IllegalArgumentException("At least one weight must be positive");
+		return weights;
+	}
+	
+	public static void main(String[] args) throws InterruptedException
+	{
+		LoadGenerator load = new LoadGenerator("localhost", 28000);
+		boolean usersGiven = false;
+		
+		try {
+			for(String arg : args)
+			{
+				String[] parts = arg.split("=", 2);
+				String value = parts.length > 1 ? parts[1] : "";
+				
+				switch(parts[0])
+				{
+				case "--host":
+					load.mHost = value;
+					break;
+				case "--port":
+					load.mPort = Integer.parseInt(value);
+					break;
+				case "--encoding":
+					load.mEncoding = value.equalsIgnoreCase("binary") ? Client.Encoding.Binary : Client.Encoding.Text;
+					break;
+				case "--mode":
+					load.mMode = value.equalsIgnoreCase("open") ? Mode.Open : Mode.Closed;
+					break;
+				case "--threads":
+					load.mThreads = Integer.parseInt(value);
+					break;
+				case "--rate":
+					load.mRate = Double.parseDouble(value);
+					break;
+				case "--duration":
+					load.mDuration = TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+					break;
+				case "--warmup":
+					load.mWarmup = TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+					break;
+				case "--interval":
+					load.mInterval = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value));
+					break;
+				case "--mix":
+					load.mCredentialMix = parseMix(value, Credentials.values().length);
+					break;
+				case "--queries":
+					load.mQueryMix = parseMix(value, Queries.length);
+					break;
+				case "--user":
+					String[] user = value.split(":", 2);
+					if(user.length != 2)
+						throw new IllegalArgumentException("--user needs a username and secret as name:secret");
+					if(!usersGiven)
+						load.mUsers.clear();
+					load.mUsers.add(user);
+					usersGiven = true;
+					break;
+				case "--lock-user":
+					load.mLockUser = value;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option '" + arg + "'");
+				}
+			}
+			
+			if(load.mThreads < 1 || load.mDuration < 1)
+				throw new IllegalArgumentException("--threads and --duration must be at least 1");
+			if(load.mMode == Mode.Open && load.mRate <= 0)
+				throw new IllegalArgumentException("--mode=open needs a --rate of operations per second");
+			for(String[] user : load.mUsers)
+			{
+				if(user[0].equals(load.mLockUser))
+					throw new IllegalArgumentException("The lock user '" + load.mLockUser + "' cannot also have valid credentials");
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: LoadGenerator [--host=<host>] [--port=<port>] [--encoding=text|binary] [--mode=closed|open] [--rate=<operations/s>]");
+			System.err.println("                     [--threads=<n>] [--duration=<s>] [--warmup=<s>] [--interval=<expected us per operation, closed loop>]");
+			System.err.println("                     [--mix=<valid:invalid:locked>] [--queries=<fact:secret:users>] [--user=<name:secret>]... [--lock-user=<name>]");
+			return;
+		}
+		
+		load.run();
+		load.report(System.out);
+	}
+}
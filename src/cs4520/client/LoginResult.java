@@ -11,6 +11,9 @@ public class LoginResult {
 		IncorrectUsername,
 		IncorrectSecret,
 		UserIsLocked,
+		ServerBusy,
+		InvalidToken,
+		RateLimited,
 		InvalidResponse
 	}
 	
@@ -24,6 +27,7 @@ public class LoginResult {
 	private String mQueryResult;		// the result of the query sent to the server
 	private Response mResponse;			// the response from the server regarding the login credentials
 	private Level mLevel;				// the user privilege level according to the server upon login
+	private String mToken;				// the session token returned by the server upon login, if any
 	
 	/**
 	 * Constructor
@@ -32,10 +36,23 @@ public class LoginResult {
 	 * @param _level The user privilege level returned by the server upon login
 	 */
 	public LoginResult(Response _response, String _queryResult, Level _level)
+	{
+		this(_response, _queryResult, _level, null);
+	}
+	
+	/**
+	 * Constructor
+	 * @param _response The response from the server
+	 * @param _queryResult The query result from the server
+	 * @param _level The user privilege level returned by the server upon login
+	 * @param _token The session token returned by the server upon login
+	 */
+	public LoginResult(Response _response, String _queryResult, Level _level, String _token)
 	{
 		mResponse = _response;
 		mQueryResult = _queryResult;
 		mLevel = _level;
+		mToken = _token;
 	}
 	
 	/**
@@ -64,4 +81,13 @@ public class LoginResult {
 	{
 		return mLevel;
 	}
+	
+	/**
+	 * Getter method for the session token returned by the server, which can be used to log in again without the secret
+	 * @return The session token, or null if the login failed
+	 */
+	public String token()
+	{
+		return mToken;
+	}
 }
@@ -0,0 +1,14 @@
+package cs4520.client;
+
+import java.io.IOException;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Interface that receives the value of a query's response as it arrives, a large response (such as a page of
+ * the users listing) arrives in several parts and each is handed over as soon as it is read
+ */
+interface QueryListener {
+	// method called with each part of the response, the value is only valid until the method returns
+	public void onPart(CharSequence _value) throws IOException;
+}
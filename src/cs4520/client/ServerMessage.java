@@ -2,14 +2,36 @@ package cs4520.client;
 
 import java.util.*;
 
+import cs4520.protocol.*;
+
 /**
- * Class representing a message returned from the server
+ * Class representing a message returned from the server. A ServerMessage is a flyweight: it is parsed in
+ * place over the caller's text and may be reused for every message on a connection, after the first few
+ * messages parsing allocates nothing. The header, names and values it returns are views over the parsed
+ * text, valid only until the message is parsed again or the text is modified.
  * @author Oliver Maskery
  */
 public class ServerMessage {
-	public HashMap<String,String> mParameters;		// parameters as name/value pairs attached to this message
-	public String mOriginal;						// original message text unparsed
-	public String mHeader;							// the header of the message (plain string indicating message type)
+	private CharSequence mOriginal;		// the text being viewed, not copied
+	private StringBuilder mFrameText;	// text of the most recent binary frame, reused between frames
+	private int mHeaderEnd;				// index just past the header's last char
+	private int[] mBounds;				// name start, name end, value start and value end of each parameter, value start is -1 if there is no value
+	private int mCount;					// number of parameters in the message
+	private View mHeader;				// reusable view of the header
+	private View[] mNames;				// reusable views of each parameter's name
+	private View[] mValues;				// reusable views of each parameter's value
+	
+	/**
+	 * Constructor for an empty message, ready to be parsed
+	 */
+	public ServerMessage()
+	{
+		mBounds = new int[4 * 4];
+		mHeader = new View();
+		mNames = new View[0];
+		mValues = new View[0];
+		parse("");
+	}
 	
 	/**
 	 * Constructor
@@ -17,56 +39,145 @@ public class ServerMessage {
 	 */
 	public ServerMessage(String _text)
 	{
-		mParameters = new HashMap<String,String>();
+		this();
+		parse(_text);
+	}
+	
+	/**
+	 * Parses a message of the form "[header]:[name]=[value];[name]=[value]..." in place, replacing whatever
+	 * this object held before. Parameters without a name are skipped, a parameter without an '=' has a
+	 * null value and if a name appears more than once the last value wins.
+	 * @param _text The plain text sent from the server, it is viewed rather than copied so must not change while in use
+	 * @return This message, for chaining
+	 */
+	public ServerMessage parse(CharSequence _text)
+	{
 		mOriginal = _text;
-		mHeader = null;
-		
-		// split the header from the tail of the message
-		String[] parts = splitResponse(mOriginal);
+		mCount = 0;
 		
-		// check the message is long enough to even have a header
-		if(parts.length < 1) return;
+		int length = _text.length();
+		int position = indexOf(_text, ':', 0, length);
 		
-		mHeader = parts[0];
+		// without a ':' the whole message is the header
+		mHeaderEnd = position;
 		
-		// check the message is long enough to have a tail
-		if(parts.length < 2) return;
+		for(position++; position < length; position++)
+		{
+			int end = indexOf(_text, ';', position, length);
+			int equals = indexOf(_text, '=', position, end);
+			
+			// if there is nothing in this parameter skip it
+			if(equals > position)
+			{
+				if(equals < end)
+					addParameter(position, equals, equals + 1, end);
+				else
+					addParameter(position, end, -1, -1);
+			}
+			
+			position = end;
+		}
 		
-		// split the name and value in the parameter section
-		String[] params = splitParameters(parts[1]);
+		return this;
+	}
+	
+	/**
+	 * Parses a message that arrived as a binary frame, whose fields are name/value pairs. The frame's text
+	 * is decoded into a builder owned by this message so the frame's buffer may be reused straight away.
+	 * @param _frame The decoder holding the frame
+	 * @return This message, for chaining
+	 */
+	ServerMessage parse(FrameCodec _frame)
+	{
+		if(mFrameText == null)
+			mFrameText = new StringBuilder(256);
 		
-		// if there is nothing in tail abort (we technically already checked this with the last check... but alas)
-		if(params.length < 1) return;
+		StringBuilder text = mFrameText;
+		text.setLength(0);
+		mOriginal = text;
+		mCount = 0;
 		
-		// store name, but prepare a null in case the message is incomplete - in which case we store the name of the parameter but flag it as a null value
-		String name = params[0];
-		String value = null;
+		// the fields are laid out as the equivalent text message, so original() means the same for either encoding
+		text.append(_frame.opcode().header());
+		mHeaderEnd = text.length();
 		
-		// fetch the value for the name/value pair
-		if(params.length > 1)
+		for(int i = 0; i + 1 < _frame.fieldCount(); i += 2)
 		{
-			value = params[1];
+			text.append(i == 0 ? ':' : ';');
+			
+			int nameStart = text.length();
+			_frame.appendField(i, text);
+			int nameEnd = text.length();
+			text.append('=');
+			_frame.appendField(i + 1, text);
+			
+			addParameter(nameStart, nameEnd, nameEnd + 1, text.length());
 		}
 		
-		mParameters.put(name, value);
+		return this;
 	}
 	
 	/**
 	 * Getter for the original message text, unparsed and unmodified
 	 * @return The original text
 	 */
-	public String original()
+	public CharSequence original()
 	{
 		return mOriginal;
 	}
 	
 	/**
 	 * Getter for the message header identifying the type of message
-	 * @return The message header
+	 * @return A view of the message header
 	 */
-	public String header()
+	public CharSequence header()
 	{
-		return mHeader;
+		return mHeader.set(mOriginal, 0, mHeaderEnd);
+	}
+	
+	/**
+	 * Method for determining whether the message header matches the given type, ignoring case
+	 * @param _header The header being checked for
+	 * @return True if the header matches, false otherwise
+	 */
+	public boolean headerIs(CharSequence _header)
+	{
+		return regionEquals(0, mHeaderEnd, _header);
+	}
+	
+	/**
+	 * Getter for the number of parameters attached to this message
+	 * @return The number of parameters
+	 */
+	public int parameterCount()
+	{
+		return mCount;
+	}
+	
+	/**
+	 * Getter for the name of a parameter
+	 * @param _index The parameter's index, in the order the parameters appear
+	 * @return A view of the parameter's name
+	 */
+	public CharSequence name(int _index)
+	{
+		checkIndex(_index);
+		return mNames[_index].set(mOriginal, mBounds[4*_index], mBounds[4*_index + 1]);
+	}
+	
+	/**
+	 * Getter for the value of a parameter
+	 * @param _index The parameter's index, in the order the parameters appear
+	 * @return A view of the parameter's value, or null if the parameter has no value
+	 */
+	public CharSequence value(int _index)
+	{
+		checkIndex(_index);
+		
+		if(mBounds[4*_index + 2] < 0)
+			return null;
+		
+		return mValues[_index].set(mOriginal, mBounds[4*_index + 2], mBounds[4*_index + 3]);
 	}
 	
 	/**
@@ -74,38 +185,196 @@ public class ServerMessage {
 	 * @param _name The name of the parameter being checked for
 	 * @return Whether or not the parameter is present, true if so, false otherwise
 	 */
-	public boolean hasParameter(String _name)
+	public boolean hasParameter(CharSequence _name)
 	{
-		return mParameters.containsKey(_name);
+		return indexOf(_name) >= 0;
 	}
 	
 	/**
 	 * Getter for retrieving a parameter of a specified name
 	 * @param _name The name of the parameter to retrieve
-	 * @return The String value of the name/value pair requested, if no such name exists null is returned
+	 * @return A view of the value of the name/value pair requested, if no such name exists (or it has no value) null is returned
+	 */
+	public CharSequence parameter(CharSequence _name)
+	{
+		int index = indexOf(_name);
+		
+		return index < 0 ? null : value(index);
+	}
+	
+	/**
+	 * Getter for retrieving a parameter of a specified name as a String, for when one is really needed
+	 * @param _name The name of the parameter to retrieve
+	 * @return The String value of the name/value pair requested, if no such name exists (or it has no value) null is returned
+	 */
+	public String parameterString(CharSequence _name)
+	{
+		CharSequence value = parameter(_name);
+		
+		return value == null ? null : value.toString();
+	}
+	
+	/**
+	 * Finds the index of the parameter with a given name, searching from the end so the last value wins
+	 * @param _name The name of the parameter
+	 * @return The parameter's index, or -1 if there is no such parameter
+	 */
+	public int indexOf(CharSequence _name)
+	{
+		for(int i = mCount - 1; i >= 0; i--)
+		{
+			int start = mBounds[4*i];
+			int end = mBounds[4*i + 1];
+			
+			if(end - start != _name.length())
+				continue;
+			
+			boolean matches = true;
+			for(int c = 0; c < _name.length() && matches; c++)
+				matches = mOriginal.charAt(start + c) == _name.charAt(c);
+			
+			if(matches)
+				return i;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Returns the message text, so a message may be printed or logged
+	 */
+	public String toString()
+	{
+		return mOriginal.toString();
+	}
+	
+	/**
+	 * Helper method to record the bounds of a parameter, growing the tables only when a message has more
+	 * parameters than any before it
+	 * @param _nameStart Index of the name's first char
+	 * @param _nameEnd Index just past the name's last char
+	 * @param _valueStart Index of the value's first char, or -1 if there is no value
+	 * @param _valueEnd Index just past the value's last char
 	 */
-	public String parameter(String _name)
+	private void addParameter(int _nameStart, int _nameEnd, int _valueStart, int _valueEnd)
 	{
-		return mParameters.get(_name);
+		if(4 * (mCount + 1) > mBounds.length)
+			mBounds = Arrays.copyOf(mBounds, mBounds.length * 2);
+		
+		if(mCount == mNames.length)
+		{
+			mNames = Arrays.copyOf(mNames, mCount + 4);
+			mValues = Arrays.copyOf(mValues, mCount + 4);
+			for(int i = mCount; i < mNames.length; i++)
+			{
+				mNames[i] = new View();
+				mValues[i] = new View();
+			}
+		}
+		
+		mBounds[4*mCount] = _nameStart;
+		mBounds[4*mCount + 1] = _nameEnd;
+		mBounds[4*mCount + 2] = _valueStart;
+		mBounds[4*mCount + 3] = _valueEnd;
+		mCount++;
 	}
 	
 	/**
-	 * Split the response string of the form "[success]:[parameters]"
-	 * @param _response The string to be parsed
-	 * @return An array of tokens, should usually be of length 2
+	 * Helper method to compare part of the message with some text, ignoring case
+	 * @param _start Index of the part's first char
+	 * @param _end Index just past the part's last char
+	 * @param _text The text to compare with
+	 * @return True if the part matches the text
 	 */
-	private String[] splitResponse(String _response)
+	private boolean regionEquals(int _start, int _end, CharSequence _text)
 	{
-		return _response.split(":");
+		if(_end - _start != _text.length())
+			return false;
+		
+		for(int i = 0; i < _text.length(); i++)
+		{
+			char a = mOriginal.charAt(_start + i);
+			char b = _text.charAt(i);
+			
+			if(a != b && Character.toLowerCase(a) != Character.toLowerCase(b))
+				return false;
+		}
+		
+		return true;
 	}
 	
 	/**
-	 * Split the parameter string of the form "[parameter_name]=[parameter_value]"
-	 * @param _parameterString The parameter string to be parsed
-	 * @return An array of tokens, should usually be of length 2
+	 * Helper method to check a parameter index is in range
+	 * @param _index The index to check
 	 */
-	private String[] splitParameters(String _parameterString)
+	private void checkIndex(int _index)
 	{
-		return _parameterString.split("=");
+		if(_index < 0 || _index >= mCount)
+			throw new IndexOutOfBoundsException("parameter " + _index + " of " + mCount);
+	}
+	
+	/**
+	 * Helper method to find a char within part of some text
+	 * @param _text The text to search
+	 * @param _c The char to find
+	 * @param _from Index to start searching from
+	 * @param _to Index to stop searching at
+	 * @return The index of the char, or _to if it does not appear
+	 */
+	private static int indexOf(CharSequence _text, char _c, int _from, int _to)
+	{
+		for(int i = _from; i < _to; i++)
+		{
+			if(_text.charAt(i) == _c)
+				return i;
+		}
+		
+		return _to;
+	}
+	
+	/**
+	 * A reusable window onto part of the message text, repointed each time it is handed out
+	 */
+	private static class View implements CharSequence {
+		private CharSequence mSource;	// the text being viewed
+		private int mStart;				// index of the first char in view
+		private int mEnd;				// index just past the last char in view
+		
+		/**
+		 * Repoints this view
+		 * @param _source The text to view
+		 * @param _start Index of the first char in view
+		 * @param _end Index just past the last char in view
+		 * @return This view
+		 */
+		View set(CharSequence _source, int _start, int _end)
+		{
+			mSource = _source;
+			mStart = _start;
+			mEnd = _end;
+			return this;
+		}
+		
+		public int length()
+		{
+			return mEnd - mStart;
+		}
+		
+		public char charAt(int _index)
+		{
+			if(_index < 0 || _index >= mEnd - mStart)
+				throw new IndexOutOfBoundsException("index " + _index + " of " + (mEnd - mStart));
+			return mSource.charAt(mStart + _index);
+		}
+		
+		public CharSequence subSequence(int _start, int _end)
+		{
+			return mSource.subSequence(mStart + _start, mStart + _end);
+		}
+		
+		public String toString()
+		{
+			return mSource.subSequence(mStart, mEnd).toString();
+		}
 	}
 }
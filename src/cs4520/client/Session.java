@@ -0,0 +1,192 @@
+package cs4520.client;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Class representing a logged in session with the CS4520 server, which serves any number of queries over
+ * a single connection and a single login until it is closed
+ * @author Oliver Maskery
+ */
+public class Session implements Closeable {
+	private LoginResult mLogin;		// the result of logging in when the session was opened
+	private Client mClient;			// the client whose connection this session uses
+	private boolean mClosed;		// set once the session has been closed
+	
+	/**
+	 * Constructor, sessions are opened through Client.openSession
+	 * @param _client The client whose connection this session uses
+	 * @param _login The result of logging in
+	 */
+	Session(Client _client, LoginResult _login)
+	{
+		mClient = _client;
+		mLogin = _login;
+		mClosed = false;
+	}
+	
+	/**
+	 * Getter method for the result of logging in when this session was opened
+	 * @return The login result, including the privilege level and session token
+	 */
+	public LoginResult login()
+	{
+		return mLogin;
+	}
+	
+	/**
+	 * Method for determining whether the login succeeded and the session can serve queries
+	 * @return True if queries may be sent, false otherwise
+	 */
+	public boolean isValid()
+	{
+		return !mClosed && mLogin.response() == LoginResult.Response.ValidCredentials;
+	}
+	
+	/**
+	 * Performs a query and waits for its response
+	 * @param _query The query to perform
+	 * @return The query's result, or the reason it was refused
+	 * @throws IOException
+	 * @throws IllegalStateException If the login failed or the session has been closed
+	 */
+	public String query(String _query) throws IOException
+	{
+		if(!isValid())
+			throw new IllegalStateException("session is not logged in");
+		
+		return mClient.query(_query);
+	}
+	
+	/**
+	 * Checks the connection is still alive and logged in with a query the server answers without doing any work
+	 * @return True if the server answered, false if it refused
+	 * @throws IOException If the connection has failed
+	 * @throws IllegalStateException If the login failed or the session has been closed
+	 */
+	public boolean ping() throws IOException
+	{
+		return "pong".equals(query("ping"));
+	}
+	
+	/**
+	 * Performs several queries without waiting for each response before sending the next, which saves a
+	 * round trip per query
+	 * @param _queries The queries to perform, in order
+	 * @return Each query's result, or the reason it was refused, in the same order as the queries
+	 * @throws IOException
+	 * @throws IllegalStateException If the login failed or the session has been closed
+	 */
+	public List<String> pipeline(String... _queries) throws IOException
+	{
+		if(!isValid())
+			throw new IllegalStateException("session is not logged in");
+		
+		return mClient.pipeline(Arrays.asList(_queries));
+	}
+	
+	/**
+	 * Lists every user on the server (administrators only), paging through the listing with the cursor the
+	 * server returns so no single response is larger than a page. Users are handed to the listener as each
+	 * part of each page arrives.
+	 * @param _pageSize The most users to fetch per query, at most 1000
+	 * @param _listener The listener that receives each user
+	 * @return The number of users listed, or -1 if the server refused the listing
+	 * @throws IOException
+	 * @throws IllegalStateException If the login failed or the session has been closed
+	 */
+	public int listUsers(int _pageSize, final UserListener _listener) throws IOException
+	{
+		if(!isValid())
+			throw new IllegalStateException("session is not logged in");
+		
+		final int[] listed = { 0 };
+		QueryListener parts = new QueryListener() {
+			public void onPart(CharSequence _value) {
+				// each part is a list of "username|HASH" entries separated by ','
+				int start = 0;
+				while(start < _value.length())
+				{
+					int end = start;
+					int bar = -1;
+					while(end < _value.length() && _value.charAt(end) != ',')
+					{
+						if(_value.charAt(end) == '|')
+							bar = end;
+						end++;
+					}
+					
+					if(bar > start)
+					{
+						_listener.onUser(_value.subSequence(start, bar).toString(), _value.subSequence(bar + 1, end).toString());
+						listed[0]++;
+					}
+					start = end + 1;
+				}
+			}
+		};
+		
+		String cursor = null;
+		do
+		{
+			String query = "users limit=" + _pageSize + (cursor != null ? " after=" + cursor : "");
+			ServerMessage response = mClient.queryStream(query, parts);
+			
+			if(!response.headerIs("ack"))
+				return -1;
+			
+			cursor = response.parameterString("next");
+		} while(cursor != null);
+		
+		return listed[0];
+	}
+	
+	/**
+	 * Fetches the server's statistics (administrators only): connection counts, latency percentiles of each
+	 * phase of a request in microseconds, and counts of login outcomes and queries
+	 * @return The statistics by name in the order the server sent them, or null if the server refused them
+	 * @throws IOException
+	 * @throws IllegalStateException If the login failed or the session has been closed
+	 */
+	public Map<String, String> stats() throws IOException
+	{
+		if(!isValid())
+			throw new IllegalStateException("session is not logged in");
+		
+		ServerMessage response = mClient.queryStream("stats", new QueryListener() {
+			public void onPart(CharSequence _value) {
+				// the statistics are all in the final message
+			}
+		});
+		
+		if(!response.headerIs("ack"))
+			return null;
+		
+		Map<String, String> stats = new LinkedHashMap<String, String>();
+		for(int i = 0; i < response.parameterCount(); i++)
+		{
+			if(!response.name(i).toString().equals("stats"))
+				stats.put(response.name(i).toString(), String.valueOf(response.value(i)));
+		}
+		
+		return stats;
+	}
+	
+	/**
+	 * Closes the session, telling the server it can end the conversation before disconnecting
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		if(mClosed)
+			return;
+		
+		try {
+			if(isValid())
+				mClient.query("close");
+		} finally {
+			mClosed = true;
+			mClient.close();
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package cs4520.client;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Pool of logged in sessions to one CS4520 server, so that a caller making many requests pays for the TLS
+ * handshake and the key derivation of a login once per pooled session rather than once per request. Sessions
+ * are handed out by acquire, matched on the username and secret they logged in with, and handed back with
+ * release once the caller is done with them, or with invalidate if they failed.
+ *
+ * At most a fixed number of sessions are open to the target at once, whether idle or handed out. When the
+ * pool is full an idle session of another user is closed to make room, and if none is idle acquire waits for
+ * one to be released. A session that has sat idle for a while is pinged before it is handed out again, as the
+ * server may have dropped it, and one idle for longer than the idle timeout is closed in the background, well
+ * before the server's own idle limit would close it.
+ */
+public class SessionPool implements Closeable {
+	private String mTarget;				// the machine running the server
+	private int mPort;					// the port the server is listening on
+	private Client.Encoding mEncoding;	// whether sessions speak the text protocol or binary frames
+	private int mMaxSessions;			// most sessions open to the target at once, idle or handed out
+	private long mIdleTimeout;			// how long (in ms) a session may sit idle before it is closed
+	private long mValidateAfter;		// how long (in ms) a session may sit idle before it is pinged on being handed out
+	private long mAcquireTimeout;		// how long (in ms) acquire waits for a session when the pool is full
+	
+	private ReentrantLock mLock = new ReentrantLock();		// guards everything below
+	private Condition mReleased = mLock.newCondition();	// signalled whenever a session is released or closed
+	private ArrayDeque<Entry> mIdle = new ArrayDeque<Entry>();	// idle sessions, most recently released first
+	private IdentityHashMap<Session, Entry> mLeased = new IdentityHashMap<Session, Entry>();	// sessions handed out
+	private int mOpen;					// sessions open or being opened, idle or handed out
+	private long mCreated;				// sessions opened since the pool was created
+	private long mReused;				// times an idle session was handed out again
+	private boolean mClosed;			// set once the pool has been closed
+	private ScheduledExecutorService mEvictor;	// closes sessions that have been idle too long
+	
+	/**
+	 * Constructor for a pool of at most 8 text protocol sessions, each closed after a minute idle
+	 * @param _target The target to connect to, either an IP or hostname for the machine running the CS4520 server.
+	 * @param _port The port number the server is listening on
+	 */
+	public SessionPool(String _target, int _port)
+	{
+		this(_target, _port, Client.Encoding.Text, 8, 60*1000, 5*1000, 30*1000);
+	}
+	
+	/**
+	 * Constructor
+	 * @param _target The target to connect to, either an IP or hostname for the machine running the CS4520 server.
+	 * @param _port The port number the server is listening on
+	 * @param _encoding Whether sessions speak the text protocol or binary frames
+	 * @param _maxSessions The most sessions open to the target at once, idle or handed out
+	 * @param _idleTimeout How long (in ms) a session may sit idle before it is closed, less than the server's idle limit
+	 * @param _validateAfter How long (in ms) a session may sit idle before it is pinged on being handed out
+	 * @param _acquireTimeout How long (in ms) acquire waits for a session when the pool is full
+	 */
+	public SessionPool(String _target, int _port, Client.Encoding _encoding, int _maxSessions, long _idleTimeout,
+			long _validateAfter, long _acquireTimeout)
+	{
+		if(_maxSessions < 1 || _idleTimeout < 1)
+			throw new IllegalArgumentException("a pool needs at least one session and an idle timeout");
+		
+		mTarget = _target;
+		mPort = _port;
+		mEncoding = _encoding;
+		mMaxSessions = _maxSessions;
+		mIdleTimeout = _idleTimeout;
+		mValidateAfter = _validateAfter;
+		mAcquireTimeout = _acquireTimeout;
+		
+		mEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable _task) {
+				Thread thread = new Thread(_task, "session-pool-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		long period = Math.max(100, _idleTimeout / 2);
+		mEvictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Hands out a session logged in with the given credentials, reusing an idle one if there is one and
+	 * opening a new one otherwise. Hand it back with release, or with invalidate if it failed.
+	 * @param _username The username to log in with
+	 * @param _secret The 'secret' to log in with
+	 * @return The session, check Session.isValid() to see whether the login attempt was successful
+	 * @throws IOException If the session could not be opened, the pool stayed full for the acquire timeout or the pool is closed
+	 */
+	public Session acquire(String _username, String _secret) throws IOException
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mAcquireTimeout);
+		
+		while(true)
+		{
+			Entry reuse = null;
+			Entry victim = null;
+			
+			mLock.lock();
+			try {
+				while(true)
+				{
+					if(mClosed)
+						throw new IOException("session pool is closed");
+					
+					reuse = takeIdle(_username, _secret);
+					if(reuse != null)
+						break;
+					if(mOpen < mMaxSessions)
+					{
+						mOpen++;
+						break;
+					}
+					
+					// full, unless one of this user's sessions will soon be released the least recently used
+					// idle session of another user gives up its place
+					if(!isLeased(_username, _secret))
+					{
+						victim = mIdle.pollLast();
+						if(victim != null)
+							break;
+					}
+					
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0)
+						throw new IOException("no session to " + mTarget + ":" + mPort + " was released within " + mAcquireTimeout + "ms");
+					mReleased.awaitNanos(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for a session");
+			} finally {
+				mLock.unlock();
+			}
+			
+			if(victim != null)
+				closeQuietly(victim.mSession);
+			
+			if(reuse == null)
+				return open(_username, _secret);
+			
+			// a session that has sat idle for a while may have been dropped by the server
+			if(System.currentTimeMillis() - reuse.mIdleSince < mValidateAfter || ping(reuse.mSession))
+			{
+				mLock.lock();
+				try {
+					mReused++;
+					mLeased.put(reuse.mSession, reuse);
+				} finally {
+					mLock.unlock();
+				}
+				return reuse.mSession;
+			}
+			
+			closeQuietly(reuse.mSession);
+			forget();
+		}
+	}
+	
+	/**
+	 * Hands a session back to the pool once the caller is done with it, a session whose login failed is closed
+	 * @param _session A session handed out by acquire
+	 */
+	public void release(Session _session)
+	{
+		boolean close = false;
+		
+		mLock.lock();
+		try {
+			Entry entry = mLeased.remove(_session);
+			if(entry == null)
+			{
+				// a session whose login failed was never pooled and is already closed
+				if(_session.login().response() != LoginResult.Response.ValidCredentials)
+					return;
+				throw new IllegalArgumentException("session was not handed out by this pool");
+			}
+			
+			if(mClosed || !_session.isValid())
+			{
+				mOpen--;
+				close = true;
+			}
+			else
+			{
+				entry.mIdleSince = System.currentTimeMillis();
+				mIdle.addFirst(entry);
+			}
+			// waiters want sessions of different users, so every one of them has to look
+			mReleased.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+		
+		if(close)
+			closeQuietly(_session);
+	}
+	
+	/**
+	 * Hands back a session that failed, it is closed rather than handed out again
+	 * @param _session A session handed out by acquire
+	 */
+	public void invalidate(Session _session)
+	{
+		mLock.lock();
+		try {
+			if(mLeased.remove(_session) == null)
+				throw new IllegalArgumentException("session was not handed out by this pool");
+		} finally {
+			mLock.unlock();
+		}
+		
+		closeQuietly(_session);
+		forget();
+	}
+	
+	/**
+	 * Closes every idle session and stops handing sessions out, sessions still handed out are closed when released
+	 */
+	public void close()
+	{
+		List<Entry> idle;
+		
+		mLock.lock();
+		try {
+			mClosed = true;
+			idle = new ArrayList<Entry>(mIdle);
+			mIdle.clear();
+			mOpen -= idle.size();
+			mReleased.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+		
+		mEvictor.shutdownNow();
+		for(Entry entry : idle)
+			closeQuietly(entry.mSession);
+	}
+	
+	/**
+	 * Getter for the number of sessions open to the target, idle or handed out
+	 * @return The number of sessions
+	 */
+	public int open()
+	{
+		mLock.lock();
+		try {
+			return mOpen;
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * Getter for the number of sessions opened since the pool was created, each paid for a handshake and a login
+	 * @return The number of sessions opened
+	 */
+	public long created()
+	{
+		mLock.lock();
+		try {
+			return mCreated;
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * Getter for the number of times an idle session was handed out again rather than a new one opened
+	 * @return The number of reuses
+	 */
+	public long reused()
+	{
+		mLock.lock();
+		try {
+			return mReused;
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * Helper method to open a new session in a place already counted in mOpen
+	 * @param _username The username to log in with
+	 * @param _secret The 'secret' to log in with
+	 * @return The session, handed out if the login succeeded
+	 * @throws IOException
+	 */
+	private Session open(String _username, String _secret) throws IOException
+	{
+		Session session = null;
+		
+		try {
+			session = new Client(mTarget, mPort, mEncoding).openSession(_username, _secret);
+		} finally {
+			if(session == null)
+				forget();
+		}
+		
+		mLock.lock();
+		try {
+			mCreated++;
+			if(session.isValid())
+				mLeased.put(session, new Entry(_username, _secret, session));
+		} finally {
+			mLock.unlock();
+		}
+		
+		// a failed login is handed back as it is, as Client.openSession does, but never pooled
+		if(!session.isValid())
+		{
+			closeQuietly(session);
+			forget();
+		}
+		
+		return session;
+	}
+	
+	/**
+	 * Helper method to take the most recently released idle session with the given credentials, must hold mLock
+	 * @param _username The username the session must have logged in with
+	 * @param _secret The secret the session must have logged in with
+	 * @return The session's entry, or null if none is idle
+	 */
+	private Entry takeIdle(String _username, String _secret)
+	{
+		Iterator<Entry> entries = mIdle.iterator();
+		while(entries.hasNext())
+		{
+			Entry entry = entries.next();
+			if(entry.mUsername.equals(_username) && entry.mSecret.equals(_secret))
+			{
+				entries.remove();
+				return entry;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Helper method to check whether a session with the given credentials is handed out, must hold mLock
+	 * @param _username The username the session must have logged in with
+	 * @param _secret The secret the session must have logged in with
+	 * @return True if one is handed out and so will be released
+	 */
+	private boolean isLeased(String _username, String _secret)
+	{
+		for(Entry entry : mLeased.values())
+		{
+			if(entry.mUsername.equals(_username) && entry.mSecret.equals(_secret))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Helper method to give up the place of a session that has been closed
+	 */
+	private void forget()
+	{
+		mLock.lock();
+		try {
+			mOpen--;
+			mReleased.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * Closes every session that has been idle for longer than the idle timeout, run periodically by mEvictor
+	 */
+	private void evictIdle()
+	{
+		List<Entry> expired = new ArrayList<Entry>();
+		long cutoff = System.currentTimeMillis() - mIdleTimeout;
+		
+		mLock.lock();
+		try {
+			// the oldest idle sessions are at the back
+			while(!mIdle.isEmpty() && mIdle.peekLast().mIdleSince < cutoff)
+				expired.add(mIdle.pollLast());
+			
+			mOpen -= expired.size();
+			if(!expired.isEmpty())
+				mReleased.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+		
+		for(Entry entry : expired)
+			closeQuietly(entry.mSession);
+	}
+	
+	/**
+	 * Helper method to check an idle session is still alive
+	 * @param _session The session
+	 * @return True if the server answered a ping
+	 */
+	private static boolean ping(Session _session)
+	{
+		try {
+			return _session.ping();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Helper method to close a session, ignoring any failure as the session is being abandoned anyway
+	 * @param _session The session
+	 */
+	private static void closeQuietly(Session _session)
+	{
+		try {
+			_session.close();
+		} catch (IOException e) {
+			// the connection is being abandoned anyway
+		}
+	}
+	
+	/**
+	 * A pooled session and the credentials it logged in with
+	 */
+	private static class Entry {
+		private String mUsername;		// the username the session logged in with
+		private String mSecret;			// the secret the session logged in with
+		private Session mSession;		// the session
+		private long mIdleSince;		// when the session was last released, in ms
+		
+		/**
+		 * Constructor for Entry
+		 * @param _username The username the session logged in with
+		 * @param _secret The secret the session logged in with
+		 * @param _session The session
+		 */
+		Entry(String _username, String _secret, Session _session)
+		{
+			mUsername = _username;
+			mSecret = _secret;
+			mSession = _session;
+		}
+	}
+}
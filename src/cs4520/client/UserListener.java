@@ -0,0 +1,11 @@
+package cs4520.client;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Interface that receives each user of the server's user listing as it arrives, see Session.listUsers
+ */
+public interface UserListener {
+	// method called for each user listed, with their username and secret hash in hex
+	public void onUser(String _username, String _hash);
+}
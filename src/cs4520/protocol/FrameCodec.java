@@ -0,0 +1,456 @@
+package cs4520.protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Encoder/decoder for the compact binary framing of the CS4520 protocol. A connection opts in by sending
+ * Magic as its very first bytes (a text client never starts with a zero byte) and the server echoes it back.
+ * After that every message is a frame:
+ *
+ *   [varint body length][opcode byte]([varint field length][UTF-8 field bytes])*
+ *
+ * Encoding writes characters straight into the destination ByteBuffer. Decoding is done in place: a
+ * decoder instance is reused for every frame and only records where each field lies in the buffer, so
+ * no Strings are created unless the caller asks for one.
+ */
+public class FrameCodec {
+	public static final byte[] Magic = { 0, 'C', 'S', 1 };	// bytes a connection starts with to select binary framing
+	public static final int DefaultMaxFrameLength = 16 * 1024 * 1024;	// largest frame body accepted unless told otherwise
+	
+	private int mMaxFrameLength;		// largest frame body this decoder accepts
+	private ByteBuffer mBuffer;			// the buffer holding the most recently decoded frame
+	private ByteBuffer mReadBuffer;		// reusable buffer used when reading frames from a stream
+	private Opcode mOpcode;				// opcode of the most recently decoded frame
+	private int[] mOffsets = new int[8];	// absolute position of each field in mBuffer
+	private int[] mLengths = new int[8];	// length in bytes of each field
+	private int mFields;				// number of fields in the most recently decoded frame
+	
+	/**
+	 * Constructor for a decoder accepting frames up to DefaultMaxFrameLength
+	 */
+	public FrameCodec()
+	{
+		this(DefaultMaxFrameLength);
+	}
+	
+	/**
+	 * Constructor for FrameCodec
+	 * @param _maxFrameLength The largest frame body this decoder accepts, larger frames are treated as an error
+	 */
+	public FrameCodec(int _maxFrameLength)
+	{
+		mMaxFrameLength = _maxFrameLength;
+		mReadBuffer = ByteBuffer.allocate(256);
+	}
+	
+	/**
+	 * Calculates the number of bytes a frame will occupy once encoded, including its length prefix
+	 * @param _opcode The frame's opcode
+	 * @param _fields The frame's fields
+	 * @return The encoded size in bytes
+	 */
+	public static int frameLength(Opcode _opcode, CharSequence... _fields)
+	{
+		int body = bodyLength(_fields);
+		return varintLength(body) + body;
+	}
+	
+	/**
+	 * Encodes a frame into a buffer, which must have at least frameLength(...) bytes remaining
+	 * @param _out The buffer to encode into
+	 * @param _opcode The frame's opcode
+	 * @param _fields The frame's fields
+	 */
+	public static void encode(ByteBuffer _out, Opcode _opcode, CharSequence... _fields)
+	{
+		putVarint(_out, bodyLength(_fields));
+		_out.put((byte) _opcode.code());
+		
+		for(CharSequence field : _fields)
+		{
+			putVarint(_out, utf8Length(field));
+			putUtf8(_out, field);
+		}
+	}
+	
+	/**
+	 * Decodes the next frame from a buffer (in read mode) if it holds a complete one. On success the buffer's
+	 * position is moved past the frame, otherwise it is left untouched so more bytes can be appended.
+	 * The decoded fields are views into the buffer and remain valid until the buffer is next modified.
+	 * @param _in The buffer to decode from
+	 * @return True if a frame was decoded, false if the buffer does not yet hold a complete frame
+	 * @throws IOException If the frame is malformed or larger than this decoder accepts
+	 */
+	public boolean decode(ByteBuffer _in) throws IOException
+	{
+		int start = _in.position();
+		long body = 0;
+		int prefix = 0;
+		
+		// read the length prefix without consuming it, it may not have fully arrived yet
+		while(true)
+		{
+			if(start + prefix >= _in.limit())
+				return false;
+			
+			byte b = _in.get(start + prefix);
+			body |= (long) (b & 0x7F) << (7 * prefix);
+			prefix++;
+			
+			if((b & 0x80) == 0)
+				break;
+			if(prefix > 4)
+				throw new IOException("frame length prefix is too long");
+		}
+		
+		if(body < 1 || body > mMaxFrameLength)
+			throw new IOException("frame length " + body + " is out of range");
+		
+		if(_in.limit() - (start + prefix) < body)
+			return false;
+		
+		int bodyStart = start + prefix;
+		int bodyEnd = bodyStart + (int) body;
+		decodeBody(_in, bodyStart, bodyEnd);
+		_in.position(bodyEnd);
+		return true;
+	}
+	
+	/**
+	 * Reads and decodes the next frame from a blocking stream
+	 * @param _in The stream to read from
+	 * @return True if a frame was read, false if the stream ended cleanly before the next frame
+	 * @throws IOException If the stream ends part way through a frame or the frame is malformed
+	 */
+	public boolean read(InputStream _in) throws IOException
+	{
+		long body = 0;
+		
+		for(int prefix = 0; ; prefix++)
+		{
+			int b = _in.read();
+			
+			if(b < 0)
+			{
+				if(prefix == 0)
+					return false;
+				throw new EOFException("stream ended inside a frame length prefix");
+			}
+			if(prefix > 4)
+				throw new IOException("frame length prefix is too long");
+			
+			body |= (long) (b & 0x7F) << (7 * prefix);
+			if((b & 0x80) == 0)
+				break;
+		}
+		
+		if(body < 1 || body > mMaxFrameLength)
+			throw new IOException("frame length " + body + " is out of range");
+		
+		if(mReadBuffer.capacity() < body)
+			mReadBuffer = ByteBuffer.allocate(Integer.highestOneBit((int) body) << 1);
+		
+		byte[] bytes = mReadBuffer.array();
+		int read = 0;
+		while(read < body)
+		{
+			int n = _in.read(bytes, read, (int) body - read);
+			if(n < 0)
+				throw new EOFException("stream ended inside a frame");
+			read += n;
+		}
+		
+		mReadBuffer.clear();
+		decodeBody(mReadBuffer, 0, (int) body);
+		return true;
+	}
+	
+	/**
+	 * Getter for the opcode of the most recently decoded frame
+	 * @return The opcode
+	 */
+	public Opcode opcode()
+	{
+		return mOpcode;
+	}
+	
+	/**
+	 * Getter for the number of fields in the most recently decoded frame
+	 * @return The number of fields
+	 */
+	public int fieldCount()
+	{
+		return mFields;
+	}
+	
+	/**
+	 * Getter for the length in bytes of one of the most recently decoded frame's fields
+	 * @param _index The field's index
+	 * @return The field's length
+	 */
+	public int fieldLength(int _index)
+	{
+		checkIndex(_index);
+		return mLengths[_index];
+	}
+	
+	/**
+	 * Returns a read-only view of one of the most recently decoded frame's fields, no bytes are copied
+	 * @param _index The field's index
+	 * @return A buffer whose remaining bytes are the field's UTF-8 bytes
+	 */
+	public ByteBuffer field(int _index)
+	{
+		checkIndex(_index);
+		ByteBuffer view = mBuffer.asReadOnlyBuffer();
+		view.limit(mOffsets[_index] + mLengths[_index]);
+		view.position(mOffsets[_index]);
+		return view;
+	}
+	
+	/**
+	 * Compares one of the most recently decoded frame's fields with some text without creating a String
+	 * @param _index The field's index
+	 * @param _text The text to compare with
+	 * @return True if the field holds exactly the given text
+	 */
+	public boolean fieldEquals(int _index, CharSequence _text)
+	{
+		checkIndex(_index);
+		
+		if(utf8Length(_text) != mLengths[_index])
+			return false;
+		
+		// ASCII fast path compares byte by byte, anything else falls back to decoding the field
+		int offset = mOffsets[_index];
+		for(int i = 0; i < _text.length(); i++)
+		{
+			char c = _text.charAt(i);
+			if(c >= 0x80)
+				return fieldString(_index).contentEquals(_text);
+			if(mBuffer.get(offset + i) != (byte) c)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Decodes one of the most recently decoded frame's fields into a String, for when one is really needed
+	 * @param _index The field's index
+	 * @return The field's text
+	 */
+	public String fieldString(int _index)
+	{
+		checkIndex(_index);
+		
+		if(mBuffer.hasArray())
+			return new String(mBuffer.array(), mBuffer.arrayOffset() + mOffsets[_index], mLengths[_index], StandardCharsets.UTF_8);
+		
+		byte[] bytes = new byte[mLengths[_index]];
+		for(int i = 0; i < bytes.length; i++)
+			bytes[i] = mBuffer.get(mOffsets[_index] + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Decodes one of the most recently decoded frame's fields onto the end of a StringBuilder, which lets a
+	 * reader reuse one builder for every frame instead of creating a String per field
+	 * @param _index The field's index
+	 * @param _out The builder to append to
+	 */
+	public void appendField(int _index, StringBuilder _out)
+	{
+		checkIndex(_index);
+		
+		// ASCII fast path appends byte by byte, anything else falls back to decoding the field
+		int offset = mOffsets[_index];
+		for(int i = 0; i < mLengths[_index]; i++)
+		{
+			if(mBuffer.get(offset + i) < 0)
+			{
+				_out.append(fieldString(_index));
+				return;
+			}
+		}
+		
+		for(int i = 0; i < mLengths[_index]; i++)
+			_out.append((char) mBuffer.get(offset + i));
+	}
+	
+	/**
+	 * Helper method to record the opcode and field positions of a frame body
+	 * @param _buffer The buffer holding the body
+	 * @param _start The absolute position of the body's first byte
+	 * @param _end The absolute position just past the body's last byte
+	 * @throws IOException If the body is malformed
+	 */
+	private void decodeBody(ByteBuffer _buffer, int _start, int _end) throws IOException
+	{
+		mOpcode = Opcode.forCode(_buffer.get(_start));
+		if(mOpcode == null)
+			throw new IOException("unknown opcode " + (_buffer.get(_start) & 0xFF));
+		
+		mFields = 0;
+		int position = _start + 1;
+		
+		while(position < _end)
+		{
+			// read the field's length prefix
+			int length = 0;
+			for(int shift = 0; ; shift += 7)
+			{
+				if(position >= _end || shift > 28)
+					throw new IOException("malformed field length");
+				byte b = _buffer.get(position++);
+				length |= (b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					break;
+			}
+			
+			if(length < 0 || length > _end - position)
+				throw new IOException("field overruns its frame");
+			
+			if(mFields == mOffsets.length)
+			{
+				mOffsets = Arrays.copyOf(mOffsets, mFields * 2);
+				mLengths = Arrays.copyOf(mLengths, mFields * 2);
+			}
+			
+			mOffsets[mFields] = position;
+			mLengths[mFields] = length;
+			mFields++;
+			position += length;
+		}
+		
+		mBuffer = _buffer;
+	}
+	
+	/**
+	 * Helper method to check a field index against the most recently decoded frame
+	 * @param _index The field's index
+	 */
+	private void checkIndex(int _index)
+	{
+		if(_index < 0 || _index >= mFields)
+			throw new IndexOutOfBoundsException("field " + _index + " of " + mFields);
+	}
+	
+	/**
+	 * Helper method to calculate the length of a frame body (opcode and fields)
+	 * @param _fields The frame's fields
+	 * @return The body length in bytes
+	 */
+	private static int bodyLength(CharSequence[] _fields)
+	{
+		int body = 1;
+		for(CharSequence field : _fields)
+		{
+			int length = utf8Length(field);
+			body += varintLength(length) + length;
+		}
+		return body;
+	}
+	
+	/**
+	 * Helper method to calculate how many bytes a value occupies as a varint
+	 * @param _value The value, which must not be negative
+	 * @return The number of bytes
+	 */
+	private static int varintLength(int _value)
+	{
+		int length = 1;
+		while((_value >>>= 7) != 0)
+			length++;
+		return length;
+	}
+	
+	/**
+	 * Helper method to write a non-negative value as a little endian base 128 varint
+	 * @param _out The buffer to write to
+	 * @param _value The value
+	 */
+	private static void putVarint(ByteBuffer _out, int _value)
+	{
+		while((_value & ~0x7F) != 0)
+		{
+			_out.put((byte) ((_value & 0x7F) | 0x80));
+			_value >>>= 7;
+		}
+		_out.put((byte) _value);
+	}
+	
+	/**
+	 * Helper method to calculate the UTF-8 encoded length of some text
+	 * @param _text The text
+	 * @return The number of bytes
+	 */
+	private static int utf8Length(CharSequence _text)
+	{
+		int length = 0;
+		for(int i = 0; i < _text.length(); i++)
+		{
+			char c = _text.charAt(i);
+			if(c < 0x80)
+				length += 1;
+			else if(c < 0x800)
+				length += 2;
+			else if(Character.isHighSurrogate(c) && i + 1 < _text.length() && Character.isLowSurrogate(_text.charAt(i + 1)))
+			{
+				length += 4;
+				i++;
+			}
+			else
+				length += 3;
+		}
+		return length;
+	}
+	
+	/**
+	 * Helper method to write text as UTF-8 directly into a buffer, unpaired surrogates are written as U+FFFD
+	 * @param _out The buffer to write to
+	 * @param _text The text
+	 */
+	private static void putUtf8(ByteBuffer _out, CharSequence _text)
+	{
+		for(int i = 0; i < _text.length(); i++)
+		{
+			char c = _text.charAt(i);
+			if(c < 0x80)
+			{
+				_out.put((byte) c);
+			}
+			else if(c < 0x800)
+			{
+				_out.put((byte) (0xC0 | (c >> 6)));
+				_out.put((byte) (0x80 | (c & 0x3F)));
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < _text.length() && Character.isLowSurrogate(_text.charAt(i + 1)))
+			{
+				int cp = Character.toCodePoint(c, _text.charAt(++i));
+				_out.put((byte) (0xF0 | (cp >> 18)));
+				_out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				_out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				_out.put((byte) (0x80 | (cp & 0x3F)));
+			}
+			else if(Character.isSurrogate(c))
+			{
+				// an unpaired surrogate becomes U+FFFD, which is the 3 bytes utf8Length counted for it
+				_out.put((byte) 0xEF);
+				_out.put((byte) 0xBF);
+				_out.put((byte) 0xBD);
+			}
+			else
+			{
+				_out.put((byte) (0xE0 | (c >> 12)));
+				_out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				_out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package cs4520.protocol;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Enumeration of the message types of the CS4520 protocol, each has a one byte code used by the binary
+ * framing and a header used by the original text protocol
+ */
+public enum Opcode
+{
+	// client to server
+	Login(0x01, "login"),		// fields: username, secret
+	Token(0x02, "token"),		// fields: session token
+	Query(0x03, "query"),		// fields: the query text
+	Close(0x04, "close"),		// no fields, ends the session
+	
+	// server to client, fields are name/value pairs
+	Valid(0x10, "valid"),
+	Invalid(0x11, "invalid"),
+	Ack(0x12, "ack"),
+	Part(0x13, "part");		// one of several messages answering a single query, the last is an Ack
+	
+	private static final Opcode[] mByCode = new Opcode[256];	// lookup table from code to opcode
+	
+	static
+	{
+		for(Opcode opcode : values())
+			mByCode[opcode.mCode] = opcode;
+	}
+	
+	private final int mCode;		// the byte identifying this opcode on the wire
+	private final String mHeader;	// the header identifying this message in the text protocol
+	
+	private Opcode(int _code, String _header)
+	{
+		mCode = _code;
+		mHeader = _header;
+	}
+	
+	/**
+	 * Getter for the byte identifying this opcode in a binary frame
+	 * @return The opcode's code
+	 */
+	public int code()
+	{
+		return mCode;
+	}
+	
+	/**
+	 * Getter for the header identifying this message in the text protocol
+	 * @return The text header
+	 */
+	public String header()
+	{
+		return mHeader;
+	}
+	
+	/**
+	 * Looks up an opcode by its code
+	 * @param _code The code read from a frame
+	 * @return The matching opcode, or null if the code is not recognised
+	 */
+	public static Opcode forCode(int _code)
+	{
+		return mByCode[_code & 0xFF];
+	}
+}
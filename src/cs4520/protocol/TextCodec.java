@@ -0,0 +1,32 @@
+package cs4520.protocol;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Formatter for the original newline delimited text protocol, whose messages take the form
+ * "[header]:[name]=[value];[name]=[value]..."
+ */
+public class TextCodec {
+	private TextCodec() { }
+	
+	/**
+	 * Formats a server message as a line of text (without the line terminator)
+	 * @param _opcode The type of message
+	 * @param _fields Name/value pairs, alternating names and values
+	 * @return The formatted line
+	 */
+	public static String format(Opcode _opcode, CharSequence... _fields)
+	{
+		StringBuilder line = new StringBuilder(64);
+		line.append(_opcode.header()).append(':');
+		
+		for(int i = 0; i + 1 < _fields.length; i += 2)
+		{
+			if(i > 0)
+				line.append(';');
+			line.append(_fields[i]).append('=').append(_fields[i + 1]);
+		}
+		
+		return line.toString();
+	}
+}
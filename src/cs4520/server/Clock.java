@@ -0,0 +1,26 @@
+package cs4520.server;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Interface supplying the current time to everything the server schedules, so that a TimerWheel and the
+ * lockouts and tokens it expires can be driven by a fake clock instead of waiting for real time to pass
+ */
+public interface Clock {
+	// the clock the server normally runs on, read straight from System
+	public static final Clock Default = new Clock() {
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+		
+		public long millis() {
+			return System.currentTimeMillis();
+		}
+	};
+	
+	// method called to read the monotonic time in ns from an arbitrary origin, used to measure waits
+	public long nanoTime();
+	
+	// method called to read the wall clock time in ms since the epoch, used for times that outlive a restart
+	public long millis();
+}
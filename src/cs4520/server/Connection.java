@@ -3,52 +3,112 @@ package cs4520.server;
 import java.util.*;
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.*;
+
+import javax.net.ssl.SSLSocket;
+
+import cs4520.protocol.*;
 
 /**
  * @author oliver
  *
  * Object to handle a connection to the CS4520 server, handlers user login and serving of 'secret data'
  */
-public class Connection implements Runnable {
+public class Connection implements Runnable, Link, Drainable {
 	
-	private static long mNextID = 1;	// static variable used to provide unique ID to each connection, in case that becomes useful
+	private static AtomicLong mNextID = new AtomicLong(1);	// static variable used to provide unique ID to each connection, in case that becomes useful
 	
 	// list of all external objects awaiting notification of this Connection's completion
 	private ArrayList<CompletionListener> mListeners = new ArrayList<CompletionListener>();
-	private BufferedReader mReader;		// used for reading from the client socket
+	private BufferedInputStream mInput;	// used for reading from the client socket
+	private BufferedReader mReader;		// used for reading lines from the client socket, if it speaks the text protocol
 	private PrintStream mWriter;		// used for writing to the client socket
-	private UserManager mUsers;			// reference to a UserManager for querying user credentials
+	private FrameCodec mFrames;			// used for decoding frames from the client, if it negotiated binary framing
+	private ByteBuffer mFrameOut;		// reusable buffer that binary replies are encoded into
+	private ArrayDeque<String> mLines = new ArrayDeque<String>();	// lines translated from frames, not yet read
+	private ServerContext mServer;		// reference to the server's shared state, including the UserManager
+	private Conversation mPending;		// the conversation waiting for the client's next line, if any
+	private Reaper.Phase mPhase;		// the phase of the protocol the pending conversation's line completes, if it has a deadline
+	private Reaper.Watch mWatch;		// closes the socket if the client misses the deadline of its phase
+	private long mUnreported;			// bytes read from the socket since the watch was last told
+	private volatile long mWaitingSince;	// when the client was last waited on, in ns
+	private volatile boolean mSevered;	// set once the socket has been closed under this connection's thread, by the reaper or a shutdown
+	private volatile boolean mDraining;	// set once the server has asked this connection to finish
+	private final AtomicBoolean mIdle = new AtomicBoolean();	// set while waiting for a request the client has not begun to send
 	private Socket mClient;				// socket connection to remote client
-	private Thread mThread;				// thread object for asynchronously handling client's requests
 	private long mID;					// this connection's unique ID
+	private long mOpened;				// when the client connected, in ns
+	private EventLog mLog;				// the server's log
+	private ServerMetrics mMetrics;		// the server's instrumentation
 	
 	/**
 	 * Constructor for Connection
 	 * @param _client The client that this connection represents
+	 * @param _server The server's shared state
 	 * @throws IOException
 	 */
-	public Connection(Socket _client, UserManager _users) throws IOException
+	public Connection(Socket _client, ServerContext _server) throws IOException
 	{
-		// Create a thread to handle this Connection
-		mThread = new Thread(this);
 		mClient = _client;
-		// store reference to user manager
-		mUsers = _users;
+		// store reference to the server's shared state
+		mServer = _server;
 		// Allocate a unique ID to this connection
-		mID = mNextID ++;
+		mID = nextID();
+		mOpened = System.nanoTime();
+		mLog = _server.log();
+		mMetrics = _server.metrics();
+		mMetrics.connectionOpened();
+		mWatch = _server.reaper().watch(new ReapListener() {
+			public void onReap(Reaper.Phase _phase, boolean _tooSlow) {
+				reap(_phase, _tooSlow);
+			}
+		});
 		
-		// Configure the socket read/write objects
-		mReader = new BufferedReader(new InputStreamReader(mClient.getInputStream()));
-		mWriter = new PrintStream(mClient.getOutputStream());
+		// Configure the socket read/write objects, the reader is chosen once the client's encoding is known.
+		// Bytes are counted on their way in, and only reported once more are needed to finish the line, so
+		// only a line that is still incomplete starts its minimum rate.
+		mInput = new BufferedInputStream(new FilterInputStream(mClient.getInputStream()) {
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+			}
+			
+			public int read(byte[] _buffer, int _offset, int _length) throws IOException {
+				if(mUnreported > 0)
+				{
+					mWatch.received(mUnreported);
+					mUnreported = 0;
+				}
+				
+				int read = super.read(_buffer, _offset, _length);
+				if(read > 0)
+					mUnreported += read;
+				return read;
+			}
+		});
+		// replies are buffered and flushed once per batch of requests, see threadRun
+		mWriter = new PrintStream(new BufferedOutputStream(mClient.getOutputStream(), 16 * 1024));
 	}
 	
 	/**
-	 * Starts this connection's asynchronous handling of the client's requests
+	 * Starts this connection's asynchronous handling of the client's requests on a new platform thread
 	 */
 	public void start()
 	{
-		System.out.println(this.toString() + ": connected - starting thread");
-		mThread.start();
+		start(ConnectionThreads.create(ConnectionThreads.Strategy.Platform, 0));
+	}
+	
+	/**
+	 * Starts this connection's asynchronous handling of the client's requests
+	 * @param _executor The executor that provides the thread this connection runs on
+	 */
+	public void start(Executor _executor)
+	{
+		mLog.event(EventLog.Level.Info, this, "connect", "accepted", -1);
+		_executor.execute(this);
 	}
 	
 	/**
@@ -70,7 +130,8 @@ public class Connection implements Runnable {
 	}
 	
 	/**
-	 * Method for transmitting a line of text to the client
+	 * Method for queueing a line of text for the client, it is sent with the rest of its batch when the
+	 * connection next waits for the client
 	 * @param _line The line of text to be transmitted
 	 */
 	public void tx(String _line)
@@ -79,13 +140,49 @@ public class Connection implements Runnable {
 	}
 	
 	/**
-	 * Method for reading one line of text from the client, blocks until received
+	 * Method for sending a message to the client in whichever encoding it negotiated
+	 * @param _opcode The type of message
+	 * @param _fields Name/value pairs, alternating names and values
+	 */
+	public void reply(Opcode _opcode, CharSequence... _fields)
+	{
+		if(mFrames == null)
+		{
+			tx(TextCodec.format(_opcode, _fields));
+			return;
+		}
+		
+		int length = FrameCodec.frameLength(_opcode, _fields);
+		if(mFrameOut.capacity() < length)
+			mFrameOut = ByteBuffer.allocate(length);
+		
+		mFrameOut.clear();
+		FrameCodec.encode(mFrameOut, _opcode, _fields);
+		mWriter.write(mFrameOut.array(), 0, mFrameOut.position());
+	}
+	
+	/**
+	 * Method for reading one line of text from the client, blocks until received. A client using binary
+	 * framing has its frames translated into the equivalent lines.
 	 * @return The message sent by the client
 	 * @throws IOException
 	 */
 	public String rx() throws IOException
 	{
-		return mReader.readLine();
+		if(mReader == null && mFrames == null)
+			negotiate();
+		
+		if(mFrames == null)
+			return mReader.readLine();
+		
+		while(mLines.isEmpty())
+		{
+			if(!mFrames.read(mInput))
+				return null;
+			Protocol.translate(mFrames, mLines);
+		}
+		
+		return mLines.poll();
 	}
 	
 	/**
@@ -96,17 +193,21 @@ public class Connection implements Runnable {
 		try {
 			// call helper method to talk to client
 			threadRun();
-			// perform cleanup
+			// perform cleanup, flushing the last replies and sending close_notify are timed like any other reply
+			reply();
 			mWriter.close();
-			mReader.close();
+			mInput.close();
 			mClient.close();
 		} catch (Exception e) {
-			System.err.println(this.toString() + ": exception in thread:");
-			e.printStackTrace(System.err);
+			// a reaped or aborted client's socket was closed under it, which is expected
+			if(!mSevered)
+				mLog.error(this, "connection", e);
 		}
 		
+		mWatch.stop();
 		// notify listeners of this Connection's completion
-		System.out.println(this.toString() + ": thread ending");
+		mMetrics.connectionClosed();
+		mLog.event(EventLog.Level.Info, this, "disconnect", "closed", System.nanoTime() - mOpened);
 		for(CompletionListener cl : mListeners)
 			cl.onCompletion(this);
 	}
@@ -117,161 +218,227 @@ public class Connection implements Runnable {
 	 */
 	private void threadRun() throws IOException
 	{
-		// Start a conversation with the client
-		Conversation loginUsername = createLoginConversation();
-		// Expect the client to send the first message message
-		loginUsername.expect(); //change to start, send public key to client
+		// the handshake would happen on the first read anyway, doing it up front lets it be timed on its own
+		if(mClient instanceof SSLSocket)
+		{
+			// a client still handshaking has not asked for anything yet, so a drain may close it straight away
+			mIdle.set(true);
+			if(mDraining && mIdle.compareAndSet(true, false))
+				return;
+			
+			mWaitingSince = mOpened;
+			mWatch.start(Reaper.Phase.Handshake);
+			((SSLSocket) mClient).startHandshake();
+			mWatch.stop();
+			if(!mIdle.compareAndSet(true, false))
+				return;
+			mMetrics.record(ServerMetrics.Phase.Handshake, System.nanoTime() - mOpened);
+		}
+		
+		// Run the login/query protocol over this connection, the client's first read finds out which encoding it speaks
+		reply();
+		new Protocol(this, mServer).begin();
 		
+		// Hand each line to whichever conversation is waiting for it, looping rather than recursing so that
+		// a long session of queries does not grow the stack
+		while(mPending != null)
+		{
+			Conversation conversation = mPending;
+			mPending = null;
+			
+			// a client may pipeline several requests, only flush the replies once every request it has already
+			// sent has been answered, so a batch of replies goes out in as few TLS records as possible
+			boolean more = clientHasMore();
+			if(!more)
+			{
+				mWriter.flush();
+				// bytes already read belonged to lines that have been handled, not the one about to be read
+				mUnreported = 0;
+			}
+			
+			// a draining connection is finished with between requests, unless the client has already sent its next one
+			boolean idle = !more && (mPhase == Reaper.Phase.Username || mPhase == Reaper.Phase.Query);
+			if(idle)
+			{
+				mIdle.set(true);
+				if(mDraining && mIdle.compareAndSet(true, false))
+					break;
+			}
+			
+			String line;
+			long waiting = System.nanoTime();
+			mWaitingSince = waiting;
+			if(mPhase != null)
+				mWatch.start(mPhase);
+			else
+				mWatch.stop();
+			try {
+				line = rx();
+			} catch (IOException e) {
+				// a reaped or aborted client's read fails once its socket is closed, the conversation simply ends
+				if(mSevered)
+					break;
+				throw e;
+			} finally {
+				mWatch.stop();
+			}
+			
+			// a null line means the client has disconnected, so the conversation simply ends, and a severed
+			// client's line is whatever had arrived before its socket was closed
+			if(line == null || mSevered || (idle && !mIdle.compareAndSet(true, false)))
+				break;
+			
+			mMetrics.record(ServerMetrics.Phase.Read, System.nanoTime() - waiting);
+			reply();
+			conversation.respond(line);
+		}
 	}
 	
 	/**
-	 * Helper method to create a Conversation object that expects a username message from the client
-	 * @return The Conversation object used to talk to the client
+	 * Helper method to start the deadline for writing the replies to a request, which lasts until the connection
+	 * next waits for the client or closes. Replies are written as the buffer fills and flushed before the next
+	 * read, and a client that has stopped reading them would block either write forever.
 	 */
-	private Conversation createLoginConversation()
+	private void reply()
 	{
-		return new Conversation(this, new ResponseListener() {
-			public void onResponse(Conversation _conversation, String _message) throws IOException {
-				// Continue the conversation by expecting a 'secret' from the client, now we have the username
-				Conversation loginPassword = createValidateConversation(_message);
-				// Expect the 'secret' from the client
-				loginPassword.expect();
-			}
-		});
+		mWaitingSince = System.nanoTime();
+		mWatch.start(Reaper.Phase.Reply);
 	}
 	
 	/**
-	 * Helper method to create a Conversation object that expects a password message from the client before
-	 * validating the provided credentials
-	 * @param _username The username obtained from the previous step of the conversation
-	 * @return The Conversation object used to talk to the client
+	 * Helper method that peeks at the client's first bytes: the binary magic selects binary framing (which is
+	 * acknowledged by echoing the magic), anything else is the start of a text username
+	 * @throws IOException
 	 */
-	private Conversation createValidateConversation(final String _username)
+	private void negotiate() throws IOException
 	{
-		return new Conversation(this, new ResponseListener() {
-			public void onResponse(Conversation _conversation, String _message) throws IOException {
-				Conversation query = validateLoginAttempt(_username, _message);
-				
-				if(query != null)
-				{
-					query.expect();
-				}
-			}
-		});
+		mInput.mark(1);
+		int first = mInput.read();
+		
+		if(first != FrameCodec.Magic[0])
+		{
+			mInput.reset();
+			mReader = new BufferedReader(new InputStreamReader(mInput));
+			return;
+		}
+		
+		byte[] magic = new byte[FrameCodec.Magic.length];
+		magic[0] = (byte) first;
+		new DataInputStream(mInput).readFully(magic, 1, magic.length - 1);
+		
+		if(!Arrays.equals(magic, FrameCodec.Magic))
+			throw new IOException("unrecognised binary protocol magic");
+		
+		mFrames = new FrameCodec(Protocol.MaxRequestLength);
+		mFrameOut = ByteBuffer.allocate(256);
+		mWriter.write(FrameCodec.Magic, 0, FrameCodec.Magic.length);
 	}
 	
 	/**
-	 * Method that validates login information and responds to the client appropriately
-	 * @param _username The username provided by the client
-	 * @param _secret The secret provided by the client
+	 * Helper method to check whether the client has already sent more than has been handled
+	 * @return True if a request is already buffered
+	 * @throws IOException
 	 */
-	private Conversation validateLoginAttempt(String _username, String _secret)
+	private boolean clientHasMore() throws IOException
 	{
-		// validate the credentials
-		UserManager.ValidationResult result = mUsers.validateLogin(_username, _secret);
-		boolean valid = (result == UserManager.ValidationResult.ValidCredentials);
+		if(mReader == null && mFrames == null)
+			return mInput.available() > 0;
 		
-		String successString = valid? "successfully identified" : "failed to identify";
-		System.out.println(this.toString() + ": " + successString + " as '" + _username + "' with secret '" + _secret + "'");
+		if(mFrames == null)
+			return mReader.ready();
 		
-		Conversation nextConversation = null;
+		return !mLines.isEmpty() || mInput.available() > 0;
+	}
+	
+	/**
+	 * Records the conversation waiting for the client's next line, this connection's thread reads the line
+	 * and hands it over once the current conversation returns
+	 * @param _conversation The conversation expecting the client's next line
+	 * @param _phase The phase of the protocol the line completes, or null to wait indefinitely
+	 */
+	public void receive(Conversation _conversation, Reaper.Phase _phase)
+	{
+		mPending = _conversation;
+		mPhase = _phase;
+	}
+	
+	/**
+	 * Closes the socket of a client that has missed its deadline, called on the reaper's thread while this
+	 * connection's own thread is blocked reading from or writing to the client, which the close wakes
+	 * @param _phase The phase the client was in
+	 * @param _tooSlow True if the client was sending a request too slowly, false if the phase ran out of time
+	 */
+	private void reap(Reaper.Phase _phase, boolean _tooSlow)
+	{
+		mLog.event(EventLog.Level.Info, this, _phase.toString().toLowerCase(), _tooSlow ? "too-slow" : "timeout",
+				System.nanoTime() - mWaitingSince);
 		
-		if(valid)
-		{
-			User user = mUsers.getUser(_username);
-			// tell the client they were successful, include their privelage level
-			tx("valid:level=" + user.level().toString());
-			
-			nextConversation = handleValidatedRequest(user);
-		}
-		else
+		// closing waits to send close_notify behind the write this thread is stuck in, unless the socket is
+		// reset instead, which a client that is not reading will not miss
+		if(_phase == Reaper.Phase.Reply)
 		{
-			// tell the client they failed to login, provide the reason
-			tx("invalid:reason=" + result.toString());
+			try {
+				mClient.setSoLinger(true, 0);
+			} catch (IOException e) {
+				// the close below still wakes the thread once the write gives up
+			}
 		}
+		sever();
+	}
+	
+	/**
+	 * Asks the connection to finish, a connection waiting for a request the client has not begun to send
+	 * is closed at once, otherwise it closes once it has answered the request it is handling
+	 */
+	public void drain()
+	{
+		mDraining = true;
 		
-		return nextConversation;
+		// whichever of this and the connection's own thread clears the flag decides whether the wait goes ahead
+		if(mIdle.compareAndSet(true, false))
+			sever();
 	}
 	
 	/**
-	 * Method that handles a request from a validated (logged in) user
-	 * @param _user The user that is making this request
-	 * @return The conversation object that will handle the request
+	 * Closes the connection at once, whatever it is doing
 	 */
-	private Conversation handleValidatedRequest(final User _user)
+	public void abort()
 	{
-		return new Conversation(this, new ResponseListener() {
-			public void onResponse(Conversation _conversation, String _response) throws IOException {
-				String[] tokens = _response.split(" ");
-				String handled = null;
-				
-				if(tokens.length < 1)
-				{
-					tx("invalid:reason=MalformedRequest");
-					return;
-				}
-				
-				handled = tokens[0].toLowerCase();
-				switch(handled)
-				{
-				case "fact":
-					tx("ack:fact=this_is_the_best_program_ever");
-					break;
-				case "secret":
-					if(_user.level() == User.Level.User || _user.level() == User.Level.Administrator)
-					{
-						tx("ack:secret=" + getSecretData());
-					}
-					else
-					{
-						tx("invalid:reason=PermissionDenied");
-					}
-					break;
-				case "users":
-					if(_user.level() == User.Level.Administrator)
-					{
-						tx("ack:users=" + mUsers.getUserData());
-					}
-					else
-					{
-						tx("invalid:reason=PermissionDenied");
-					}
-					break;
-				default:
-					tx("invalid:reason=InvalidRequest");
-					handled = null;
-					break;
-				}
-				
-				if(handled != null)
-				{
-					System.out.println(_conversation.tagname() + ": served '" + handled + "' query");
-				}
-				else
-				{
-					System.out.println(_conversation.tagname() + ": rejected invalid '" + tokens[0] + "' query");
-				}
-			}
-		});
+		sever();
 	}
 	
 	/**
-	 * Fetch the super secret data that must never be shared, it contains many secrets. Deep, dark secrets. So secret, and meaningful.
-	 * @return Can't tell you. Shh.
+	 * Helper method to close the socket from another thread, waking this connection's thread if it is blocked on the client
 	 */
-	private String getSecretData()
+	private void sever()
 	{
-		Random generator = new Random();
-		String secretData = "";
+		mSevered = true;
 		
-		String alphabet = "0123456789ABCDEF";
-		
-		for(int i = 0; i < 20; i++)
-		{
-			secretData += alphabet.charAt(generator.nextInt(alphabet.length()));
+		try {
+			mClient.close();
+		} catch (IOException e) {
+			// the client is being dropped either way
 		}
-		
-		return secretData;
+	}
+	
+	/**
+	 * Allocates a unique ID for a new connection, shared by both the blocking and non-blocking connection types
+	 * @return The allocated ID
+	 */
+	static long nextID()
+	{
+		return mNextID.getAndIncrement();
+	}
+	
+	/**
+	 * Blocks until the asynchronous work completes, then continues the conversation on this connection's thread
+	 * @param _future The pending result
+	 * @param _listener The listener to hand the result to
+	 * @throws IOException
+	 */
+	public <T> void resume(CompletableFuture<T> _future, ResultListener<T> _listener) throws IOException
+	{
+		_listener.onResult(_future.join());
 	}
 	
 	public String ip()
@@ -279,6 +446,11 @@ public class Connection implements Runnable {
 		return ((InetSocketAddress) mClient.getRemoteSocketAddress()).getHostString();
 	}
 	
+	public long id()
+	{
+		return mID;
+	}
+	
 	@Override
 	public String toString()
 	{
@@ -0,0 +1,180 @@
+package cs4520.server;
+
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Registry of every connection the server has open, shared by the accept loop that adds connections and the
+ * connection threads or event loops that remove them as they finish. Adding and removing are both O(1) and
+ * need no lock. The registry also caps the number of connections, refusing new clients at accept time once
+ * the cap is reached, and winds the server down gracefully by draining every connection it holds.
+ *
+ * A connection is first admitted, which counts it against the cap before anything is spent on it, then
+ * added once it has been created, and removed once it has finished.
+ */
+public class ConnectionRegistry {
+	private static final long AbortGrace = TimeUnit.SECONDS.toNanos(1);	// how long aborted connections are given to close
+	
+	private final Set<Drainable> mConnections = ConcurrentHashMap.newKeySet();	// every connection added and not yet removed
+	private final AtomicInteger mAdmitted = new AtomicInteger();	// connections admitted and not yet removed, including any still being created
+	private final AtomicLong mRefused = new AtomicLong();			// clients refused because the cap was reached or the server was draining
+	private final int mMaxConnections;	// most connections open at once
+	private volatile boolean mDraining;	// set once the server has begun shutting down
+	
+	/**
+	 * Constructor for ConnectionRegistry
+	 * @param _maxConnections Most connections open at once
+	 */
+	public ConnectionRegistry(int _maxConnections)
+	{
+		mMaxConnections = _maxConnections;
+	}
+	
+	/**
+	 * Counts a newly accepted client against the cap, called before its connection is created
+	 * @return True if the client may be served, false if it should be disconnected straight away
+	 */
+	public boolean admit()
+	{
+		if(!mDraining)
+		{
+			if(mAdmitted.incrementAndGet() <= mMaxConnections)
+				return true;
+			release();
+		}
+		
+		mRefused.incrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Gives back the place of a client that was admitted but whose connection could not be created
+	 */
+	public void cancel()
+	{
+		release();
+	}
+	
+	/**
+	 * Adds the connection of an admitted client
+	 * @param _connection The connection
+	 */
+	public void add(Drainable _connection)
+	{
+		mConnections.add(_connection);
+		
+		// a connection added as the drain began may have been missed by it
+		if(mDraining)
+			_connection.drain();
+	}
+	
+	/**
+	 * Removes a connection that has finished, giving back its place
+	 * @param _connection The connection
+	 */
+	public void remove(Drainable _connection)
+	{
+		if(mConnections.remove(_connection))
+			release();
+	}
+	
+	/**
+	 * Refuses every client from now on, the first step of draining, which the server takes before it stops accepting
+	 */
+	public void refuseAll()
+	{
+		mDraining = true;
+	}
+	
+	/**
+	 * Checks whether the server has begun shutting down
+	 * @return True once drain has been called
+	 */
+	public boolean draining()
+	{
+		return mDraining;
+	}
+	
+	/**
+	 * Getter for the number of connections open
+	 * @return The number of connections admitted and not yet finished
+	 */
+	public int size()
+	{
+		return mAdmitted.get();
+	}
+	
+	/**
+	 * Getter for the number of clients refused
+	 * @return The number of clients disconnected at accept time
+	 */
+	public long refused()
+	{
+		return mRefused.get();
+	}
+	
+	/**
+	 * Drains every connection: from now on every client is refused, connections finish the request they
+	 * are handling and close, and whatever is still open when the limit runs out is aborted. Blocks until
+	 * every connection has finished or the limit has run out.
+	 * @param _limit How long (in ms) connections may take to finish
+	 * @return True if every connection finished in time, false if some had to be aborted
+	 */
+	public boolean drain(long _limit)
+	{
+		refuseAll();
+		
+		for(Drainable connection : mConnections)
+			connection.drain();
+		
+		if(await(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_limit)))
+			return true;
+		
+		// aborting only closes each socket, the connections still finish on their own threads or loops
+		for(Drainable connection : mConnections)
+			connection.abort();
+		await(System.nanoTime() + AbortGrace);
+		return false;
+	}
+	
+	/**
+	 * Helper method to wait for every connection to finish
+	 * @param _deadline When (in ns) to give up waiting
+	 * @return True if every connection finished
+	 */
+	private boolean await(long _deadline)
+	{
+		synchronized(this)
+		{
+			long left;
+			while(mAdmitted.get() > 0 && (left = _deadline - System.nanoTime()) > 0)
+			{
+				try {
+					wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		
+		return mAdmitted.get() == 0;
+	}
+	
+	/**
+	 * Helper method to give back a place, waking a drain waiting for the last connection to finish
+	 */
+	private void release()
+	{
+		if(mAdmitted.decrementAndGet() == 0 && mDraining)
+		{
+			synchronized(this)
+			{
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package cs4520.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Factory for the executors that run blocking Connections, each strategy trades memory per client
+ * against how many clients can be served at once
+ */
+public class ConnectionThreads {
+	public enum Strategy
+	{
+		Platform,		// a new platform thread per connection (the original behaviour)
+		Pool,			// a fixed number of platform threads, further connections queue until one is free
+		Virtual			// a new virtual thread per connection, cheap enough for tens of thousands of idle clients
+	}
+	
+	private ConnectionThreads() { }
+	
+	/**
+	 * Creates an executor implementing the given strategy
+	 * @param _strategy The threading strategy to use
+	 * @param _poolSize The number of threads in the pool, only used by the Pool strategy
+	 * @return An executor that runs each submitted Connection
+	 * @throws IllegalStateException If virtual threads were requested but the JVM does not support them
+	 */
+	public static Executor create(Strategy _strategy, int _poolSize)
+	{
+		switch(_strategy)
+		{
+		case Pool:
+			return Executors.newFixedThreadPool(_poolSize, namedFactory("connection-pool-"));
+		case Virtual:
+			return virtualThreadPerTask();
+		default:
+			return new Executor() {
+				public void execute(Runnable _task) {
+					new Thread(_task).start();
+				}
+			};
+		}
+	}
+	
+	/**
+	 * Helper method to create a thread factory that numbers the threads it creates
+	 * @param _prefix The prefix of each thread's name
+	 * @return The thread factory
+	 */
+	private static ThreadFactory namedFactory(final String _prefix)
+	{
+		return new ThreadFactory() {
+			private int mNext = 0;
+			
+			public synchronized Thread newThread(Runnable _task) {
+				return new Thread(_task, _prefix + (mNext++));
+			}
+		};
+	}
+	
+	/**
+	 * Helper method to create a virtual thread per task executor, looked up reflectively so the server
+	 * still builds and runs (with the other strategies) on JVMs older than Java 21
+	 * @return The executor
+	 */
+	private static Executor virtualThreadPerTask()
+	{
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("virtual threads require Java 21 or later, running on " + System.getProperty("java.version"), e);
+		}
+	}
+}
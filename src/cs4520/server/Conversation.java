@@ -10,14 +10,14 @@ import java.io.IOException;
  */
 public class Conversation {
 	private ResponseListener mListener;		// the response object to handle the client's response
-	private Connection mClient;				// the client to talk to
+	private Link mClient;					// the client to talk to
 	
 	/**
 	 * Conversation constructor
 	 * @param _client The client to talk to
 	 * @param _listener The listener that will handle the client's response
 	 */
-	public Conversation(Connection _client, ResponseListener _listener)
+	public Conversation(Link _client, ResponseListener _listener)
 	{
 		mListener = _listener;
 		mClient = _client;
@@ -40,10 +40,29 @@ public class Conversation {
 	 */
 	public void expect() throws IOException
 	{
-		String response = mClient.rx();
-		
+		expect(null);
+	}
+	
+	/**
+	 * Waits for the client to send a message before letting the response be handled by the response handler,
+	 * giving up on the client if it takes longer than the phase allows
+	 * @param _phase The phase of the protocol the message completes, or null to wait indefinitely
+	 * @throws IOException
+	 */
+	public void expect(Reaper.Phase _phase) throws IOException
+	{
+		mClient.receive(this, _phase);
+	}
+	
+	/**
+	 * Called by the link once the client's message has arrived, lets the response handler deal with it
+	 * @param _response The message sent by the client
+	 * @throws IOException
+	 */
+	public void respond(String _response) throws IOException
+	{
 		if(mListener != null)
-			mListener.onResponse(this, response);
+			mListener.onResponse(this, _response);
 	}
 	
 	/**
@@ -0,0 +1,16 @@
+package cs4520.server;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Interface representing a connection the server can wind down, implemented by both the blocking and
+ * non-blocking connection types so the ConnectionRegistry can drain either
+ */
+public interface Drainable {
+	// method called when the server begins shutting down, the connection finishes the request it is
+	// handling and then closes, or closes straight away if it is waiting on an idle client
+	public void drain();
+	
+	// method called once the drain deadline has passed, the connection closes at once whatever it is doing
+	public void abort();
+}
@@ -0,0 +1,525 @@
+package cs4520.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Oliver Maskery
+ *
+ * The server's log, recording structured events (connection, ip, phase, outcome, duration and any further
+ * name/value fields) without making the threads that report them wait on I/O. Events are copied into a
+ * fixed ring of reusable slots: reporting threads claim a slot with a compare-and-set and publish it through
+ * a per-slot sequence number, so nobody ever takes a lock. A background thread formats the published events
+ * in batches as "name=value" lines and writes each batch with a single write, to stdout or to a file that is
+ * rotated once it grows too large. If the writer falls so far behind that the ring is full, events are
+ * dropped and counted rather than blocking the server. Fields that hold credentials are redacted as they
+ * are reported, so their values never reach the ring.
+ */
+public class EventLog {
+	public enum Level
+	{
+		Debug,		// detail only wanted while investigating a problem
+		Info,		// the normal life of connections and sessions
+		Warn,		// something went wrong for one client but the server carried on
+		Error		// something went wrong that the operator should look at
+	}
+	
+	private static final int Capacity = 8192;			// events that may wait for the writer, a power of two
+	private static final int MaxFields = 8;				// name/value pairs kept per event, further pairs are ignored
+	private static final int BatchLimit = 512;			// events formatted before a batch is written out
+	private static final long IdleWait = TimeUnit.MILLISECONDS.toNanos(5);	// how long the writer sleeps when there is nothing to write
+	private static final String Redacted = "***";		// written in place of a redacted value
+	private static final Set<String> RedactedFields = new HashSet<String>(Arrays.asList("secret", "token", "password"));
+	
+	private final Level mLevel;							// least severe level that is recorded
+	private final Slot[] mSlots;						// reusable events, indexed by position & mMask
+	private final AtomicLongArray mSequence;			// per slot: position + 1 once published, position + Capacity once written
+	private final int mMask;							// Capacity - 1
+	private final AtomicLong mTail = new AtomicLong();	// position of the next slot to claim
+	private long mHead;									// position of the next slot to write, only used by the writer
+	private final AtomicLong mDropped = new AtomicLong();	// events dropped because the ring was full
+	private long mReportedDrops;						// drops already reported in the log, only used by the writer
+	private volatile long mFailed;						// events lost because they could not be written, only written by the writer
+	
+	private final Path mFile;							// file being written to, or null for stdout
+	private final long mMaxSize;						// size (in bytes) at which the file is rotated
+	private final int mMaxFiles;						// number of rotated files kept alongside the current one
+	private Writer mOut;								// where formatted batches are written, null while a failure has left the file closed
+	private long mWritten;								// bytes in the current file
+	private final Thread mWriter;						// background thread that drains the ring
+	private volatile boolean mClosing;					// set once the log has been asked to finish up
+	
+	/**
+	 * Constructor for a log written to stdout
+	 * @param _level The least severe level to record
+	 */
+	public EventLog(Level _level)
+	{
+		this(_level, null, new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 0, 0, 0);
+	}
+	
+	/**
+	 * Constructor for a log written to a rotating file, which is appended to if it already exists
+	 * @param _level The least severe level to record
+	 * @param _file The file to write to, rotated files are named after it with a suffix of .1, .2 and so on
+	 * @param _maxSize The size (in bytes) at which the file is rotated
+	 * @param _maxFiles The number of rotated files to keep, the oldest is deleted when another is rotated out
+	 * @throws IOException If the file cannot be opened
+	 */
+	public EventLog(Level _level, Path _file, long _maxSize, int _maxFiles) throws IOException
+	{
+		// the file is opened (and so created) before its size is taken
+		this(_level, _file, open(_file), Files.size(_file), _maxSize, _maxFiles);
+	}
+	
+	/**
+	 * Constructor shared by the others, starts the writer thread
+	 * @param _level The least severe level to record
+	 * @param _file The file being written to, or null
+	 * @param _out Where to write formatted events
+	 * @param _written The bytes already in the file
+	 * @param _maxSize The size at which the file is rotated
+	 * @param _maxFiles The number of rotated files to keep
+	 */
+	private EventLog(Level _level, Path _file, Writer _out, long _written, long _maxSize, int _maxFiles)
+	{
+		mLevel = _level;
+		mFile = _file;
+		mOut = _out;
+		mWritten = _written;
+		mMaxSize = _maxSize;
+		mMaxFiles = _maxFiles;
+		
+		mSlots = new Slot[Capacity];
+		mSequence = new AtomicLongArray(Capacity);
+		mMask = Capacity - 1;
+		for(int i = 0; i < Capacity; i++)
+		{
+			mSlots[i] = new Slot();
+			mSequence.set(i, i);
+		}
+		
+		mWriter = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "log-writer");
+		mWriter.setDaemon(true);
+		mWriter.start();
+	}
+	
+	/**
+	 * Checks whether events of a level are recorded, so a caller can skip building an expensive event
+	 * @param _level The level to check
+	 * @return True if events of that level are recorded
+	 */
+	public boolean isEnabled(Level _level)
+	{
+		return _level.compareTo(mLevel) >= 0;
+	}
+	
+	/**
+	 * Records an event about one client's connection
+	 * @param _level How severe the event is
+	 * @param _link The client the event concerns, or null for an event about the server as a whole
+	 * @param _phase Which part of the client's life the event belongs to, such as "login" or "query"
+	 * @param _outcome What happened
+	 * @param _duration How long (in ns) the phase took, or -1 if it has no duration
+	 * @param _fields Further name/value pairs, alternating names and values
+	 */
+	public void event(Level _level, Link _link, String _phase, String _outcome, long _duration, String... _fields)
+	{
+		if(isEnabled(_level))
+			publish(_level, _link, _phase, _outcome, _duration, null, _fields);
+	}
+	
+	/**
+	 * Records an event about the server as a whole at the Info level
+	 * @param _phase Which part of the server's life the event belongs to
+	 * @param _outcome What happened
+	 * @param _fields Further name/value pairs, alternating names and values
+	 */
+	public void info(String _phase, String _outcome, String... _fields)
+	{
+		event(Level.Info, null, _phase, _outcome, -1, _fields);
+	}
+	
+	/**
+	 * Records an exception at the Error level, its stack trace is written after the event
+	 * @param _link The client the exception concerns, or null for one about the server as a whole
+	 * @param _phase Which part of the client's or server's life the exception interrupted
+	 * @param _error The exception
+	 */
+	public void error(Link _link, String _phase, Throwable _error)
+	{
+		if(isEnabled(Level.Error))
+			publish(Level.Error, _link, _phase, "exception", -1, _error, new String[0]);
+	}
+	
+	/**
+	 * Getter for the number of events dropped because the writer could not keep up
+	 * @return The number of dropped events
+	 */
+	public long dropped()
+	{
+		return mDropped.get();
+	}
+	
+	/**
+	 * Getter for the number of events lost because the file or stdout could not be written
+	 * @return The number of failed events
+	 */
+	public long failed()
+	{
+		return mFailed;
+	}
+	
+	/**
+	 * Writes out every event already recorded and closes the log, events recorded afterwards are lost
+	 */
+	public void close()
+	{
+		mClosing = true;
+		LockSupport.unpark(mWriter);
+		
+		try {
+			mWriter.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Helper method to copy an event into the ring, or drop it if the ring is full
+	 */
+	private void publish(Level _level, Link _link, String _phase, String _outcome, long _duration, Throwable _error, String[] _fields)
+	{
+		long position;
+		int index;
+		
+		while(true)
+		{
+			position = mTail.get();
+			index = (int) position & mMask;
+			long sequence = mSequence.get(index);
+			
+			// the slot still holds an event from a lap ago that the writer has not reached
+			if(sequence < position)
+			{
+				mDropped.incrementAndGet();
+				return;
+			}
+			
+			// otherwise another thread claimed the slot first and the tail has moved on
+			if(sequence == position && mTail.compareAndSet(position, position + 1))
+				break;
+		}
+		
+		Slot slot = mSlots[index];
+		slot.mTime = System.currentTimeMillis();
+		slot.mLevel = _level;
+		slot.mConnection = _link == null ? -1 : _link.id();
+		slot.mIP = _link == null ? null : _link.ip();
+		slot.mPhase = _phase;
+		slot.mOutcome = _outcome;
+		slot.mDuration = _duration;
+		slot.mError = _error;
+		
+		int count = Math.min(_fields.length / 2, MaxFields);
+		for(int i = 0; i < count; i++)
+		{
+			String name = _fields[2*i];
+			slot.mFields[2*i] = name;
+			slot.mFields[2*i + 1] = RedactedFields.contains(name) ? Redacted : _fields[2*i + 1];
+		}
+		slot.mFieldCount = count;
+		
+		// publishing the sequence hands the slot, and everything written to it above, to the writer
+		mSequence.set(index, position + 1);
+	}
+	
+	/**
+	 * The writer's loop, writes batches of events until the log is closed
+	 */
+	private void writeLoop()
+	{
+		StringBuilder batch = new StringBuilder(64 * 1024);
+		
+		while(true)
+		{
+			// read before draining, so every event published before close() is written
+			boolean closing = mClosing;
+			
+			batch.setLength(0);
+			int count = drain(batch);
+			
+			if(count > 0)
+				write(batch, count);
+			else if(closing)
+				break;
+			else
+				LockSupport.parkNanos(this, IdleWait);
+		}
+		
+		try {
+			if(mFile == null)
+				mOut.flush();
+			else if(mOut != null)
+				mOut.close();
+		} catch (IOException e) {
+			// nowhere left to report it
+		}
+	}
+	
+	/**
+	 * Helper method to format published events, oldest first, freeing their slots for reuse
+	 * @param _batch The builder to format the events into
+	 * @return The number of events formatted
+	 */
+	private int drain(StringBuilder _batch)
+	{
+		int count = 0;
+		
+		long dropped = mDropped.get();
+		if(dropped != mReportedDrops)
+		{
+			_batch.append(Instant.ofEpochMilli(System.currentTimeMillis())).append(' ').append(Level.Warn.name().toUpperCase());
+			_batch.append(" phase=log outcome=dropped events=").append(dropped - mReportedDrops).append('\n');
+			mReportedDrops = dropped;
+			count++;
+		}
+		
+		while(count < BatchLimit)
+		{
+			int index = (int) mHead & mMask;
+			if(mSequence.get(index) != mHead + 1)
+				break;
+			
+			Slot slot = mSlots[index];
+			format(slot, _batch);
+			slot.clear();
+			
+			mSequence.set(index, mHead + Capacity);
+			mHead++;
+			count++;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Helper method to format one event as a line of "name=value" pairs
+	 * @param _slot The event
+	 * @param _out The builder to append the line to
+	 */
+	private static void format(Slot _slot, StringBuilder _out)
+	{
+		_out.append(Instant.ofEpochMilli(_slot.mTime)).append(' ').append(_slot.mLevel.name().toUpperCase());
+		
+		if(_slot.mConnection >= 0)
+			_out.append(" conn=").append(_slot.mConnection);
+		if(_slot.mIP != null)
+			appendPair(_out, "ip", _slot.mIP);
+		appendPair(_out, "phase", _slot.mPhase);
+		appendPair(_out, "outcome", _slot.mOutcome);
+		if(_slot.mDuration >= 0)
+			_out.append(" duration_us=").append(_slot.mDuration / 1000);
+		
+		for(int i = 0; i < _slot.mFieldCount; i++)
+			appendPair(_out, _slot.mFields[2*i], _slot.mFields[2*i + 1]);
+		
+		_out.append('\n');
+		
+		if(_slot.mError != null)
+		{
+			StringWriter trace = new StringWriter();
+			_slot.mError.printStackTrace(new PrintWriter(trace));
+			_out.append(trace);
+		}
+	}
+	
+	/**
+	 * Helper method to append " name=value", quoting the value if it would otherwise be ambiguous
+	 * @param _out The builder to append to
+	 * @param _name The name
+	 * @param _value The value, null is written as an empty quoted value
+	 */
+	private static void appendPair(StringBuilder _out, String _name, String _value)
+	{
+		_out.append(' ').append(_name).append('=');
+		
+		if(_value == null)
+		{
+			_out.append("\"\"");
+			return;
+		}
+		
+		boolean quote = _value.isEmpty();
+		for(int i = 0; i < _value.length() && !quote; i++)
+		{
+			char c = _value.charAt(i);
+			quote = c <= ' ' || c == '"' || c == '=';
+		}
+		
+		if(!quote)
+		{
+			_out.append(_value);
+			return;
+		}
+		
+		_out.append('"');
+		for(int i = 0; i < _value.length(); i++)
+		{
+			char c = _value.charAt(i);
+			if(c == '"' || c == '\\')
+				_out.append('\\').append(c);
+			else if(c == '\n')
+				_out.append("\\n");
+			else if(c < ' ')
+				_out.append(' ');
+			else
+				_out.append(c);
+		}
+		_out.append('"');
+	}
+	
+	/**
+	 * Helper method to write a formatted batch and rotate the file if it has grown too large
+	 * @param _batch The formatted events
+	 * @param _count The number of events in the batch
+	 */
+	private void write(StringBuilder _batch, int _count)
+	{
+		try {
+			// a file left closed by an earlier failure is opened again, so one bad moment does not end the log
+			if(mOut == null)
+				reopen();
+			mOut.append(_batch);
+			mOut.flush();
+		} catch (IOException e) {
+			// the log cannot report its own failure, so lost events are counted for ServerStats instead
+			mFailed += _count;
+			discard();
+			return;
+		}
+		
+		// the log is ASCII apart from the odd username, so chars are near enough to bytes
+		mWritten += _batch.length();
+		if(mFile != null && mWritten >= mMaxSize)
+		{
+			try {
+				rotate();
+			} catch (IOException e) {
+				// nothing has been lost, the file is opened again for the next batch, which retries the rotation
+				discard();
+			}
+		}
+	}
+	
+	/**
+	 * Helper method to open the log file again after a failure left it closed, carrying on from its current size
+	 * @throws IOException If the file cannot be opened
+	 */
+	private void reopen() throws IOException
+	{
+		mOut = open(mFile);
+		mWritten = Files.size(mFile);
+	}
+	
+	/**
+	 * Helper method to close the log file after a failure, so the next batch opens it afresh rather than
+	 * writing through a writer that may still hold part of the failed batch. Standard output cannot be
+	 * opened again, so it is kept.
+	 */
+	private void discard()
+	{
+		if(mFile == null || mOut == null)
+			return;
+		
+		try {
+			mOut.close();
+		} catch (IOException e) {
+			// the file is closed regardless
+		}
+		mOut = null;
+	}
+	
+	/**
+	 * Helper method to move the current file aside as .1 (shifting older files up one and deleting the
+	 * oldest) and start a new one
+	 * @throws IOException
+	 */
+	private void rotate() throws IOException
+	{
+		mOut.close();
+		mOut = null;
+		
+		for(int i = mMaxFiles - 1; i >= 1; i--)
+		{
+			Path older = rotated(i);
+			if(Files.exists(older))
+				Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.move(mFile, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+		
+		mOut = open(mFile);
+		mWritten = 0;
+	}
+	
+	/**
+	 * Helper method to name a rotated file
+	 * @param _generation How many rotations ago the file was current
+	 * @return The rotated file's path
+	 */
+	private Path rotated(int _generation)
+	{
+		return mFile.resolveSibling(mFile.getFileName() + "." + _generation);
+	}
+	
+	/**
+	 * Helper method to open a log file for appending
+	 * @param _file The file
+	 * @return A writer for the file
+	 * @throws IOException
+	 */
+	private static Writer open(Path _file) throws IOException
+	{
+		OutputStream stream = Files.newOutputStream(_file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024);
+	}
+	
+	/**
+	 * One reusable event in the ring, written by the thread that claimed it and read by the writer
+	 */
+	private static class Slot {
+		long mTime;						// when the event was reported, in ms since the epoch
+		Level mLevel;					// how severe the event is
+		long mConnection;				// the client's connection ID, or -1
+		String mIP;						// the client's address, or null
+		String mPhase;					// which part of the client's or server's life the event belongs to
+		String mOutcome;				// what happened
+		long mDuration;					// how long the phase took in ns, or -1
+		Throwable mError;				// exception to write after the event, or null
+		String[] mFields = new String[2 * MaxFields];	// further name/value pairs
+		int mFieldCount;				// number of pairs in mFields
+		
+		/**
+		 * Drops the event's references once it has been written, so the ring does not keep them alive
+		 */
+		void clear()
+		{
+			mIP = null;
+			mPhase = null;
+			mOutcome = null;
+			mError = null;
+			Arrays.fill(mFields, 0, 2 * mFieldCount, null);
+			mFieldCount = 0;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package cs4520.server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Object representing one selector driven thread of the non-blocking server, it owns a set of
+ * NioConnections and services all of their I/O without ever blocking on a single client
+ */
+public class EventLoop implements Runnable, Executor {
+	// tasks handed to this loop by other threads, run on the loop's own thread between selects
+	private ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+	private Selector mSelector;			// selector used to wait on all of this loop's channels
+	private Thread mThread;				// the thread running this loop
+	private EventLog mLog;				// the server's log
+	private TimerWheel mTimers;			// the server's timers, which only hand expired tasks back to their loop to run
+	private volatile boolean mStopped;	// set once the loop has been asked to stop
+	
+	/**
+	 * Constructor for EventLoop
+	 * @param _name The name given to the loop's thread
+	 * @param _log The server's log
+	 * @param _timers The server's timers
+	 * @throws IOException
+	 */
+	public EventLoop(String _name, EventLog _log, TimerWheel _timers) throws IOException
+	{
+		mLog = _log;
+		mTimers = _timers;
+		mSelector = Selector.open();
+		mThread = new Thread(this, _name);
+	}
+	
+	/**
+	 * Starts the loop's thread
+	 */
+	public void start()
+	{
+		mThread.start();
+	}
+	
+	/**
+	 * Stops the loop and closes its selector, its connections should already have been closed
+	 */
+	public void stop()
+	{
+		mStopped = true;
+		mSelector.wakeup();
+	}
+	
+	/**
+	 * Runs a task on this loop's thread, waking the loop if it is waiting in select
+	 * @param _task The task to run
+	 */
+	public void execute(Runnable _task)
+	{
+		mTasks.add(_task);
+		
+		if(Thread.currentThread() != mThread)
+			mSelector.wakeup();
+	}
+	
+	/**
+	 * Runs a task on this loop's thread after a delay
+	 * @param _task The task to run
+	 * @param _delay The delay in ms
+	 * @return A timer that can be used to cancel the task before it runs
+	 */
+	public TimerWheel.Timer schedule(final Runnable _task, long _delay)
+	{
+		return mTimers.schedule(new Runnable() {
+			public void run() {
+				execute(_task);
+			}
+		}, _delay);
+	}
+	
+	/**
+	 * Checks whether the caller is running on this loop's thread
+	 * @return True if called from the loop's thread
+	 */
+	public boolean inLoop()
+	{
+		return Thread.currentThread() == mThread;
+	}
+	
+	/**
+	 * Registers a channel with this loop's selector, must be called from the loop's thread
+	 * @param _channel The channel to register
+	 * @param _attachment The NioConnection that handles the channel's events
+	 * @return The key representing the registration
+	 * @throws IOException
+	 */
+	SelectionKey register(SocketChannel _channel, NioConnection _attachment) throws IOException
+	{
+		return _channel.register(mSelector, SelectionKey.OP_READ, _attachment);
+	}
+	
+	/**
+	 * The loop itself, alternates between selecting ready channels and running queued tasks
+	 */
+	public void run()
+	{
+		while(!mStopped)
+		{
+			try {
+				mSelector.select();
+				
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					
+					NioConnection connection = (NioConnection) key.attachment();
+					connection.handle(key);
+				}
+				
+				Runnable task;
+				while((task = mTasks.poll()) != null)
+				{
+					task.run();
+				}
+			} catch (Exception e) {
+				// a failure here must never take down every connection the loop owns
+				mLog.error(null, mThread.getName(), e);
+			}
+		}
+		
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+			// the loop is finished with either way
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package cs4520.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import cs4520.protocol.Opcode;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Interface representing the transport underneath a client's conversations, implemented by both the
+ * blocking (thread per connection) and non-blocking (selector driven) connection types
+ */
+public interface Link {
+	// method called to transmit a line of text to the client
+	public void tx(String _line);
+	
+	// method called to send a message to the client, encoded as a text line or a binary frame depending on
+	// what the client negotiated, the fields are name/value pairs
+	public void reply(Opcode _opcode, CharSequence... _fields);
+	
+	// method called when a conversation is ready for the client's next line, the line is delivered to
+	// the conversation either immediately (blocking) or once it arrives (non-blocking). If the line does
+	// not arrive within the limit of the phase (null for none) the client is disconnected, see Reaper
+	public void receive(Conversation _conversation, Reaper.Phase _phase) throws IOException;
+	
+	// method called to continue the conversation once asynchronous work completes, the listener is invoked
+	// on the link's own thread so conversations never need to worry about which thread finished the work
+	public <T> void resume(CompletableFuture<T> _future, ResultListener<T> _listener) throws IOException;
+	
+	// method called to fetch the client's IP address
+	public String ip();
+	
+	// method called to fetch the unique ID of the client's connection
+	public long id();
+}
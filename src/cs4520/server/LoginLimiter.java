@@ -0,0 +1,120 @@
+package cs4520.server;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Admission control for login attempts by the address they come from, consulted before a secret is hashed so
+ * that a flood of guesses is turned away cheaply instead of occupying the hashing pool. Lockout only protects
+ * one account at a time, whereas an attacker is free to rotate usernames.
+ *
+ * Each address has a token bucket that holds up to the burst and refills at the rate, each attempt takes one
+ * token and an attempt that finds the bucket empty is refused. The bucket is kept in the equivalent form of
+ * the time at which it would next be full (as in GCRA), so it is a single long updated by compare and set
+ * without locking. A bucket that has refilled is the same as no bucket at all, so whenever the table grows
+ * past its bound such buckets are removed. Should it still be full, every address not already in the table
+ * shares one overflow bucket, so the table cannot be grown without limit by attempts from many addresses.
+ */
+public class LoginLimiter {
+	private static final long SweepInterval = 100*1000*1000L;	// shortest time (in ns) between sweeps of the table
+	
+	private final ConcurrentHashMap<String, AtomicLong> mBuckets = new ConcurrentHashMap<String, AtomicLong>();	// time each address's bucket is next full, in ns
+	private final AtomicLong mOverflow = new AtomicLong(System.nanoTime());	// bucket shared by addresses that did not fit in the table
+	private final AtomicBoolean mSweeping = new AtomicBoolean();	// set while a thread sweeps the table
+	private final AtomicLong mNextSweep = new AtomicLong(System.nanoTime());	// earliest time (in ns) the table may be swept again
+	private final long mInterval;		// time (in ns) it takes to refill one token, 0 if limiting is disabled
+	private final long mTolerance;		// how far (in ns) a bucket's full time may run ahead of now, the burst less one token
+	private final int mMaxAddresses;	// most addresses tracked before sharing the overflow bucket
+	
+	/**
+	 * Constructor for LoginLimiter
+	 * @param _rate Login attempts allowed per second from each address once its burst is used, 0 to allow any number
+	 * @param _burst Login attempts an address may make at once
+	 * @param _maxAddresses Most addresses tracked at once
+	 */
+	public LoginLimiter(double _rate, int _burst, int _maxAddresses)
+	{
+		mInterval = _rate > 0 ? Math.max(1, (long) (1e9 / _rate)) : 0;
+		mTolerance = mInterval * (Math.max(1, _burst) - 1);
+		mMaxAddresses = _maxAddresses;
+	}
+	
+	/**
+	 * Takes a token from the bucket of the given address
+	 * @param _address The address the login attempt came from
+	 * @return True if the attempt may go ahead, false if the address has made too many attempts
+	 */
+	public boolean tryAcquire(String _address)
+	{
+		if(mInterval == 0)
+			return true;
+		
+		long now = System.nanoTime();
+		AtomicLong bucket = mBuckets.get(_address);
+		
+		if(bucket == null)
+		{
+			if(mBuckets.size() >= mMaxAddresses)
+				sweep(now);
+			
+			if(mBuckets.size() >= mMaxAddresses)
+				bucket = mOverflow;
+			else
+			{
+				AtomicLong created = new AtomicLong(now);
+				bucket = mBuckets.putIfAbsent(_address, created);
+				if(bucket == null)
+					bucket = created;
+			}
+		}
+		
+		while(true)
+		{
+			long full = bucket.get();
+			// a bucket that has refilled starts again from now
+			long start = full - now < 0 ? now : full;
+			
+			if(start - now > mTolerance)
+				return false;
+			if(bucket.compareAndSet(full, start + mInterval))
+				return true;
+		}
+	}
+	
+	/**
+	 * Getter for the number of addresses tracked
+	 * @return The number of addresses in the table
+	 */
+	public int tracked()
+	{
+		return mBuckets.size();
+	}
+	
+	/**
+	 * Helper method to remove every bucket that has refilled, at most one thread sweeps at a time and sweeps
+	 * are spaced apart so a table full of busy addresses is not swept on every attempt
+	 * @param _now The current time in ns
+	 */
+	private void sweep(long _now)
+	{
+		if(_now - mNextSweep.get() < 0 || !mSweeping.compareAndSet(false, true))
+			return;
+		
+		try {
+			for(Map.Entry<String, AtomicLong> bucket : mBuckets.entrySet())
+			{
+				long full = bucket.getValue().get();
+				
+				if(full - _now <= 0)
+					mBuckets.remove(bucket.getKey(), bucket.getValue());
+			}
+			
+			mNextSweep.set(_now + SweepInterval);
+		} finally {
+			mSweeping.set(false);
+		}
+	}
+}
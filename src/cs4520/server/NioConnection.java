@@ -0,0 +1,758 @@
+package cs4520.server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import javax.net.ssl.*;
+
+import cs4520.protocol.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Non-blocking counterpart of Connection, drives an SSLEngine over a SocketChannel from an EventLoop and
+ * feeds complete lines to the same Protocol the blocking server uses. All methods run on the owning loop's thread.
+ */
+public class NioConnection implements Link, Drainable {
+	private static final ByteBuffer Empty = ByteBuffer.allocate(0);	// source buffer used for handshake wraps
+	private static final int OutputLimit = 64 * 1024;		// replies backed up (in bytes) beyond which no further requests are handled
+	private static final int OutputCap = 4 * 1024 * 1024;	// replies backed up (in bytes) beyond which the client is dropped
+	
+	// list of all external objects awaiting notification of this Connection's completion
+	private ArrayList<CompletionListener> mListeners = new ArrayList<CompletionListener>();
+	private ArrayDeque<String> mLines = new ArrayDeque<String>();				// complete lines not yet handed to a conversation
+	private ByteArrayOutputStream mPartial = new ByteArrayOutputStream();	// bytes of the line currently being received
+	private FrameCodec mFrames;			// decoder for the client's frames, if it negotiated binary framing
+	private ByteBuffer mFrameIn;		// plain text bytes of frames not yet decoded, if binary framing was negotiated
+	private boolean mNegotiated;		// set once the client's first byte has chosen its encoding
+	private boolean mMagicSeen;			// set once a binary client's magic has been checked and echoed
+	private Conversation mPending;		// the conversation waiting for the client's next line, if any
+	private ServerContext mServer;		// reference to the server's shared state, including the UserManager
+	private Reaper.Phase mPhase;		// the phase of the protocol the pending conversation's line completes, if it has a deadline
+	private Reaper.Watch mWatch;		// disconnects the client if it misses the deadline of its phase
+	private long mUnreported;			// plain text bytes received since the watch was last told
+	private EventLoop mLoop;			// the event loop that owns this connection
+	private SocketChannel mChannel;		// the channel to the remote client
+	private SelectionKey mKey;			// this connection's registration with the loop's selector
+	private SSLEngine mEngine;			// the TLS state machine for this connection
+	private ByteBuffer mNetIn;			// encrypted bytes read from the channel, not yet unwrapped
+	private ByteBuffer mAppIn;			// plain text bytes unwrapped by the engine
+	private ByteBuffer mNetOut;			// encrypted bytes waiting to be written to the channel
+	private ByteBuffer mAppOut;			// plain text bytes queued by tx, waiting to be wrapped
+	private boolean mWaiting;			// set while the protocol waits on asynchronous work rather than on the client
+	private boolean mFinished;			// set once the protocol has nothing more to say to the client
+	private boolean mClosed;			// set once the channel has been closed
+	private String mIP;					// the client's address, cached as the channel forgets it once closed
+	private long mID;					// this connection's unique ID
+	private long mOpened;				// when the client connected, in ns
+	private EventLog mLog;				// the server's log
+	private ServerMetrics mMetrics;		// the server's instrumentation
+	private boolean mHandshaken;		// set once the initial TLS handshake has completed
+	private boolean mDraining;			// set once the server has asked this connection to finish
+	private long mWaitingSince;			// when the pending conversation started waiting for its line, in ns
+	private boolean mReplying;			// set while encrypted replies are backed up, the client is then watched taking delivery of them
+	private long mReplyingSince;		// when the replies backed up, in ns
+	
+	/**
+	 * Constructor for NioConnection
+	 * @param _channel The accepted, non-blocking channel to the client
+	 * @param _context The SSL context used to create this connection's engine
+	 * @param _server The server's shared state
+	 * @param _loop The event loop that will own this connection
+	 * @throws IOException
+	 */
+	public NioConnection(SocketChannel _channel, SSLContext _context, ServerContext _server, EventLoop _loop) throws IOException
+	{
+		mChannel = _channel;
+		mServer = _server;
+		mLoop = _loop;
+		mID = Connection.nextID();
+		mOpened = System.nanoTime();
+		mLog = _server.log();
+		mMetrics = _server.metrics();
+		mIP = ((InetSocketAddress) _channel.getRemoteAddress()).getHostString();
+		mWatch = _server.reaper().watch(_loop, new ReapListener() {
+			public void onReap(Reaper.Phase _phase, boolean _tooSlow) {
+				reap(_phase, _tooSlow);
+			}
+		});
+		
+		mEngine = _context.createSSLEngine();
+		mEngine.setUseClientMode(false);
+		
+		SSLSession session = mEngine.getSession();
+		mNetIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		mNetOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		mAppIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		mAppOut = ByteBuffer.allocate(1024);
+	}
+	
+	/**
+	 * Registers this connection with its loop and starts the handshake and protocol, must run on the loop's thread
+	 */
+	public void open()
+	{
+		mMetrics.connectionOpened();
+		mLog.event(EventLog.Level.Info, this, "connect", "accepted", -1);
+		
+		// a connection drained before its loop got to it has nothing to finish
+		if(mDraining)
+		{
+			close();
+			return;
+		}
+		
+		try {
+			mKey = mLoop.register(mChannel, this);
+			mWatch.start(Reaper.Phase.Handshake);
+			mEngine.beginHandshake();
+			new Protocol(this, mServer).begin();
+			pump();
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * Used to register listeners for the Connection's completion
+	 * @param _listener The listener to add
+	 */
+	public void addListener(CompletionListener _listener)
+	{
+		mListeners.add(_listener);
+	}
+	
+	/**
+	 * Called by the event loop when this connection's channel is ready for reading or writing
+	 * @param _key The selected key
+	 */
+	void handle(SelectionKey _key)
+	{
+		try {
+			if(_key.isValid() && _key.isReadable())
+			{
+				if(mChannel.read(mNetIn) < 0)
+				{
+					// the client has gone away, there is nobody left to talk to
+					try {
+						mEngine.closeInbound();
+					} catch (SSLException e) {
+						// the client did not send close_notify, which is common and harmless here
+					}
+					close();
+					return;
+				}
+			}
+			
+			pump();
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * Queues a line of text for transmission to the client, it is encrypted and written on the next pump
+	 * @param _line The line of text to be transmitted
+	 */
+	public void tx(String _line)
+	{
+		byte[] bytes = (_line + "\n").getBytes(Charset.defaultCharset());
+		
+		ensureAppOut(bytes.length);
+		mAppOut.put(bytes);
+	}
+	
+	/**
+	 * Queues a message for the client in whichever encoding it negotiated, binary frames are encoded
+	 * straight into the outgoing plain text buffer
+	 * @param _opcode The type of message
+	 * @param _fields Name/value pairs, alternating names and values
+	 */
+	public void reply(Opcode _opcode, CharSequence... _fields)
+	{
+		if(mFrames == null)
+		{
+			tx(TextCodec.format(_opcode, _fields));
+			return;
+		}
+		
+		ensureAppOut(FrameCodec.frameLength(_opcode, _fields));
+		FrameCodec.encode(mAppOut, _opcode, _fields);
+	}
+	
+	/**
+	 * Helper method to grow the outgoing plain text buffer if needed. Requests stop being handled once the
+	 * buffer passes OutputLimit, so it only grows past that by the replies to a single request, and growing
+	 * it past OutputCap means something has gone wrong.
+	 * @param _bytes The number of bytes about to be queued
+	 * @throws IllegalStateException If the buffer would grow past OutputCap
+	 */
+	private void ensureAppOut(int _bytes)
+	{
+		if(mAppOut.remaining() < _bytes)
+		{
+			if(mAppOut.position() + _bytes > OutputCap)
+				throw new IllegalStateException("replies backed up past " + OutputCap + " bytes");
+			
+			ByteBuffer grown = ByteBuffer.allocate(Math.min(OutputCap, Math.max(mAppOut.capacity() * 2, mAppOut.position() + _bytes)));
+			mAppOut.flip();
+			grown.put(mAppOut);
+			mAppOut = grown;
+		}
+	}
+	
+	/**
+	 * Records the conversation waiting for the client's next line, it is handed the line once one arrives
+	 * @param _conversation The conversation expecting the client's next line
+	 * @param _phase The phase of the protocol the line completes, or null to wait indefinitely
+	 */
+	public void receive(Conversation _conversation, Reaper.Phase _phase)
+	{
+		mPending = _conversation;
+		mPhase = _phase;
+		mWaitingSince = System.nanoTime();
+		
+		// a draining connection is finished with between requests, unless the client has already sent its next one
+		if(mDraining && idle())
+		{
+			mPending = null;
+			return;
+		}
+		
+		// the protocol expects the username before the handshake is over, its deadline starts once it is
+		if(mHandshaken)
+			watchPending();
+	}
+	
+	/**
+	 * Helper method to start the deadline of the pending conversation's phase, unless the client is being
+	 * watched taking delivery of its replies, in which case it starts once they have been written
+	 */
+	private void watchPending()
+	{
+		if(mReplying)
+			return;
+		
+		if(mPending != null && mPhase != null)
+			mWatch.start(mPhase);
+		else
+			mWatch.stop();
+	}
+	
+	/**
+	 * Helper method to watch the client taking delivery of its replies while any are backed up, and go back
+	 * to watching the pending conversation's phase once they have all been written
+	 */
+	private void watchReplies()
+	{
+		boolean backedUp = mHandshaken && mNetOut.position() > 0;
+		if(backedUp == mReplying)
+			return;
+		
+		mReplying = backedUp;
+		if(backedUp)
+		{
+			mReplyingSince = System.nanoTime();
+			mWatch.start(Reaper.Phase.Reply);
+		}
+		else
+		{
+			watchPending();
+		}
+	}
+	
+	/**
+	 * Disconnects a client that has missed its deadline, called on the loop by the watch
+	 * @param _phase The phase the client was in
+	 * @param _tooSlow True if the client was sending a request too slowly, false if the phase ran out of time
+	 */
+	private void reap(Reaper.Phase _phase, boolean _tooSlow)
+	{
+		if(mClosed)
+			return;
+		
+		long since = _phase == Reaper.Phase.Handshake ? mOpened : _phase == Reaper.Phase.Reply ? mReplyingSince : mWaitingSince;
+		mLog.event(EventLog.Level.Info, this, _phase.toString().toLowerCase(), _tooSlow ? "too-slow" : "timeout", System.nanoTime() - since);
+		
+		// a client that is not keeping up gets nothing more, it may not even be reading, and close_notify
+		// would only queue behind replies it has not taken
+		if(_phase != Reaper.Phase.Query || _tooSlow || mAppOut.position() > 0 || mNetOut.position() > 0)
+		{
+			close();
+			return;
+		}
+		
+		// a logged in client that has simply gone quiet, with nothing left to read, is sent close_notify like any other
+		mPending = null;
+		mFinished = true;
+		try {
+			pump();
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * Asks the connection to finish, a connection waiting for a request the client has not begun to send
+	 * is closed at once, otherwise it closes once it has answered the request it is handling
+	 */
+	public void drain()
+	{
+		mLoop.execute(new Runnable() {
+			public void run() {
+				if(mClosed)
+					return;
+				mDraining = true;
+				
+				// a connection not yet opened is closed as it opens, and a client still handshaking has not asked for anything yet
+				if(mKey == null)
+					return;
+				if(!mHandshaken)
+				{
+					close();
+					return;
+				}
+				
+				if(mPending != null && idle())
+				{
+					mPending = null;
+					watchPending();
+					mFinished = true;
+					try {
+						pump();
+					} catch (Exception e) {
+						fail(e);
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Closes the connection at once, whatever it is doing
+	 */
+	public void abort()
+	{
+		mLoop.execute(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+	
+	/**
+	 * Helper method to check whether the connection is between requests, with nothing of the next one received
+	 * @return True if the protocol is waiting for a username or query and no part of it has arrived
+	 */
+	private boolean idle()
+	{
+		return (mPhase == Reaper.Phase.Username || mPhase == Reaper.Phase.Query) && mLines.isEmpty()
+				&& partial() == 0 && mNetIn.position() == 0;
+	}
+	
+	/**
+	 * Helper method to count the bytes received of the line or frame not yet complete
+	 * @return The number of bytes
+	 */
+	private int partial()
+	{
+		return mFrames != null ? mFrameIn.position() : mPartial.size();
+	}
+	
+	/**
+	 * Parks the protocol until the asynchronous work completes, then continues it on this connection's loop.
+	 * Lines that arrive in the meantime are queued and delivered once the protocol expects them.
+	 * @param _future The pending result
+	 * @param _listener The listener to hand the result to
+	 */
+	public <T> void resume(CompletableFuture<T> _future, final ResultListener<T> _listener)
+	{
+		mWaiting = true;
+		
+		_future.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(final T _result, final Throwable _error) {
+				mLoop.execute(new Runnable() {
+					public void run() {
+						mWaiting = false;
+						if(mClosed)
+							return;
+						
+						try {
+							if(_error != null)
+								throw new IOException("asynchronous work failed", _error);
+							_listener.onResult(_result);
+							pump();
+						} catch (Exception e) {
+							fail(e);
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Drives the engine as far as it can go without blocking: handshaking, unwrapping received data into lines,
+	 * delivering those lines to the protocol and wrapping the replies, then flushes what it can to the channel
+	 * @throws IOException
+	 */
+	private void pump() throws IOException
+	{
+		boolean progress = true;
+		
+		while(progress && !mClosed)
+		{
+			switch(mEngine.getHandshakeStatus())
+			{
+			case NEED_TASK:
+				// delegated tasks are short lived key exchange steps, run them inline on the loop
+				Runnable task;
+				while((task = mEngine.getDelegatedTask()) != null)
+					task.run();
+				break;
+			case NEED_WRAP:
+				progress = wrap(Empty);
+				break;
+			case NEED_UNWRAP:
+			case NEED_UNWRAP_AGAIN:
+				progress = unwrap();
+				break;
+			default:
+				if(!mHandshaken)
+				{
+					// the handshake is timed on its own, so the wait for the first line starts once it is over
+					mHandshaken = true;
+					mWaitingSince = System.nanoTime();
+					mMetrics.record(ServerMetrics.Phase.Handshake, mWaitingSince - mOpened);
+					watchPending();
+				}
+				
+				// unwrap everything already received before delivering, so a pipelined batch of requests is
+				// answered as one batch of replies and wrapped into as few records as possible
+				progress = false;
+				while(mEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && unwrap())
+					progress = true;
+				deliver();
+				
+				if(mAppOut.position() > 0)
+				{
+					progress |= wrap(mAppOut);
+				}
+				else if(mFinished && !mEngine.isOutboundDone())
+				{
+					// everything has been said, send close_notify once the replies are out
+					mEngine.closeOutbound();
+					progress = true;
+				}
+				break;
+			}
+		}
+		
+		if(mClosed)
+			return;
+		
+		flush();
+		
+		if(mEngine.isOutboundDone() && mNetOut.position() == 0)
+		{
+			close();
+		}
+		else
+		{
+			watchReplies();
+			
+			// only ask to be told about writability while encrypted bytes are backed up, and stop reading from
+			// a client that is not reading its replies until they have drained
+			int interest = backlogged() ? 0 : SelectionKey.OP_READ;
+			if(mNetOut.position() > 0)
+				interest |= SelectionKey.OP_WRITE;
+			mKey.interestOps(interest != 0 ? interest : SelectionKey.OP_READ);
+		}
+	}
+	
+	/**
+	 * Hands received lines to the waiting conversation, one line per expect()
+	 * @throws IOException
+	 */
+	private void deliver() throws IOException
+	{
+		// lines left queued while the replies are backed up are delivered once writing has caught up
+		while(mPending != null && !mLines.isEmpty() && !backlogged())
+		{
+			Conversation conversation = mPending;
+			mPending = null;
+			watchPending();
+			mMetrics.record(ServerMetrics.Phase.Read, System.nanoTime() - mWaitingSince);
+			conversation.respond(mLines.poll());
+		}
+		
+		// part of the line still waited on has arrived, which starts its minimum rate
+		if(mPending != null && !mReplying && mUnreported > 0 && partial() > 0)
+			mWatch.received(mUnreported);
+		mUnreported = 0;
+		
+		// a conversation that neither expects another line nor waits on other work has ended the protocol
+		if(mPending == null && !mWaiting)
+			mFinished = true;
+	}
+	
+	/**
+	 * Helper method to check whether the replies to the client are backed up
+	 * @return True if more than OutputLimit bytes are waiting to be encrypted or written
+	 */
+	private boolean backlogged()
+	{
+		return mAppOut.position() + mNetOut.position() > OutputLimit;
+	}
+	
+	/**
+	 * Encrypts data from the given buffer into the outgoing network buffer
+	 * @param _source Either the queued plain text or an empty buffer when the handshake needs to wrap
+	 * @return Whether any progress was made
+	 * @throws IOException
+	 */
+	private boolean wrap(ByteBuffer _source) throws IOException
+	{
+		boolean appData = (_source == mAppOut);
+		if(appData)
+			mAppOut.flip();
+		
+		try {
+			while(true)
+			{
+				SSLEngineResult result = mEngine.wrap(_source, mNetOut);
+				
+				switch(result.getStatus())
+				{
+				case BUFFER_OVERFLOW:
+					// make room by writing out what is already encrypted, give up until writable if we cannot
+					flush();
+					if(mNetOut.position() > 0)
+						return false;
+					if(mNetOut.capacity() < mEngine.getSession().getPacketBufferSize())
+						mNetOut = ByteBuffer.allocate(mEngine.getSession().getPacketBufferSize());
+					break;
+				default:
+					return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+				}
+			}
+		} finally {
+			if(appData)
+				mAppOut.compact();
+		}
+	}
+	
+	/**
+	 * Decrypts data from the incoming network buffer and splits the plain text into lines
+	 * @return Whether any progress was made
+	 * @throws IOException
+	 */
+	private boolean unwrap() throws IOException
+	{
+		SSLEngineResult result;
+		
+		mNetIn.flip();
+		try {
+			result = mEngine.unwrap(mNetIn, mAppIn);
+		} finally {
+			mNetIn.compact();
+		}
+		
+		switch(result.getStatus())
+		{
+		case BUFFER_UNDERFLOW:
+			// a partial record, grow the buffer if the record could never fit then wait for more bytes
+			int packetSize = mEngine.getSession().getPacketBufferSize();
+			if(mNetIn.capacity() < packetSize)
+			{
+				ByteBuffer grown = ByteBuffer.allocate(packetSize);
+				mNetIn.flip();
+				grown.put(mNetIn);
+				mNetIn = grown;
+			}
+			return false;
+		case BUFFER_OVERFLOW:
+			mAppIn = ByteBuffer.allocate(Math.max(mEngine.getSession().getApplicationBufferSize(), mAppIn.capacity() * 2));
+			return true;
+		case CLOSED:
+			// the client sent close_notify, reply in kind once anything outstanding is sent
+			mFinished = true;
+			break;
+		default:
+			break;
+		}
+		
+		collectLines();
+		return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+	}
+	
+	/**
+	 * Splits the unwrapped plain text into complete lines, keeping any trailing partial line for later. The
+	 * first byte the client sends decides whether it speaks text or binary frames.
+	 * @throws IOException If the client sends an unreasonably long line or a malformed frame
+	 */
+	private void collectLines() throws IOException
+	{
+		mAppIn.flip();
+		mUnreported += mAppIn.remaining();
+		
+		if(!mNegotiated && mAppIn.hasRemaining())
+		{
+			mNegotiated = true;
+			
+			if(mAppIn.get(mAppIn.position()) == FrameCodec.Magic[0])
+			{
+				mFrames = new FrameCodec(Protocol.MaxRequestLength);
+				mFrameIn = ByteBuffer.allocate(1024);
+			}
+		}
+		
+		if(mFrames != null)
+		{
+			collectFrames();
+			mAppIn.clear();
+			return;
+		}
+		
+		while(mAppIn.hasRemaining())
+		{
+			byte b = mAppIn.get();
+			
+			if(b == '\n')
+			{
+				String line = new String(mPartial.toByteArray(), Charset.defaultCharset());
+				if(line.endsWith("\r"))
+					line = line.substring(0, line.length() - 1);
+				
+				mLines.add(line);
+				mPartial.reset();
+			}
+			else
+			{
+				if(mPartial.size() >= Protocol.MaxRequestLength)
+					throw new IOException("line exceeds " + Protocol.MaxRequestLength + " bytes");
+				mPartial.write(b);
+			}
+		}
+		
+		mAppIn.clear();
+	}
+	
+	/**
+	 * Decodes the unwrapped plain text of a binary client into frames and translates them into lines,
+	 * keeping any trailing partial frame for later
+	 * @throws IOException If the client sends a malformed frame
+	 */
+	private void collectFrames() throws IOException
+	{
+		if(mFrameIn.remaining() < mAppIn.remaining())
+		{
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(mFrameIn.capacity() * 2, mFrameIn.position() + mAppIn.remaining()));
+			mFrameIn.flip();
+			grown.put(mFrameIn);
+			mFrameIn = grown;
+		}
+		
+		mFrameIn.put(mAppIn);
+		mFrameIn.flip();
+		
+		try {
+			if(!mMagicSeen)
+			{
+				if(mFrameIn.remaining() < FrameCodec.Magic.length)
+					return;
+				
+				for(byte b : FrameCodec.Magic)
+				{
+					if(mFrameIn.get() != b)
+						throw new IOException("unrecognised binary protocol magic");
+				}
+				
+				// acknowledge binary framing by echoing the magic
+				mMagicSeen = true;
+				ensureAppOut(FrameCodec.Magic.length);
+				mAppOut.put(FrameCodec.Magic);
+			}
+			
+			while(mFrames.decode(mFrameIn))
+				Protocol.translate(mFrames, mLines);
+		} finally {
+			mFrameIn.compact();
+		}
+	}
+	
+	/**
+	 * Writes as much of the encrypted output as the channel will currently accept
+	 * @throws IOException
+	 */
+	private void flush() throws IOException
+	{
+		mNetOut.flip();
+		try {
+			mChannel.write(mNetOut);
+		} finally {
+			mNetOut.compact();
+		}
+	}
+	
+	/**
+	 * Reports an exception on this connection and closes it
+	 * @param _e The exception that ended the connection
+	 */
+	private void fail(Exception _e)
+	{
+		mLog.error(this, "connection", _e);
+		close();
+	}
+	
+	/**
+	 * Closes the channel and notifies listeners of this Connection's completion
+	 */
+	private void close()
+	{
+		if(mClosed)
+			return;
+		mClosed = true;
+		
+		if(mKey != null)
+			mKey.cancel();
+		mWatch.stop();
+		
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			// nothing more can be done for this client
+		}
+		
+		mMetrics.connectionClosed();
+		mLog.event(EventLog.Level.Info, this, "disconnect", "closed", System.nanoTime() - mOpened);
+		for(CompletionListener cl : mListeners)
+			cl.onCompletion(this);
+	}
+	
+	public String ip()
+	{
+		return mIP;
+	}
+	
+	public long id()
+	{
+		return mID;
+	}
+	
+	@Override
+	public String toString()
+	{
+		String result = "";
+		result += "[";
+		result += mID + "@" + mIP;
+		result += "]";
+		return result;
+	}
+}
@@ -0,0 +1,247 @@
+package cs4520.server;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Selector driven core of the CS4520 server, accepts connections on one or more acceptor threads and spreads
+ * them across a small, fixed number of EventLoops that perform the TLS and protocol work without a thread per
+ * client. When there are at least as many loops as acceptors, each acceptor has its own shard of the loops so
+ * acceptors never hand work to the same loop, and with SO_REUSEPORT each acceptor also has its own listening
+ * channel, which the kernel spreads new connections across, rather than all of them waiting on one.
+ */
+public class NioServer {
+	private ServerSocketChannel[] mServers;	// channels for accepting connections, one per acceptor or one shared by all
+	private EventLoop[] mLoops;				// the event loops that service accepted connections
+	private ServerContext mContext;			// the server's shared state, including the user manager
+	private SSLContext mSslContext;		// context used to create each connection's SSLEngine
+	private int mAcceptors;					// the number of threads accepting connections
+	
+	/**
+	 * Object representing one acceptor, which accepts from one channel and hands connections to its shard of the loops
+	 */
+	private class Acceptor implements Runnable
+	{
+		private ServerSocketChannel mServer;	// channel for accepting connections
+		private EventLoop[] mShard;				// the loops that receive this acceptor's connections
+		private int mNextLoop;					// index in mShard of the loop that receives the next accepted connection
+		
+		/**
+		 * Acceptor constructor
+		 * @param _server The channel to accept from
+		 * @param _shard The loops to hand accepted connections to
+		 */
+		private Acceptor(ServerSocketChannel _server, EventLoop[] _shard)
+		{
+			mServer = _server;
+			mShard = _shard;
+		}
+		
+		/**
+		 * Runs the accept loop, handing each accepted channel to the next event loop of the shard in turn. A client
+		 * that cannot be set up is dropped without stopping the loop, which only returns once the server begins
+		 * shutting down or the channel is closed, and the channel is closed on the way out so it is not left bound
+		 * with nobody accepting from it.
+		 */
+		public void run()
+		{
+			ConnectionRegistry connections = mContext.connections();
+			
+			try {
+				while(true)
+				{
+					// Accept a client
+					SocketChannel client;
+					try {
+						client = mServer.accept();
+					} catch (IOException e) {
+						// the shutdown closes the channel to stop accepting
+						if(connections.draining() || !mServer.isOpen())
+							return;
+						
+						// anything else, such as running out of file descriptors, is waited out
+						mContext.log().error(null, "accept", e);
+						if(!Server.backOff())
+							return;
+						continue;
+					}
+					
+					try {
+						serve(client, connections);
+					} catch (Exception e) {
+						// one client failing to be set up must not stop the others being accepted
+						mContext.log().error(null, "accept", e);
+						try {
+							client.close();
+						} catch (IOException e2) {
+							// the client is being dropped either way
+						}
+					}
+				}
+			} finally {
+				try {
+					mServer.close();
+				} catch (IOException e) {
+					// nothing more is accepted from it either way
+				}
+			}
+		}
+		
+		/**
+		 * Helper method to start a NioConnection for an accepted client on the next loop of the shard, or refuse
+		 * it if the server is full
+		 * @param _client The accepted client
+		 * @param _connections The registry the connection is added to
+		 * @throws IOException
+		 */
+		private void serve(SocketChannel _client, final ConnectionRegistry _connections) throws IOException
+		{
+			// refuse the client before anything is spent on it if the server is full
+			if(!_connections.admit())
+			{
+				mContext.log().event(EventLog.Level.Warn, null, "connect", "refused", -1,
+						"ip", ((InetSocketAddress) _client.getRemoteAddress()).getHostString(), "open", Integer.toString(_connections.size()));
+				_client.close();
+				return;
+			}
+			
+			// Wrap it in a NioConnection owned by the next loop, and let that loop start it
+			EventLoop loop = mShard[mNextLoop];
+			mNextLoop = (mNextLoop + 1) % mShard.length;
+			
+			final NioConnection newConnection;
+			try {
+				_client.configureBlocking(false);
+				_client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				newConnection = new NioConnection(_client, mSslContext, mContext, loop);
+			} catch (IOException e) {
+				_connections.cancel();
+				throw e;
+			}
+			
+			// Register for notification when the connection is complete, so it is removed from the registry
+			newConnection.addListener(new CompletionListener() {
+				public void onCompletion(Object _sender) {
+					_connections.remove(newConnection);
+				}
+			});
+			_connections.add(newConnection);
+			
+			loop.execute(new Runnable() {
+				public void run() {
+					newConnection.open();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * NioServer constructor, binds the listening channels and starts the event loops
+	 * @param _port The port on which the server should listen
+	 * @param _loops The number of event loop threads to run
+	 * @param _acceptors The number of threads accepting connections
+	 * @param _reusePort True to give each acceptor its own channel bound with SO_REUSEPORT, false for one shared channel
+	 * @param _context The server's shared state
+	 * @throws IOException
+	 * @throws IllegalStateException If SO_REUSEPORT was requested but is not supported on this platform
+	 */
+	public NioServer(int _port, int _loops, int _acceptors, boolean _reusePort, ServerContext _context) throws IOException
+	{
+		mContext = _context;
+		mAcceptors = _acceptors;
+		
+		try {
+			// the default context is configured from the same javax.net.ssl properties as SSLServerSocketFactory.getDefault()
+			mSslContext = SSLContext.getDefault();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("no default SSL context available", e);
+		}
+		
+		mServers = new ServerSocketChannel[_reusePort ? _acceptors : 1];
+		for(int i = 0; i < mServers.length; i++)
+		{
+			mServers[i] = ServerSocketChannel.open();
+			if(_reusePort)
+			{
+				if(!mServers[i].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+				{
+					close();
+					throw new IllegalStateException("SO_REUSEPORT is not supported on this platform");
+				}
+				mServers[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			mServers[i].bind(new InetSocketAddress(_port));
+		}
+		
+		mLoops = new EventLoop[_loops];
+		for(int i = 0; i < _loops; i++)
+		{
+			mLoops[i] = new EventLoop("event-loop-" + i, mContext.log(), mContext.timers());
+			mLoops[i].start();
+		}
+	}
+	
+	/**
+	 * Runs the acceptors, the first of them on the calling thread, returns once the server begins shutting down
+	 */
+	public void run()
+	{
+		Acceptor[] acceptors = new Acceptor[mAcceptors];
+		for(int i = 0; i < mAcceptors; i++)
+			acceptors[i] = new Acceptor(mServers[i % mServers.length], shard(i));
+		
+		for(int i = 1; i < mAcceptors; i++)
+		{
+			Thread acceptor = new Thread(acceptors[i], "acceptor-" + i);
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+		
+		acceptors[0].run();
+	}
+	
+	/**
+	 * Helper method to pick the loops an acceptor hands its connections to, every loop whose index it matches
+	 * modulo the number of acceptors, or all of them if there are fewer loops than acceptors
+	 * @param _acceptor The acceptor's index
+	 * @return The acceptor's loops
+	 */
+	private EventLoop[] shard(int _acceptor)
+	{
+		if(mLoops.length < mAcceptors)
+			return mLoops;
+		
+		EventLoop[] shard = new EventLoop[(mLoops.length - _acceptor + mAcceptors - 1) / mAcceptors];
+		for(int i = 0; i < shard.length; i++)
+			shard[i] = mLoops[_acceptor + i * mAcceptors];
+		return shard;
+	}
+	
+	/**
+	 * Stops accepting connections, the accept loops return once they notice
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		for(ServerSocketChannel server : mServers)
+		{
+			if(server != null)
+				server.close();
+		}
+	}
+	
+	/**
+	 * Stops the event loops, once accepting has stopped and every connection has been drained or aborted
+	 */
+	public void stop()
+	{
+		for(EventLoop loop : mLoops)
+			loop.stop();
+	}
+}
@@ -0,0 +1,421 @@
+package cs4520.server;
+
+import java.util.*;
+import java.io.*;
+
+import cs4520.protocol.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Object implementing the CS4520 login and query protocol on top of a Link, independent of whether the
+ * link is served by its own thread or by a shared event loop
+ */
+public class Protocol {
+	public static final int MaxRequestLength = 64 * 1024;	// longest line or frame a client may send before being dropped
+	private static final String TokenPrefix = "token:";	// prefix of a first line that presents a session token instead of a username
+	private static final int DefaultPageSize = 100;		// users listed by a users query that gives no limit
+	private static final int MaxPageSize = 1000;		// most users a single users query may list
+	private static final int UsersPerPart = 32;			// users sent in each message of a users listing
+	
+	private UserManager mUsers;			// reference to a UserManager for querying user credentials
+	private SecretGenerator mSecrets;	// source of the data served by the secret query
+	private Link mClient;				// the link to the remote client
+	private EventLog mLog;				// the server's log
+	private ServerMetrics mMetrics;		// the server's instrumentation
+	private ServerStats mStats;			// read only view of the instrumentation, for the stats query
+	private LoginLimiter mLimiter;		// limits the login attempts from each address
+	private StringBuilder mListing;		// reusable buffer for the parts of a users listing
+	
+	/**
+	 * Constructor for Protocol
+	 * @param _client The link to the client that this protocol talks to
+	 * @param _server The server's shared state, including the user manager used to validate the client's credentials
+	 */
+	public Protocol(Link _client, ServerContext _server)
+	{
+		mClient = _client;
+		mUsers = _server.users();
+		mSecrets = _server.secrets();
+		mLog = _server.log();
+		mMetrics = _server.metrics();
+		mStats = _server.stats();
+		mLimiter = _server.limiter();
+	}
+	
+	/**
+	 * Translates a binary frame from the client into the line(s) the text protocol's conversations expect,
+	 * so both encodings share the conversations below
+	 * @param _frame The decoder holding the frame
+	 * @param _lines The queue of lines to append to
+	 * @throws IOException If the frame is not one a client may send or lacks its fields
+	 */
+	public static void translate(FrameCodec _frame, Queue<String> _lines) throws IOException
+	{
+		switch(_frame.opcode())
+		{
+		case Login:
+			if(_frame.fieldCount() != 2)
+				throw new IOException("login frame needs a username and secret");
+			_lines.add(_frame.fieldString(0));
+			_lines.add(_frame.fieldString(1));
+			break;
+		case Token:
+			if(_frame.fieldCount() != 1)
+				throw new IOException("token frame needs a token");
+			_lines.add(TokenPrefix + _frame.fieldString(0));
+			break;
+		case Query:
+			if(_frame.fieldCount() != 1)
+				throw new IOException("query frame needs a query");
+			_lines.add(_frame.fieldString(0));
+			break;
+		case Close:
+			_lines.add("close");
+			break;
+		default:
+			throw new IOException("client sent a " + _frame.opcode() + " frame");
+		}
+	}
+	
+	/**
+	 * Starts the protocol by expecting the client's username
+	 * @throws IOException
+	 */
+	public void begin() throws IOException
+	{
+		// Start a conversation with the client
+		Conversation loginUsername = createLoginConversation();
+		// Expect the client to send the first message message
+		loginUsername.expect(Reaper.Phase.Username); //change to start, send public key to client
+	}
+	
+	/**
+	 * Helper method to create a Conversation object that expects a username message from the client
+	 * @return The Conversation object used to talk to the client
+	 */
+	private Conversation createLoginConversation()
+	{
+		return new Conversation(mClient, new ResponseListener() {
+			public void onResponse(Conversation _conversation, String _message) throws IOException {
+				// A client holding a session token skips the username and secret altogether
+				if(_message.startsWith(TokenPrefix))
+				{
+					resumeSession(_message.substring(TokenPrefix.length()));
+					return;
+				}
+				
+				// Continue the conversation by expecting a 'secret' from the client, now we have the username
+				Conversation loginPassword = createValidateConversation(_message);
+				// Expect the 'secret' from the client
+				loginPassword.expect(Reaper.Phase.Secret);
+			}
+		});
+	}
+	
+	/**
+	 * Helper method to create a Conversation object that expects a password message from the client before
+	 * validating the provided credentials
+	 * @param _username The username obtained from the previous step of the conversation
+	 * @return The Conversation object used to talk to the client
+	 */
+	private Conversation createValidateConversation(final String _username)
+	{
+		return new Conversation(mClient, new ResponseListener() {
+			public void onResponse(Conversation _conversation, String _message) throws IOException {
+				validateLoginAttempt(_username, _message);
+			}
+		});
+	}
+	
+	/**
+	 * Method that logs a client in with a session token issued by an earlier login and responds appropriately
+	 * @param _token The token presented by the client
+	 * @throws IOException
+	 */
+	private void resumeSession(String _token) throws IOException
+	{
+		User user = mUsers.redeemToken(_token);
+		
+		if(user == null)
+		{
+			mMetrics.loginResult(UserManager.ValidationResult.InvalidToken);
+			mLog.event(EventLog.Level.Warn, mClient, "resume", UserManager.ValidationResult.InvalidToken.toString(), -1);
+			mClient.reply(Opcode.Invalid, "reason", UserManager.ValidationResult.InvalidToken.toString());
+			return;
+		}
+		
+		mMetrics.loginResult(UserManager.ValidationResult.ValidCredentials);
+		mLog.event(EventLog.Level.Info, mClient, "resume", "success", -1, "user", user.username());
+		// the token stays valid until it expires, so hand the same one back
+		mClient.reply(Opcode.Valid, "level", user.level().toString(), "token", _token);
+		
+		handleValidatedRequest(user).expect(Reaper.Phase.Query);
+	}
+	
+	/**
+	 * Method that validates login information off the connection's thread, then continues the conversation with the result
+	 * @param _username The username provided by the client
+	 * @param _secret The secret provided by the client
+	 * @throws IOException
+	 */
+	private void validateLoginAttempt(final String _username, final String _secret) throws IOException
+	{
+		final long started = System.nanoTime();
+		
+		// an address making too many attempts is turned away before its secret costs a key derivation
+		if(!mLimiter.tryAcquire(mClient.ip()))
+		{
+			respondToLoginAttempt(_username, _secret, UserManager.ValidationResult.RateLimited, System.nanoTime() - started);
+			return;
+		}
+		
+		// key derivation runs on the user manager's hashing pool, the conversation resumes once it is done
+		mClient.resume(mUsers.validateLoginAsync(_username, _secret), new ResultListener<UserManager.ValidationResult>() {
+			public void onResult(UserManager.ValidationResult _result) throws IOException {
+				Conversation query = respondToLoginAttempt(_username, _secret, _result, System.nanoTime() - started);
+				
+				if(query != null)
+				{
+					query.expect(Reaper.Phase.Query);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Method that responds to the client appropriately once its login information has been validated
+	 * @param _username The username provided by the client
+	 * @param _secret The secret provided by the client
+	 * @param _result The result of validating the credentials
+	 * @param _duration How long (in ns) validation took
+	 * @return The conversation that handles the client's query, or null if the login failed
+	 */
+	private Conversation respondToLoginAttempt(String _username, String _secret, UserManager.ValidationResult _result, long _duration)
+	{
+		boolean valid = (_result == UserManager.ValidationResult.ValidCredentials);
+		
+		mMetrics.record(ServerMetrics.Phase.Login, _duration);
+		mMetrics.loginResult(_result);
+		// the secret is redacted by the log, only whether one was given is recorded
+		mLog.event(valid ? EventLog.Level.Info : EventLog.Level.Warn, mClient, "login", _result.toString(), _duration,
+				"user", _username, "secret", _secret);
+		
+		Conversation nextConversation = null;
+		
+		if(valid)
+		{
+			User user = mUsers.getUser(_username);
+			// tell the client they were successful, include their privelage level and a token for later connections
+			mClient.reply(Opcode.Valid, "level", user.level().toString(), "token", mUsers.issueToken(_username));
+			
+			nextConversation = handleValidatedRequest(user);
+		}
+		else
+		{
+			// tell the client they failed to login, provide the reason
+			mClient.reply(Opcode.Invalid, "reason", _result.toString());
+		}
+		
+		return nextConversation;
+	}
+	
+	/**
+	 * Method that handles requests from a validated (logged in) user, the conversation keeps serving queries
+	 * until the client sends 'close', disconnects or stays silent for longer than the idle limit
+	 * @param _user The user that is making this request
+	 * @return The conversation object that will handle the request
+	 */
+	private Conversation handleValidatedRequest(final User _user)
+	{
+		return new Conversation(mClient, new ResponseListener() {
+			public void onResponse(Conversation _conversation, String _response) throws IOException {
+				long started = System.nanoTime();
+				String[] tokens = _response.split(" ");
+				String handled = null;
+				
+				if(tokens.length < 1)
+				{
+					mClient.reply(Opcode.Invalid, "reason", "MalformedRequest");
+					_conversation.expect(Reaper.Phase.Query);
+					return;
+				}
+				
+				handled = tokens[0].toLowerCase();
+				switch(handled)
+				{
+				case "close":
+					// the client is done, say goodbye and let the conversation end
+					mClient.reply(Opcode.Ack, "close", "bye");
+					mMetrics.queryServed(handled);
+					mMetrics.record(ServerMetrics.Phase.Query, System.nanoTime() - started);
+					mLog.event(EventLog.Level.Info, mClient, "close", "client", -1, "user", _user.username());
+					return;
+				case "ping":
+					// lets a client check an idle connection is still alive without doing any real work
+					mClient.reply(Opcode.Ack, "ping", "pong");
+					break;
+				case "fact":
+					mClient.reply(Opcode.Ack, "fact", "this_is_the_best_program_ever");
+					break;
+				case "secret":
+					if(_user.level() == User.Level.User || _user.level() == User.Level.Administrator)
+					{
+						mClient.reply(Opcode.Ack, "secret", getSecretData());
+					}
+					else
+					{
+						mClient.reply(Opcode.Invalid, "reason", "PermissionDenied");
+					}
+					break;
+				case "users":
+					if(_user.level() == User.Level.Administrator)
+					{
+						if(!listUsers(tokens))
+							handled = null;
+					}
+					else
+					{
+						mClient.reply(Opcode.Invalid, "reason", "PermissionDenied");
+					}
+					break;
+				case "stats":
+					if(_user.level() == User.Level.Administrator)
+					{
+						mClient.reply(Opcode.Ack, getStats());
+					}
+					else
+					{
+						mClient.reply(Opcode.Invalid, "reason", "PermissionDenied");
+					}
+					break;
+				default:
+					mClient.reply(Opcode.Invalid, "reason", "InvalidRequest");
+					handled = null;
+					break;
+				}
+				
+				long duration = System.nanoTime() - started;
+				mMetrics.queryServed(handled);
+				mMetrics.record(ServerMetrics.Phase.Query, duration);
+				
+				if(handled != null)
+				{
+					mLog.event(EventLog.Level.Info, mClient, "query", "served", duration, "query", handled);
+				}
+				else
+				{
+					mLog.event(EventLog.Level.Warn, mClient, "query", "rejected", duration, "query", tokens[0]);
+				}
+				
+				// stay logged in and wait for the client's next query
+				_conversation.expect(Reaper.Phase.Query);
+			}
+		});
+	}
+	
+	/**
+	 * Method that answers a users query of the form "users [after=<username>] [limit=<n>]" with one page of
+	 * the user listing. The page is streamed as Part messages of a few users each followed by an Ack, which
+	 * carries the listing's version and the cursor for the next page as 'next' if there are more users to list.
+	 * @param _tokens The words of the query
+	 * @return True if the query was answered, false if it was malformed and refused
+	 */
+	private boolean listUsers(String[] _tokens)
+	{
+		int start = 0;
+		int limit = DefaultPageSize;
+		
+		for(int i = 1; i < _tokens.length; i++)
+		{
+			String[] parameter = _tokens[i].split("=", 2);
+			
+			try {
+				if(parameter.length == 2 && parameter[0].equals("after"))
+				{
+					start = mUsers.positionAfter(parameter[1]);
+					if(start < 0)
+					{
+						mClient.reply(Opcode.Invalid, "reason", "UnknownCursor");
+						return false;
+					}
+				}
+				else if(parameter.length == 2 && parameter[0].equals("limit"))
+				{
+					limit = Integer.parseInt(parameter[1]);
+					if(limit < 1 || limit > MaxPageSize)
+						throw new NumberFormatException();
+				}
+				else if(!_tokens[i].isEmpty())
+				{
+					throw new NumberFormatException();
+				}
+			} catch (NumberFormatException e) {
+				mClient.reply(Opcode.Invalid, "reason", "MalformedRequest");
+				return false;
+			}
+		}
+		
+		if(mListing == null)
+			mListing = new StringBuilder();
+		
+		// the whole page comes from one snapshot, even if users are added while it is sent
+		UserListing listing = mUsers.listing();
+		int end = Math.min(start + limit, listing.size());
+		mListing.setLength(0);
+		
+		for(int position = start; position < end; position++)
+		{
+			if(mListing.length() > 0)
+				mListing.append(',');
+			listing.appendEntry(position, mListing);
+			
+			// send each full part as it is built, only the final Ack waits for the end of the page
+			if((position - start + 1) % UsersPerPart == 0 && position + 1 < end)
+			{
+				mClient.reply(Opcode.Part, "users", mListing);
+				mListing.setLength(0);
+			}
+		}
+		
+		String version = Long.toString(listing.version());
+		
+		if(end < listing.size())
+			mClient.reply(Opcode.Ack, "users", mListing, "version", version, "next", mUsers.usernameAt(end - 1));
+		else
+			mClient.reply(Opcode.Ack, "users", mListing, "version", version);
+		
+		return true;
+	}
+	
+	/**
+	 * Helper method to build the fields of a reply to the stats query, "stats=ok" followed by every statistic
+	 * @return Name/value pairs, alternating names and values
+	 */
+	private CharSequence[] getStats()
+	{
+		Map<String, Long> stats = mStats.snapshot();
+		CharSequence[] fields = new CharSequence[2 * (stats.size() + 1)];
+		
+		fields[0] = "stats";
+		fields[1] = "ok";
+		int i = 2;
+		for(Map.Entry<String, Long> stat : stats.entrySet())
+		{
+			fields[i++] = stat.getKey();
+			fields[i++] = stat.getValue().toString();
+		}
+		
+		return fields;
+	}
+	
+	/**
+	 * Fetch the super secret data that must never be shared, it contains many secrets. Deep, dark secrets. So secret, and meaningful.
+	 * @return Can't tell you. Shh.
+	 */
+	private String getSecretData()
+	{
+		// generated ahead of time from a SecureRandom, see SecretGenerator
+		return mSecrets.next();
+	}
+}
@@ -0,0 +1,12 @@
+package cs4520.server;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Interface that handles a connection missing one of its deadlines (see the Reaper object)
+ */
+public interface ReapListener {
+	// method called when the client has taken too long over the phase it was in, or sent a request too
+	// slowly, the connection should be closed without waiting on the client any further
+	public void onReap(Reaper.Phase _phase, boolean _tooSlow);
+}
@@ -0,0 +1,271 @@
+package cs4520.server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Enforces the deadlines a client must keep, so a client that connects and then says nothing, or trickles
+ * its requests in a byte at a time, cannot hold on to a thread or TLS session for long. Each phase of the
+ * conversation has its own limit, from the start of the phase to the end of the message that completes it,
+ * and sending part of the message does not put the deadline back. Once the first byte of a request has
+ * arrived, the rest must also keep up with a minimum rate, so a slow request is dropped long before the
+ * limit of a phase as generous as a logged in client's idle limit. Writing replies to the client is a
+ * phase of its own, so a client that sends requests but stops reading the replies cannot hold a connection
+ * with a write that never finishes.
+ *
+ * Every connection keeps a Watch, which is started as the connection begins waiting on the client and
+ * stopped when the message arrives. A watch only schedules a timer when started and when its request's
+ * first byte arrives, checking the rate when that timer fires rather than on every read, so keeping
+ * watch costs next to nothing.
+ */
+public class Reaper {
+	public enum Phase
+	{
+		Handshake,	// the TLS handshake
+		Username,	// the client's first line, a username or a session token
+		Secret,		// the secret that follows a username
+		Query,		// a logged in client's next query, which may be a long time coming
+		Reply		// the client taking delivery of the replies written to it, the server reads nothing more meanwhile
+	}
+	
+	private static final long RateGrace = TimeUnit.SECONDS.toNanos(2);	// how long a request has before the minimum rate applies
+	
+	private final TimerWheel mTimers;	// the timers that fire when a deadline is due
+	private final long[] mLimits;		// the limit (in ns) of each phase, indexed by ordinal
+	private final int mMinRate;			// bytes per second a request must arrive at once begun, 0 for no minimum
+	private final AtomicLongArray mReaped;				// connections reaped in each phase, indexed by ordinal
+	private final AtomicLong mTooSlow = new AtomicLong();	// of those, the ones reaped for sending too slowly
+	private final ExecutorService mCloser;				// thread that blocking connections are reaped on
+	
+	/**
+	 * Object keeping the deadlines of one connection, its methods are called from the connection's own thread
+	 */
+	public class Watch
+	{
+		private final Executor mExecutor;		// where missed deadlines are checked and reported
+		private final ReapListener mListener;	// told when the connection should be closed
+		private volatile Phase mPhase;			// the phase being watched, or null if the connection is not waiting on the client
+		private volatile long mDeadline;		// when (in ns) the phase must be over
+		private volatile boolean mBegun;		// set once the first byte of the awaited message has arrived
+		private volatile long mFirstByte;		// when (in ns) the first byte arrived
+		private volatile long mBytes;			// bytes of the awaited message received so far
+		private volatile int mGeneration;		// changed by every start and stop, so a timer left over from an earlier phase is ignored
+		private volatile TimerWheel.Timer mTimer;	// the timer for the next check, if any
+		
+		/**
+		 * Constructor, watches are created through Reaper.watch
+		 * @param _executor Where missed deadlines are checked and reported
+		 * @param _listener Told when the connection should be closed
+		 */
+		private Watch(Executor _executor, ReapListener _listener)
+		{
+			mExecutor = _executor;
+			mListener = _listener;
+		}
+		
+		/**
+		 * Starts the deadline of a phase, replacing whichever phase was being watched
+		 * @param _phase The phase the connection has entered
+		 */
+		public void start(Phase _phase)
+		{
+			cancelTimer();
+			
+			long now = mTimers.clock().nanoTime();
+			mPhase = _phase;
+			mDeadline = now + mLimits[_phase.ordinal()];
+			mBegun = false;
+			mBytes = 0;
+			
+			int generation = ++mGeneration;
+			schedule(generation, mDeadline, now);
+		}
+		
+		/**
+		 * Records bytes of the awaited message arriving, the first of them starts the minimum rate
+		 * @param _bytes The number of bytes received
+		 */
+		public void received(long _bytes)
+		{
+			if(mPhase == null || _bytes <= 0)
+				return;
+			
+			mBytes += _bytes;
+			
+			if(!mBegun && mMinRate > 0)
+			{
+				long now = mTimers.clock().nanoTime();
+				mFirstByte = now;
+				mBegun = true;
+				
+				// the rate is checked at the point the bytes received so far stop being enough
+				cancelTimer();
+				schedule(mGeneration, Math.min(mDeadline, allowed()), now);
+			}
+		}
+		
+		/**
+		 * Stops watching, as the awaited message has arrived or the connection has closed
+		 */
+		public void stop()
+		{
+			mPhase = null;
+			mGeneration++;
+			cancelTimer();
+		}
+		
+		/**
+		 * Helper method to work out when the bytes received so far stop satisfying the minimum rate
+		 * @return The time in ns
+		 */
+		private long allowed()
+		{
+			return mFirstByte + RateGrace + mBytes * 1000000000L / mMinRate;
+		}
+		
+		/**
+		 * Helper method to check the watched phase when its timer fires, reaping the connection if it has
+		 * missed its deadline or fallen below the minimum rate and otherwise checking again later
+		 * @param _generation The generation the timer was scheduled in
+		 */
+		private void check(int _generation)
+		{
+			Phase phase = mPhase;
+			if(_generation != mGeneration || phase == null)
+				return;
+			
+			long now = mTimers.clock().nanoTime();
+			long due = mDeadline;
+			boolean tooSlow = false;
+			
+			if(mBegun && mMinRate > 0)
+			{
+				long allowed = allowed();
+				tooSlow = allowed - now <= 0 && allowed - due < 0;
+				due = Math.min(due, allowed);
+			}
+			
+			if(due - now > 0)
+			{
+				schedule(_generation, due, now);
+				return;
+			}
+			
+			stop();
+			mReaped.incrementAndGet(phase.ordinal());
+			if(tooSlow)
+				mTooSlow.incrementAndGet();
+			mListener.onReap(phase, tooSlow);
+		}
+		
+		/**
+		 * Helper method to schedule the next check
+		 * @param _generation The current generation
+		 * @param _due When (in ns) to check
+		 * @param _now The current time in ns
+		 */
+		private void schedule(final int _generation, long _due, long _now)
+		{
+			mTimer = mTimers.schedule(new Runnable() {
+				public void run() {
+					mExecutor.execute(new Runnable() {
+						public void run() {
+							check(_generation);
+						}
+					});
+				}
+			}, TimeUnit.NANOSECONDS.toMillis(_due - _now + 999999));
+		}
+		
+		/**
+		 * Helper method to cancel the timer for the next check
+		 */
+		private void cancelTimer()
+		{
+			TimerWheel.Timer timer = mTimer;
+			if(timer != null)
+			{
+				timer.cancel();
+				mTimer = null;
+			}
+		}
+	}
+	
+	/**
+	 * Constructor for Reaper
+	 * @param _options The options holding the limit of each phase and the minimum rate
+	 * @param _timers The timers that fire when deadlines are due
+	 */
+	public Reaper(ServerOptions _options, TimerWheel _timers)
+	{
+		mTimers = _timers;
+		mMinRate = _options.minRate();
+		
+		mLimits = new long[Phase.values().length];
+		mLimits[Phase.Handshake.ordinal()] = TimeUnit.MILLISECONDS.toNanos(_options.handshakeLimit());
+		mLimits[Phase.Username.ordinal()] = TimeUnit.MILLISECONDS.toNanos(_options.loginLimit());
+		mLimits[Phase.Secret.ordinal()] = TimeUnit.MILLISECONDS.toNanos(_options.loginLimit());
+		mLimits[Phase.Query.ordinal()] = TimeUnit.MILLISECONDS.toNanos(_options.idleLimit());
+		mLimits[Phase.Reply.ordinal()] = TimeUnit.MILLISECONDS.toNanos(_options.replyLimit());
+		mReaped = new AtomicLongArray(mLimits.length);
+		
+		// closing a blocking socket sends close_notify, which must not hold up the timers if the client is not reading
+		mCloser = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable _task) {
+				Thread thread = new Thread(_task, "reaper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Creates a watch for a blocking connection, its missed deadlines are reported on the reaper's own thread
+	 * @param _listener Told when the connection should be closed
+	 * @return The watch
+	 */
+	public Watch watch(ReapListener _listener)
+	{
+		return new Watch(mCloser, _listener);
+	}
+	
+	/**
+	 * Creates a watch for a connection driven by an event loop, its missed deadlines are reported on the loop
+	 * @param _loop The loop that owns the connection, where the watch's methods are also called
+	 * @param _listener Told when the connection should be closed
+	 * @return The watch
+	 */
+	public Watch watch(Executor _loop, ReapListener _listener)
+	{
+		return new Watch(_loop, _listener);
+	}
+	
+	/**
+	 * Stops the thread blocking connections are reaped on, once every connection has closed
+	 */
+	public void close()
+	{
+		mCloser.shutdown();
+	}
+	
+	/**
+	 * Getter for the number of connections reaped in a phase, whether for missing its deadline or for sending too slowly
+	 * @param _phase The phase
+	 * @return The number of connections
+	 */
+	public long reaped(Phase _phase)
+	{
+		return mReaped.get(_phase.ordinal());
+	}
+	
+	/**
+	 * Getter for the number of connections reaped for sending a request slower than the minimum rate
+	 * @return The number of connections
+	 */
+	public long tooSlow()
+	{
+		return mTooSlow.get();
+	}
+}
@@ -0,0 +1,14 @@
+package cs4520.server;
+
+import java.io.IOException;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Interface that handles the result of asynchronous work (such as validating a login) once it is ready,
+ * always invoked on the thread that owns the client's Link
+ */
+public interface ResultListener<T> {
+	// method called when the result is ready
+	public void onResult(T _result) throws IOException;
+}
@@ -0,0 +1,238 @@
+package cs4520.server;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Source of the secret data served by the 'secret' query. Secrets are drawn from a SecureRandom and hex
+ * encoded ahead of time by a background thread into a ring buffer, so a query only has to take one. The
+ * ring has a single producer and any number of consumers: consumers claim a secret by advancing the head
+ * with a compare-and-set, the producer publishes secrets by advancing the tail. Once the ring drains to half
+ * full the producer is woken to top it up, and if it ever runs dry a query generates its secret inline.
+ */
+public class SecretGenerator {
+	public static final int SecretLength = 20;			// hex digits in each secret
+	private static final int Batch = 64;				// secrets drawn from the SecureRandom at a time
+	private static final char[] HexDigits = "0123456789ABCDEF".toCharArray();
+	
+	private final SecureRandom mRandom;					// source of randomness for the producer
+	private final SecureRandom mInlineRandom;			// separate source for inline generation, so fallbacks don't contend with the producer
+	private final AtomicReferenceArray<String> mRing;	// encoded secrets waiting to be served
+	private final int mMask;							// ring capacity - 1, the capacity is a power of two
+	private final int mLowWater;						// number of waiting secrets at which the producer is woken
+	private final AtomicLong mHead = new AtomicLong();	// index of the next secret to serve
+	private volatile long mTail;						// index just past the last secret published, only written by the producer
+	private final AtomicBoolean mRefilling = new AtomicBoolean(true);	// set while the producer has been asked to refill
+	private final Thread mProducer;						// background thread that refills the ring
+	private volatile boolean mClosed;					// set once the generator is closed, which stops the producer
+	
+	// metrics
+	private final long mStarted = System.nanoTime();	// when the generator was created
+	private final AtomicLong mServed = new AtomicLong();		// secrets served from the ring
+	private final AtomicLong mInline = new AtomicLong();		// secrets generated inline because the ring was empty
+	private volatile long mRefillRequested;				// when the producer was last woken, in ns
+	private volatile long mLastRefillLag;				// how long (in ns) the last refill took to top the ring up
+	private volatile long mMaxRefillLag;				// the longest refill, in ns
+	
+	/**
+	 * Constructor for SecretGenerator, starts the background thread that fills the ring
+	 * @param _capacity The number of secrets to hold ready, rounded up to a power of two
+	 */
+	public SecretGenerator(int _capacity)
+	{
+		int capacity = Integer.highestOneBit(Math.max(2, _capacity - 1)) << 1;
+		
+		mRandom = new SecureRandom();
+		mInlineRandom = new SecureRandom();
+		mRing = new AtomicReferenceArray<String>(capacity);
+		mMask = capacity - 1;
+		mLowWater = capacity / 2;
+		mRefillRequested = System.nanoTime();
+		
+		mProducer = new Thread(new Runnable() {
+			public void run() {
+				refillLoop();
+			}
+		}, "secret-refill");
+		mProducer.setDaemon(true);
+		mProducer.start();
+	}
+	
+	/**
+	 * Takes the next secret, from the ring if one is ready or generated on the calling thread if not
+	 * @return A secret of SecretLength hex digits
+	 */
+	public String next()
+	{
+		while(true)
+		{
+			long head = mHead.get();
+			
+			if(head == mTail)
+			{
+				// the producer has fallen behind, don't make the client wait for it
+				mInline.incrementAndGet();
+				requestRefill();
+				return generate();
+			}
+			
+			// read before claiming, if another consumer claims it first (and the slot is refilled) the CAS fails
+			String secret = mRing.get((int) head & mMask);
+			
+			if(mHead.compareAndSet(head, head + 1))
+			{
+				mServed.incrementAndGet();
+				if(mTail - (head + 1) <= mLowWater)
+					requestRefill();
+				return secret;
+			}
+		}
+	}
+	
+	/**
+	 * Getter for the number of secrets waiting in the ring
+	 * @return The number of secrets ready to serve
+	 */
+	public int available()
+	{
+		return (int) Math.max(0, mTail - mHead.get());
+	}
+	
+	/**
+	 * Getter for the number of secrets served from the ring
+	 * @return The number of secrets served without generating them inline
+	 */
+	public long served()
+	{
+		return mServed.get();
+	}
+	
+	/**
+	 * Getter for the number of secrets that had to be generated inline because the ring was empty
+	 * @return The number of inline fallbacks
+	 */
+	public long inlineFallbacks()
+	{
+		return mInline.get();
+	}
+	
+	/**
+	 * Getter for the average rate secrets have been handed out since the generator was created
+	 * @return Secrets per second, from the ring and inline together
+	 */
+	public double throughput()
+	{
+		double seconds = (System.nanoTime() - mStarted) / 1e9;
+		return (mServed.get() + mInline.get()) / Math.max(seconds, 1e-9);
+	}
+	
+	/**
+	 * Getter for how long the producer last took, from being woken, to fill the ring back up
+	 * @return The last refill lag in ns
+	 */
+	public long lastRefillLag()
+	{
+		return mLastRefillLag;
+	}
+	
+	/**
+	 * Getter for the longest the producer has taken, from being woken, to fill the ring back up
+	 * @return The longest refill lag in ns
+	 */
+	public long maxRefillLag()
+	{
+		return mMaxRefillLag;
+	}
+	
+	/**
+	 * Stops the producer, secrets still in the ring are served and any after that are generated inline
+	 */
+	public void close()
+	{
+		mClosed = true;
+		LockSupport.unpark(mProducer);
+	}
+	
+	/**
+	 * Helper method to wake the producer, only the first caller since the last refill does so and starts the lag clock
+	 */
+	private void requestRefill()
+	{
+		if(mRefilling.compareAndSet(false, true))
+		{
+			mRefillRequested = System.nanoTime();
+			LockSupport.unpark(mProducer);
+		}
+	}
+	
+	/**
+	 * The producer's loop, fills the ring whenever it is asked to and sleeps in between, until the generator is closed
+	 */
+	private void refillLoop()
+	{
+		byte[] random = new byte[Batch * SecretLength / 2];
+		char[] digits = new char[SecretLength];
+		int ready = 0;		// secrets left in random that have not been published
+		
+		while(!mClosed)
+		{
+			while(mTail - mHead.get() <= mMask)
+			{
+				if(ready == 0)
+				{
+					mRandom.nextBytes(random);
+					ready = Batch;
+				}
+				
+				int offset = (Batch - ready) * SecretLength / 2;
+				for(int i = 0; i < SecretLength / 2; i++)
+				{
+					int b = random[offset + i] & 0xFF;
+					digits[2*i] = HexDigits[b >>> 4];
+					digits[2*i + 1] = HexDigits[b & 0x0F];
+				}
+				ready--;
+				
+				// the slot is written before the tail moves past it, so a consumer that sees the tail sees the secret
+				mRing.set((int) mTail & mMask, new String(digits));
+				mTail = mTail + 1;
+			}
+			
+			long lag = Math.max(0, System.nanoTime() - mRefillRequested);
+			mLastRefillLag = lag;
+			if(lag > mMaxRefillLag)
+				mMaxRefillLag = lag;
+			
+			// sleep until a consumer asks for more, checking once more in case one asked just before the flag was cleared
+			mRefilling.set(false);
+			while(!mClosed && !mRefilling.get() && mTail - mHead.get() > mLowWater)
+				LockSupport.park(this);
+			
+			// if the ring drained without anyone asking, the lag is measured from now
+			if(mRefilling.compareAndSet(false, true))
+				mRefillRequested = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Helper method to generate a secret on the calling thread
+	 * @return A secret of SecretLength hex digits
+	 */
+	private String generate()
+	{
+		byte[] random = new byte[SecretLength / 2];
+		mInlineRandom.nextBytes(random);
+		
+		char[] digits = new char[SecretLength];
+		for(int i = 0; i < random.length; i++)
+		{
+			int b = random[i] & 0xFF;
+			digits[2*i] = HexDigits[b >>> 4];
+			digits[2*i + 1] = HexDigits[b & 0x0F];
+		}
+		return new String(digits);
+	}
+}
@@ -1,9 +1,13 @@
 package cs4520.server;
 
 import java.net.*;
-import java.util.ArrayList;
+import java.nio.file.Paths;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 
+import javax.management.*;
 import javax.net.ssl.*;
 
 
@@ -11,11 +15,23 @@ import javax.net.ssl.*;
  * @author Oliver Maskery
  *
  * Object representing the CS4520 server, handling login requests by users before servicing valid logins with secret data.
+ * The constructor starts everything up to listening, run accepts clients, and close (or the JVM shutting down) stops it all.
  */
-public class Server {
-	private ArrayList<Connection> mConnections = new ArrayList<Connection>();	// array of current connections
-	private UserManager mUsers = new UserManager();								// user manager object for storing login credentials
-	private SSLServerSocket mServer;												// server socket for accepting connections
+public class Server implements Runnable {
+	private static final long AcceptBackOff = 100;	// how long (in ms) an acceptor waits after accept fails before trying again
+	
+	private UserManager mUsers;													// user manager object for storing login credentials
+	private volatile ServerContext mContext;									// state shared with every connection
+	private volatile SSLServerSocket[] mServers;								// server sockets for accepting connections, one per acceptor or one shared by all
+	private volatile NioServer mNioServer;										// non-blocking server core, used instead of mServers when selected
+	private Executor mConnectionThreads;										// provides the thread each blocking Connection runs on
+	private EventLog mLog;														// the server's log, shared with every connection
+	private UserStore mStore;													// the store holding the users, or null if they are held in memory
+	private ObjectName mStatsName;												// the name the statistics are registered with JMX under, or null if they are not
+	private int mAcceptors;														// the number of threads accepting connections
+	private long mDrainLimit;													// how long (in ms) connections may take to finish when the server stops
+	private Thread mShutdownHook;												// stops the server when the JVM shuts down
+	private final AtomicBoolean mClosed = new AtomicBoolean();					// set once the server has begun stopping
 	
 	/**
 	 * Server constructor
@@ -24,46 +40,368 @@ public class Server {
 	 */
 	public Server(int _port) throws IOException
 	{
+		this(new ServerOptions(_port));
+	}
+	
+	/**
+	 * Server constructor, returns once the server is listening, call run to start accepting clients
+	 * @param _options The startup options, including which server core (blocking or non-blocking) to run
+	 * @throws IOException
+	 */
+	public Server(ServerOptions _options) throws IOException
+	{
+		if(_options.logFile() != null)
+			mLog = new EventLog(_options.logLevel(), Paths.get(_options.logFile()), _options.logSize(), _options.logFiles());
+		else
+			mLog = new EventLog(_options.logLevel());
+		
+		if(_options.userDatabase() != null)
+		{
+			// the store is only mapped, nothing is read or rehashed until users log in
+			long start = System.nanoTime();
+			mStore = UserStore.open(Paths.get(_options.userDatabase()));
+			mLog.event(EventLog.Level.Info, null, "startup", "store-opened", System.nanoTime() - start,
+					"users", Integer.toString(mStore.size()), "path", mStore.path().toString());
+		}
+		
+		mDrainLimit = _options.drainLimit();
+		mShutdownHook = new Thread(new Runnable() {
+			public void run() {
+				stop();
+			}
+		}, "server-shutdown");
+		Runtime.getRuntime().addShutdownHook(mShutdownHook);
+		
+		// one wheel holds every deadline the server keeps, from lockouts and tokens to each connection's idle limit
+		TimerWheel timers = new TimerWheel(Clock.Default, TimerWheel.DefaultTick, mLog);
+		timers.start("timer-wheel");
+		
+		mUsers = new UserManager(_options.hashThreads(), _options.hashQueue(), _options.tokenTimeToLive(), mStore, timers);
+		mContext = new ServerContext(_options, mUsers, new SecretGenerator(_options.secretBuffer()), mLog, new ServerMetrics(), timers);
+		
+		// the same statistics as the stats query, for JMX consoles
+		try {
+			ObjectName name = new ObjectName("cs4520.server:type=ServerStats");
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mContext.stats(), name);
+			mStatsName = name;
+		} catch (JMException e) {
+			// most likely another server in the same JVM already registered, which is harmless
+			mLog.event(EventLog.Level.Warn, null, "startup", "jmx-unavailable", -1, "reason", e.toString());
+		}
+		
 		// Start the server
-		System.out.print("Starting server for CS4520 coursework...");
-		mServer = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(_port);
-		System.out.println("done");
+		if(_options.mode() == ServerOptions.Mode.NonBlocking)
+			mNioServer = new NioServer(_options.port(), _options.eventLoops(), _options.acceptors(), _options.reusePort(), mContext);
+		else
+		{
+			SSLServerSocket[] servers = new SSLServerSocket[_options.reusePort() ? _options.acceptors() : 1];
+			for(int i = 0; i < servers.length; i++)
+				servers[i] = listen(_options.port(), _options.reusePort());
+			mServers = servers;
+			mConnectionThreads = ConnectionThreads.create(_options.threads(), _options.poolSize());
+		}
 		
-		// for simplicity
+		// for simplicity, users already in the store are left alone
 		mUsers.addUser("guest", "meow", User.Level.Guest);
 		mUsers.addUser("rolfharris", "canyoutellwhatitisyet", User.Level.User);
 		mUsers.addUser("admin", "secretsecret", User.Level.Administrator);
 		
-		// Start accepting connections
-		System.out.println("Entering main accept loop...");
-		while(true)
+		mAcceptors = _options.acceptors();
+		mLog.info("startup", "listening", "mode", _options.mode().toString(), "port", Integer.toString(_options.port()),
+				"acceptors", Integer.toString(_options.acceptors()), "reuse_port", Boolean.toString(_options.reusePort()));
+	}
+	
+	/**
+	 * Accepts clients, the first acceptor on the calling thread, until the server begins stopping
+	 */
+	public void run()
+	{
+		if(mNioServer != null)
+			mNioServer.run();
+		else
+			accept(mAcceptors);
+	}
+	
+	/**
+	 * Stops the server as the JVM shutting down would, for a server run inside a larger program. Returns once
+	 * the connections have finished (or been aborted after the drain limit) and the server's threads have been
+	 * told to stop.
+	 */
+	public void close()
+	{
+		try {
+			Runtime.getRuntime().removeShutdownHook(mShutdownHook);
+		} catch (IllegalStateException e) {
+			// the JVM is already shutting down, and the hook stops the server
+		}
+		stop();
+	}
+	
+	/**
+	 * Helper method to stop the server, the first time it is called. Accepting stops and the open connections
+	 * are allowed to finish, then the store is closed so its index is saved rather than rebuilt next time, and last the
+	 * log writes out whatever is still waiting.
+	 */
+	private void stop()
+	{
+		if(!mClosed.compareAndSet(false, true))
+			return;
+		
+		drain(mDrainLimit);
+		
+		ServerContext context = mContext;
+		if(context != null)
+		{
+			if(mNioServer != null)
+				mNioServer.stop();
+			if(mConnectionThreads instanceof ExecutorService)
+				((ExecutorService) mConnectionThreads).shutdown();
+			context.reaper().close();
+			context.users().close();
+			context.secrets().close();
+			context.timers().stop();
+		}
+		
+		try {
+			if(mStatsName != null)
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mStatsName);
+		} catch (JMException e) {
+			mLog.error(null, "shutdown", e);
+		}
+		
+		try {
+			if(mStore != null)
+				mStore.close();
+		} catch (IOException e) {
+			mLog.error(null, "shutdown", e);
+		}
+		mLog.info("shutdown", "done");
+		mLog.close();
+	}
+	
+	/**
+	 * Helper method to create a listening socket for the blocking core
+	 * @param _port The port on which to listen
+	 * @param _reusePort True to bind with SO_REUSEPORT, so that other sockets may listen on the same port
+	 * @return The bound socket
+	 * @throws IOException
+	 * @throws IllegalStateException If SO_REUSEPORT was requested but is not supported on this platform
+	 */
+	private static SSLServerSocket listen(int _port, boolean _reusePort) throws IOException
+	{
+		SSLServerSocket server = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket();
+		
+		if(_reusePort)
+		{
+			if(!server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+			{
+				server.close();
+				throw new IllegalStateException("SO_REUSEPORT is not supported on this platform");
+			}
+			server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		
+		server.bind(new InetSocketAddress(_port));
+		return server;
+	}
+	
+	/**
+	 * Runs the blocking server's acceptors, each on its own socket if there is one per acceptor and otherwise all
+	 * on the one socket, the first of them on the calling thread. Returns once the server begins shutting down.
+	 * @param _acceptors The number of acceptors
+	 */
+	private void accept(int _acceptors)
+	{
+		for(int i = 1; i < _acceptors; i++)
 		{
-			// Accept a client
-			Socket client = mServer.accept();
-			// Wrap it in a Connection object
-			final Connection newConnection = new Connection(client, mUsers);
-			// Register for notification when the Connection is complete, so we can remove it from our list
-			newConnection.addListener(new CompletionListener() {
-				public void onCompletion(Object _sender) {
-					mConnections.remove(newConnection);
+			final SSLServerSocket server = mServers[i % mServers.length];
+			Thread acceptor = new Thread(new Runnable() {
+				public void run() {
+					acceptLoop(server);
+				}
+			}, "acceptor-" + i);
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+		
+		acceptLoop(mServers[0]);
+	}
+	
+	/**
+	 * The blocking server's accept loop, starts a Connection for every client. A client that cannot be set up is
+	 * dropped without stopping the loop, which only returns once the server begins shutting down or its socket is
+	 * closed, and the socket is closed on the way out so it is not left bound with nobody accepting from it.
+	 * @param _server The socket to accept clients from
+	 */
+	private void acceptLoop(SSLServerSocket _server)
+	{
+		ConnectionRegistry connections = mContext.connections();
+		
+		try {
+			while(true)
+			{
+				// Accept a client
+				Socket client;
+				try {
+					client = _server.accept();
+				} catch (IOException e) {
+					// the shutdown closes the server socket to stop accepting
+					if(connections.draining() || _server.isClosed())
+						return;
+					
+					// anything else, such as running out of file descriptors, is waited out
+					mLog.error(null, "accept", e);
+					if(!backOff())
+						return;
+					continue;
+				}
+				
+				try {
+					serve(client, connections);
+				} catch (Exception e) {
+					// one client failing to be set up must not stop the others being accepted
+					mLog.error(null, "accept", e);
+					try {
+						client.close();
+					} catch (IOException e2) {
+						// the client is being dropped either way
+					}
 				}
-			});
-			
-			// add the new connection to our list
-			mConnections.add(newConnection);
-			
-			// start asynchronously handling that new connection
-			newConnection.start();
+			}
+		} finally {
+			try {
+				_server.close();
+			} catch (IOException e) {
+				// nothing more is accepted from it either way
+			}
 		}
 	}
 	
+	/**
+	 * Helper method to start a Connection for an accepted client, or refuse it if the server is full
+	 * @param _client The accepted client
+	 * @param _connections The registry the connection is added to
+	 * @throws IOException
+	 */
+	private void serve(Socket _client, final ConnectionRegistry _connections) throws IOException
+	{
+		// refuse the client before anything is spent on it if the server is full
+		if(!_connections.admit())
+		{
+			mLog.event(EventLog.Level.Warn, null, "connect", "refused", -1,
+					"ip", _client.getInetAddress().getHostAddress(), "open", Integer.toString(_connections.size()));
+			_client.close();
+			return;
+		}
+		
+		// Wrap it in a Connection object
+		final Connection newConnection;
+		try {
+			newConnection = new Connection(_client, mContext);
+		} catch (IOException e) {
+			_connections.cancel();
+			throw e;
+		}
+		
+		// Register for notification when the Connection is complete, so we can remove it from the registry
+		newConnection.addListener(new CompletionListener() {
+			public void onCompletion(Object _sender) {
+				_connections.remove(newConnection);
+			}
+		});
+		_connections.add(newConnection);
+		
+		// start asynchronously handling that new connection
+		try {
+			newConnection.start(mConnectionThreads);
+		} catch (RuntimeException e) {
+			_connections.remove(newConnection);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Helper method to pause an acceptor after accept fails, so a failure that persists does not spin the loop
+	 * @return False if the acceptor was interrupted and should stop
+	 */
+	static boolean backOff()
+	{
+		try {
+			Thread.sleep(AcceptBackOff);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * Stops accepting clients and drains every open connection
+	 * @param _limit How long (in ms) connections may take to finish before they are aborted
+	 */
+	private void drain(long _limit)
+	{
+		ServerContext context = mContext;
+		if(context == null)
+			return;
+		
+		ConnectionRegistry connections = context.connections();
+		long start = System.nanoTime();
+		mLog.info("shutdown", "draining", "open", Integer.toString(connections.size()));
+		
+		// the accept loops must see the registry draining once their sockets are closed, or it takes the close for a failure
+		connections.refuseAll();
+		try {
+			if(mNioServer != null)
+				mNioServer.close();
+			else if(mServers != null)
+			{
+				for(SSLServerSocket server : mServers)
+					server.close();
+			}
+		} catch (IOException e) {
+			mLog.error(null, "shutdown", e);
+		}
+		
+		boolean drained = connections.drain(_limit);
+		mLog.event(drained ? EventLog.Level.Info : EventLog.Level.Warn, null, "shutdown", drained ? "drained" : "aborted",
+				System.nanoTime() - start, "open", Integer.toString(connections.size()));
+	}
+	
 	public static void main(String[] args) {
+		ServerOptions options;
+		try {
+			options = ServerOptions.parse(args, 28000);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: Server [--port=<port>] [--mode=blocking|nio] [--loops=<event loop threads>]");
+			System.err.println("              [--acceptors=<accepting threads>] [--reuse-port=on|off]");
+			System.err.println("              [--threads=platform|pool|virtual] [--pool-size=<threads>]");
+			System.err.println("              [--hash-threads=<threads>] [--hash-queue=<waiting logins>]");
+			System.err.println("              [--token-ttl=<session token lifetime in seconds>]");
+			System.err.println("              [--idle-limit=<seconds a logged in client may stay silent>]");
+			System.err.println("              [--handshake-limit=<seconds for the TLS handshake>] [--login-limit=<seconds for each login step>]");
+			System.err.println("              [--reply-limit=<seconds a client may leave its replies unread>]");
+			System.err.println("              [--min-rate=<bytes per second a request must arrive at, 0 for no minimum>]");
+			System.err.println("              [--max-connections=<connections open at once>] [--drain-limit=<seconds to finish on shutdown>]");
+			System.err.println("              [--user-db=<file holding the users, created if missing>]");
+			System.err.println("              [--secret-buffer=<secrets generated ahead of queries>]");
+			System.err.println("              [--log-level=debug|info|warn|error] [--log-file=<file, stdout if not given>]");
+			System.err.println("              [--log-size=<MB before the log file is rotated>] [--log-files=<rotated files kept>]");
+			System.err.println("              [--login-rate=<login attempts per second from one address, 0 for no limit>]");
+			System.err.println("              [--login-burst=<login attempts at once>] [--login-addresses=<addresses tracked>]");
+			return;
+		}
+		
 		try {
 			// run the server
-			new Server(28000);
+			new Server(options).run();
 		} catch (IOException e) {
 			System.err.println("Exception starting server:");
 			e.printStackTrace(System.err);
+		} catch (IllegalStateException e) {
+			// the requested configuration is not supported by this JVM
+			System.err.println("Cannot start server: " + e.getMessage());
 		}
 	}
 }
@@ -0,0 +1,134 @@
+package cs4520.server;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Object bundling the state shared by every connection of a running server, so that connections and
+ * protocols are handed one reference rather than a growing list of them
+ */
+public class ServerContext {
+	private ServerOptions mOptions;		// the options the server was started with
+	private UserManager mUsers;			// user manager object for storing login credentials
+	private SecretGenerator mSecrets;	// source of the data served by the secret query
+	private EventLog mLog;				// where connections record what happens to them
+	private ServerMetrics mMetrics;		// instrumentation recorded by every connection
+	private ServerStats mStats;			// read only view of the instrumentation
+	private LoginLimiter mLimiter;		// limits the login attempts from each address
+	private TimerWheel mTimers;			// schedules every deadline the server keeps
+	private Reaper mReaper;				// disconnects clients that miss their deadlines
+	private ConnectionRegistry mConnections;	// every open connection
+	
+	/**
+	 * Constructor for ServerContext
+	 * @param _options The options the server was started with
+	 * @param _users The user manager shared by all connections
+	 * @param _secrets The secret generator shared by all connections
+	 * @param _log The server's log
+	 * @param _metrics The instrumentation shared by all connections
+	 * @param _timers The timers shared by all connections, already started
+	 */
+	public ServerContext(ServerOptions _options, UserManager _users, SecretGenerator _secrets, EventLog _log, ServerMetrics _metrics,
+			TimerWheel _timers)
+	{
+		mOptions = _options;
+		mUsers = _users;
+		mSecrets = _secrets;
+		mLog = _log;
+		mMetrics = _metrics;
+		mTimers = _timers;
+		mStats = new ServerStats(this);
+		mLimiter = new LoginLimiter(_options.loginRate(), _options.loginBurst(), _options.loginAddresses());
+		mReaper = new Reaper(_options, _timers);
+		mConnections = new ConnectionRegistry(_options.maxConnections());
+	}
+	
+	/**
+	 * Getter for the options the server was started with
+	 * @return The server options
+	 */
+	public ServerOptions options()
+	{
+		return mOptions;
+	}
+	
+	/**
+	 * Getter for the user manager shared by all connections
+	 * @return The user manager
+	 */
+	public UserManager users()
+	{
+		return mUsers;
+	}
+	
+	/**
+	 * Getter for the secret generator shared by all connections
+	 * @return The secret generator
+	 */
+	public SecretGenerator secrets()
+	{
+		return mSecrets;
+	}
+	
+	/**
+	 * Getter for the server's log
+	 * @return The log
+	 */
+	public EventLog log()
+	{
+		return mLog;
+	}
+	
+	/**
+	 * Getter for the instrumentation shared by all connections
+	 * @return The metrics to record into
+	 */
+	public ServerMetrics metrics()
+	{
+		return mMetrics;
+	}
+	
+	/**
+	 * Getter for the read only view of the server's instrumentation, as served by the stats query and JMX
+	 * @return The statistics
+	 */
+	public ServerStats stats()
+	{
+		return mStats;
+	}
+	
+	/**
+	 * Getter for the limiter consulted before each login attempt is hashed
+	 * @return The login limiter
+	 */
+	public LoginLimiter limiter()
+	{
+		return mLimiter;
+	}
+	
+	/**
+	 * Getter for the timers shared by all connections, tasks scheduled on them must be quick
+	 * @return The timer wheel
+	 */
+	public TimerWheel timers()
+	{
+		return mTimers;
+	}
+	
+	/**
+	 * Getter for the reaper that watches every connection's deadlines
+	 * @return The reaper
+	 */
+	public Reaper reaper()
+	{
+		return mReaper;
+	}
+	
+	/**
+	 * Getter for the registry of every open connection
+	 * @return The connection registry
+	 */
+	public ConnectionRegistry connections()
+	{
+		return mConnections;
+	}
+}
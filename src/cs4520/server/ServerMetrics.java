@@ -0,0 +1,157 @@
+package cs4520.server;
+
+import java.util.concurrent.atomic.*;
+
+import cs4520.util.LatencyHistogram;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Instrumentation shared by every connection: a latency histogram for each phase a client's request passes
+ * through, counters of login outcomes and of queries served, and a gauge of the connections currently open.
+ * Everything here is recorded with atomic increments so it can stay enabled on every request. Key derivation
+ * is timed by the UserManager itself, see ServerStats for how it is all read.
+ */
+public class ServerMetrics {
+	public enum Phase
+	{
+		Handshake,		// the TLS handshake, from accepting the client to the first application data
+		Read,			// waiting for the client's next line, which includes the client's own think time
+		Login,			// from receiving the client's secret to knowing whether it was right, key derivation included
+		Query			// handling a query, from receiving it to queueing the reply
+	}
+	
+	// the queries that are counted, anything else is counted as invalid
+	public static final String[] Queries = { "fact", "secret", "users", "stats", "ping", "close", "invalid" };
+	
+	private final LatencyHistogram[] mPhases;			// one histogram per phase, indexed by ordinal
+	private final AtomicLongArray mResults;				// logins per ValidationResult, indexed by ordinal
+	private final AtomicLongArray mQueries;				// queries per entry of Queries
+	private final AtomicInteger mConnections = new AtomicInteger();	// connections currently open
+	private final AtomicLong mAccepted = new AtomicLong();	// connections accepted since the server started
+	private final long mStarted = System.currentTimeMillis();	// when the server started, in ms
+	
+	/**
+	 * Constructor for ServerMetrics, with everything at zero
+	 */
+	public ServerMetrics()
+	{
+		mPhases = new LatencyHistogram[Phase.values().length];
+		for(int i = 0; i < mPhases.length; i++)
+			mPhases[i] = new LatencyHistogram();
+		
+		mResults = new AtomicLongArray(UserManager.ValidationResult.values().length);
+		mQueries = new AtomicLongArray(Queries.length);
+	}
+	
+	/**
+	 * Records how long a phase took
+	 * @param _phase The phase
+	 * @param _nanos How long it took, in ns
+	 */
+	public void record(Phase _phase, long _nanos)
+	{
+		mPhases[_phase.ordinal()].record(_nanos);
+	}
+	
+	/**
+	 * Counts the outcome of a login, whether by secret or by session token
+	 * @param _result The outcome
+	 */
+	public void loginResult(UserManager.ValidationResult _result)
+	{
+		mResults.incrementAndGet(_result.ordinal());
+	}
+	
+	/**
+	 * Counts a query answered, by its type
+	 * @param _query The query's first word, lower case, or null if the query was not valid
+	 */
+	public void queryServed(String _query)
+	{
+		for(int i = 0; i < Queries.length - 1; i++)
+		{
+			if(Queries[i].equals(_query))
+			{
+				mQueries.incrementAndGet(i);
+				return;
+			}
+		}
+		
+		mQueries.incrementAndGet(Queries.length - 1);
+	}
+	
+	/**
+	 * Counts a connection being accepted, it stays in the open gauge until connectionClosed is called
+	 */
+	public void connectionOpened()
+	{
+		mAccepted.incrementAndGet();
+		mConnections.incrementAndGet();
+	}
+	
+	/**
+	 * Removes a connection from the open gauge
+	 */
+	public void connectionClosed()
+	{
+		mConnections.decrementAndGet();
+	}
+	
+	/**
+	 * Getter for the histogram of a phase
+	 * @param _phase The phase
+	 * @return The phase's histogram
+	 */
+	public LatencyHistogram phase(Phase _phase)
+	{
+		return mPhases[_phase.ordinal()];
+	}
+	
+	/**
+	 * Getter for the number of logins with a given outcome
+	 * @param _result The outcome
+	 * @return The number of logins
+	 */
+	public long results(UserManager.ValidationResult _result)
+	{
+		return mResults.get(_result.ordinal());
+	}
+	
+	/**
+	 * Getter for the number of queries of a type answered
+	 * @param _index The type's index in Queries
+	 * @return The number of queries
+	 */
+	public long queries(int _index)
+	{
+		return mQueries.get(_index);
+	}
+	
+	/**
+	 * Getter for the number of connections currently open
+	 * @return The open connections
+	 */
+	public int connections()
+	{
+		return mConnections.get();
+	}
+	
+	/**
+	 * Getter for the number of connections accepted since the server started
+	 * @return The accepted connections
+	 */
+	public long accepted()
+	{
+		return mAccepted.get();
+	}
+	
+	/**
+	 * Getter for how long the server has been running
+	 * @return The uptime in ms
+	 */
+	public long uptime()
+	{
+		return System.currentTimeMillis() - mStarted;
+	}
+}
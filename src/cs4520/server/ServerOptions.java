@@ -0,0 +1,526 @@
+package cs4520.server;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Object holding the startup options of the CS4520 server, parsed from the command line
+ */
+public class ServerOptions {
+	public enum Mode
+	{
+		Blocking,		// one thread per connection blocking on an SSLServerSocket (the original server)
+		NonBlocking		// a few selector driven event loops using SSLEngine over SocketChannels
+	}
+	
+	private int mPort;					// the port on which the server should listen
+	private Mode mMode;					// which of the two server cores to run
+	private int mEventLoops;			// number of event loop threads used by the non-blocking core
+	private int mAcceptors;				// number of threads accepting connections
+	private boolean mReusePort;			// set to give each acceptor its own listening socket, bound with SO_REUSEPORT
+	private ConnectionThreads.Strategy mThreads;	// how the blocking core gives each connection a thread
+	private int mPoolSize;				// number of threads when the blocking core uses a bounded pool
+	private int mHashThreads;			// number of threads deriving keys for login validation
+	private int mHashQueue;				// number of logins that may wait for a hashing thread
+	private long mTokenTimeToLive;		// how long (in ms) a session token remains valid
+	private long mIdleLimit;			// how long (in ms) a logged in client may stay silent between queries
+	private long mHandshakeLimit;		// how long (in ms) a client may take over the TLS handshake
+	private long mLoginLimit;			// how long (in ms) a client may take to send its username, and again its secret
+	private long mReplyLimit;			// how long (in ms) a client may leave the replies the server is writing unread
+	private int mMinRate;				// bytes per second a request must arrive at once it has begun, 0 for no minimum
+	private int mMaxConnections;		// most connections open at once, further clients are refused
+	private long mDrainLimit;			// how long (in ms) connections may take to finish when the server shuts down
+	private String mUserDatabase;		// file holding the user store, or null to keep users in memory only
+	private int mSecretBuffer;			// number of secrets generated ahead of the queries that need them
+	private EventLog.Level mLogLevel;	// least severe log events that are recorded
+	private String mLogFile;			// file the log is written to, or null for stdout
+	private long mLogSize;				// size (in bytes) at which the log file is rotated
+	private int mLogFiles;				// number of rotated log files kept
+	private double mLoginRate;			// login attempts allowed per second from each address, 0 for no limit
+	private int mLoginBurst;			// login attempts an address may make at once before the rate applies
+	private int mLoginAddresses;		// most addresses whose login attempts are tracked at once
+	
+	/**
+	 * Constructor for the default options, a blocking server listening on the given port
+	 * @param _port The port on which the server should listen
+	 */
+	public ServerOptions(int _port)
+	{
+		mPort = _port;
+		mMode = Mode.Blocking;
+		mEventLoops = Runtime.getRuntime().availableProcessors();
+		mAcceptors = 1;
+		mReusePort = false;
+		mThreads = ConnectionThreads.Strategy.Platform;
+		mPoolSize = 256;
+		mHashThreads = Runtime.getRuntime().availableProcessors();
+		mHashQueue = 1024;
+		mTokenTimeToLive = 15*60*1000;
+		mIdleLimit = 5*60*1000;
+		mHandshakeLimit = 10*1000;
+		mLoginLimit = 30*1000;
+		mReplyLimit = 30*1000;
+		mMinRate = 100;
+		mMaxConnections = 10000;
+		mDrainLimit = 30*1000;
+		mUserDatabase = null;
+		mSecretBuffer = 4096;
+		mLogLevel = EventLog.Level.Info;
+		mLogFile = null;
+		mLogSize = 16*1024*1024;
+		mLogFiles = 5;
+		mLoginRate = 10;
+		mLoginBurst = 20;
+		mLoginAddresses = 64*1024;
+	}
+	
+	/**
+	 * Parses options of the form "--name=value" from the command line, unrecognised options are rejected
+	 * @param _args The command line arguments
+	 * @param _defaultPort The port to use if none is given
+	 * @return The parsed options
+	 * @throws IllegalArgumentException If an option is not recognised or its value is invalid
+	 */
+	public static ServerOptions parse(String[] _args, int _defaultPort)
+	{
+		ServerOptions options = new ServerOptions(_defaultPort);
+		
+		for(String arg : _args)
+		{
+			String[] parts = arg.split("=", 2);
+			String name = parts[0];
+			String value = parts.length > 1 ? parts[1] : "";
+			
+			switch(name)
+			{
+			case "--port":
+				options.mPort = Integer.parseInt(value);
+				break;
+			case "--mode":
+				options.mMode = parseMode(value);
+				break;
+			case "--loops":
+				options.mEventLoops = Integer.parseInt(value);
+				break;
+			case "--acceptors":
+				options.mAcceptors = Integer.parseInt(value);
+				break;
+			case "--reuse-port":
+				options.mReusePort = parseSwitch(name, value);
+				break;
+			case "--threads":
+				options.mThreads = parseThreads(value);
+				break;
+			case "--pool-size":
+				options.mPoolSize = Integer.parseInt(value);
+				break;
+			case "--hash-threads":
+				options.mHashThreads = Integer.parseInt(value);
+				break;
+			case "--hash-queue":
+				options.mHashQueue = Integer.parseInt(value);
+				break;
+			case "--token-ttl":
+				options.mTokenTimeToLive = Long.parseLong(value) * 1000;
+				break;
+			case "--idle-limit":
+				options.mIdleLimit = Long.parseLong(value) * 1000;
+				break;
+			case "--handshake-limit":
+				options.mHandshakeLimit = Long.parseLong(value) * 1000;
+				break;
+			case "--login-limit":
+				options.mLoginLimit = Long.parseLong(value) * 1000;
+				break;
+			case "--reply-limit":
+				options.mReplyLimit = Long.parseLong(value) * 1000;
+				break;
+			case "--min-rate":
+				options.mMinRate = Integer.parseInt(value);
+				break;
+			case "--max-connections":
+				options.mMaxConnections = Integer.parseInt(value);
+				break;
+			case "--drain-limit":
+				options.mDrainLimit = Long.parseLong(value) * 1000;
+				break;
+			case "--user-db":
+				if(value.isEmpty())
+					throw new IllegalArgumentException("--user-db needs a file name");
+				options.mUserDatabase = value;
+				break;
+			case "--secret-buffer":
+				options.mSecretBuffer = Integer.parseInt(value);
+				break;
+			case "--log-level":
+				options.mLogLevel = parseLogLevel(value);
+				break;
+			case "--log-file":
+				if(value.isEmpty())
+					throw new IllegalArgumentException("--log-file needs a file name");
+				options.mLogFile = value;
+				break;
+			case "--log-size":
+				options.mLogSize = Long.parseLong(value) * 1024 * 1024;
+				break;
+			case "--log-files":
+				options.mLogFiles = Integer.parseInt(value);
+				break;
+			case "--login-rate":
+				options.mLoginRate = Double.parseDouble(value);
+				break;
+			case "--login-burst":
+				options.mLoginBurst = Integer.parseInt(value);
+				break;
+			case "--login-addresses":
+				options.mLoginAddresses = Integer.parseInt(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option '" + arg + "'");
+			}
+		}
+		
+		if(options.mEventLoops < 1)
+			throw new IllegalArgumentException("--loops must be at least 1");
+		if(options.mAcceptors < 1)
+			throw new IllegalArgumentException("--acceptors must be at least 1");
+		if(options.mPoolSize < 1)
+			throw new IllegalArgumentException("--pool-size must be at least 1");
+		if(options.mHashThreads < 1 || options.mHashQueue < 1)
+			throw new IllegalArgumentException("--hash-threads and --hash-queue must be at least 1");
+		if(options.mTokenTimeToLive < 1000)
+			throw new IllegalArgumentException("--token-ttl must be at least 1 second");
+		if(options.mIdleLimit < 1000)
+			throw new IllegalArgumentException("--idle-limit must be at least 1 second");
+		if(options.mHandshakeLimit < 1000 || options.mLoginLimit < 1000 || options.mReplyLimit < 1000)
+			throw new IllegalArgumentException("--handshake-limit, --login-limit and --reply-limit must be at least 1 second");
+		if(options.mMinRate < 0)
+			throw new IllegalArgumentException("--min-rate must not be negative");
+		if(options.mMaxConnections < 1)
+			throw new IllegalArgumentException("--max-connections must be at least 1");
+		if(options.mDrainLimit < 0)
+			throw new IllegalArgumentException("--drain-limit must not be negative");
+		if(options.mSecretBuffer < 2)
+			throw new IllegalArgumentException("--secret-buffer must be at least 2");
+		if(options.mLogSize < 1024 * 1024 || options.mLogFiles < 1)
+			throw new IllegalArgumentException("--log-size and --log-files must be at least 1");
+		if(options.mLoginRate < 0)
+			throw new IllegalArgumentException("--login-rate must not be negative");
+		if(options.mLoginBurst < 1 || options.mLoginAddresses < 1)
+			throw new IllegalArgumentException("--login-burst and --login-addresses must be at least 1");
+		
+		return options;
+	}
+	
+	/**
+	 * Helper method to parse a server mode, accepting the short names "blocking" and "nio"
+	 * @param _value The value given on the command line
+	 * @return The matching mode
+	 */
+	private static Mode parseMode(String _value)
+	{
+		switch(_value.toLowerCase())
+		{
+		case "blocking":
+			return Mode.Blocking;
+		case "nio":
+		case "nonblocking":
+			return Mode.NonBlocking;
+		default:
+			throw new IllegalArgumentException("Unknown mode '" + _value + "', expected 'blocking' or 'nio'");
+		}
+	}
+	
+	/**
+	 * Helper method to parse a connection threading strategy
+	 * @param _value The value given on the command line
+	 * @return The matching strategy
+	 */
+	private static ConnectionThreads.Strategy parseThreads(String _value)
+	{
+		switch(_value.toLowerCase())
+		{
+		case "platform":
+			return ConnectionThreads.Strategy.Platform;
+		case "pool":
+			return ConnectionThreads.Strategy.Pool;
+		case "virtual":
+			return ConnectionThreads.Strategy.Virtual;
+		default:
+			throw new IllegalArgumentException("Unknown threading strategy '" + _value + "', expected 'platform', 'pool' or 'virtual'");
+		}
+	}
+	
+	/**
+	 * Helper method to parse an option that is either on or off, given alone it is on
+	 * @param _name The option's name, for the error message
+	 * @param _value The value given on the command line
+	 * @return True for on
+	 */
+	private static boolean parseSwitch(String _name, String _value)
+	{
+		switch(_value.toLowerCase())
+		{
+		case "":
+		case "on":
+		case "true":
+			return true;
+		case "off":
+		case "false":
+			return false;
+		default:
+			throw new IllegalArgumentException("Unknown value '" + _value + "' for " + _name + ", expected 'on' or 'off'");
+		}
+	}
+	
+	/**
+	 * Helper method to parse a log level
+	 * @param _value The value given on the command line
+	 * @return The matching level
+	 */
+	private static EventLog.Level parseLogLevel(String _value)
+	{
+		for(EventLog.Level level : EventLog.Level.values())
+		{
+			if(level.name().equalsIgnoreCase(_value))
+				return level;
+		}
+		
+		throw new IllegalArgumentException("Unknown log level '" + _value + "', expected 'debug', 'info', 'warn' or 'error'");
+	}
+	
+	/**
+	 * Getter for the port on which the server should listen
+	 * @return The port number
+	 */
+	public int port()
+	{
+		return mPort;
+	}
+	
+	/**
+	 * Getter for which server core should be run
+	 * @return The server mode
+	 */
+	public Mode mode()
+	{
+		return mMode;
+	}
+	
+	/**
+	 * Getter for the number of event loop threads used by the non-blocking core
+	 * @return The number of event loops
+	 */
+	public int eventLoops()
+	{
+		return mEventLoops;
+	}
+	
+	/**
+	 * Getter for the number of threads accepting connections
+	 * @return The number of acceptors
+	 */
+	public int acceptors()
+	{
+		return mAcceptors;
+	}
+	
+	/**
+	 * Getter for whether each acceptor listens on its own socket bound with SO_REUSEPORT, letting the kernel spread
+	 * new connections across them, rather than all of them sharing one socket
+	 * @return True if each acceptor has its own socket
+	 */
+	public boolean reusePort()
+	{
+		return mReusePort;
+	}
+	
+	/**
+	 * Getter for how the blocking core gives each connection a thread
+	 * @return The threading strategy
+	 */
+	public ConnectionThreads.Strategy threads()
+	{
+		return mThreads;
+	}
+	
+	/**
+	 * Getter for the number of threads used when the blocking core runs connections on a bounded pool
+	 * @return The pool size
+	 */
+	public int poolSize()
+	{
+		return mPoolSize;
+	}
+	
+	/**
+	 * Getter for the number of threads deriving keys for login validation
+	 * @return The number of hashing threads
+	 */
+	public int hashThreads()
+	{
+		return mHashThreads;
+	}
+	
+	/**
+	 * Getter for the number of logins that may wait for a hashing thread before further logins are turned away
+	 * @return The hashing queue capacity
+	 */
+	public int hashQueue()
+	{
+		return mHashQueue;
+	}
+	
+	/**
+	 * Getter for how long a session token remains valid after it is issued
+	 * @return The token lifetime in ms
+	 */
+	public long tokenTimeToLive()
+	{
+		return mTokenTimeToLive;
+	}
+	
+	/**
+	 * Getter for how long a logged in client may stay silent between queries before being disconnected
+	 * @return The idle limit in ms
+	 */
+	public long idleLimit()
+	{
+		return mIdleLimit;
+	}
+	
+	/**
+	 * Getter for how long a client may take over the TLS handshake before it is disconnected
+	 * @return The handshake limit in ms
+	 */
+	public long handshakeLimit()
+	{
+		return mHandshakeLimit;
+	}
+	
+	/**
+	 * Getter for how long a client may take to send its username, and then again its secret, before it is disconnected
+	 * @return The login limit in ms
+	 */
+	public long loginLimit()
+	{
+		return mLoginLimit;
+	}
+	
+	/**
+	 * Getter for how long a client may leave the replies the server is writing unread before it is disconnected
+	 * @return The reply limit in ms
+	 */
+	public long replyLimit()
+	{
+		return mReplyLimit;
+	}
+	
+	/**
+	 * Getter for the slowest a request may arrive once its first byte has, a client trickling requests in
+	 * slower than this is disconnected
+	 * @return The minimum rate in bytes per second, 0 for no minimum
+	 */
+	public int minRate()
+	{
+		return mMinRate;
+	}
+	
+	/**
+	 * Getter for the most connections the server keeps open at once, clients beyond this are disconnected as they are accepted
+	 * @return The maximum number of connections
+	 */
+	public int maxConnections()
+	{
+		return mMaxConnections;
+	}
+	
+	/**
+	 * Getter for how long connections may take to finish their requests when the server shuts down before they are closed regardless
+	 * @return The drain limit in ms
+	 */
+	public long drainLimit()
+	{
+		return mDrainLimit;
+	}
+	
+	/**
+	 * Getter for the file holding the user store, which is created if it does not exist
+	 * @return The file name, or null if users are held in memory only
+	 */
+	public String userDatabase()
+	{
+		return mUserDatabase;
+	}
+	
+	/**
+	 * Getter for the number of secrets generated ahead of the queries that need them
+	 * @return The secret buffer capacity
+	 */
+	public int secretBuffer()
+	{
+		return mSecretBuffer;
+	}
+	
+	/**
+	 * Getter for the least severe log events that are recorded
+	 * @return The log level
+	 */
+	public EventLog.Level logLevel()
+	{
+		return mLogLevel;
+	}
+	
+	/**
+	 * Getter for the file the log is written to
+	 * @return The file name, or null if the log is written to stdout
+	 */
+	public String logFile()
+	{
+		return mLogFile;
+	}
+	
+	/**
+	 * Getter for the size at which the log file is rotated
+	 * @return The rotation size in bytes
+	 */
+	public long logSize()
+	{
+		return mLogSize;
+	}
+	
+	/**
+	 * Getter for the number of rotated log files kept alongside the current one
+	 * @return The number of rotated files
+	 */
+	public int logFiles()
+	{
+		return mLogFiles;
+	}
+	
+	/**
+	 * Getter for the login attempts allowed per second from each address once its burst is used
+	 * @return The rate, 0 if login attempts are not limited
+	 */
+	public double loginRate()
+	{
+		return mLoginRate;
+	}
+	
+	/**
+	 * Getter for the login attempts an address may make at once before the rate applies
+	 * @return The burst
+	 */
+	public int loginBurst()
+	{
+		return mLoginBurst;
+	}
+	
+	/**
+	 * Getter for the most addresses whose login attempts are tracked at once, beyond this they share one limit
+	 * @return The number of addresses
+	 */
+	public int loginAddresses()
+	{
+		return mLoginAddresses;
+	}
+}
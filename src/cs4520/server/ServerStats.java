@@ -0,0 +1,142 @@
+package cs4520.server;
+
+import java.util.*;
+
+import javax.management.*;
+
+import cs4520.util.LatencyHistogram;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Read only view of the server's instrumentation, gathered from the ServerMetrics, the UserManager, the
+ * SecretGenerator and the EventLog into one flat set of named numbers. The same snapshot answers the
+ * administrator's 'stats' query and is published over JMX, where every name is a read only attribute.
+ * Latencies are reported in microseconds as a count, mean, median, 99th and 99.9th percentile and maximum.
+ */
+public class ServerStats implements DynamicMBean {
+	private ServerContext mServer;		// the server whose instrumentation is reported
+	
+	/**
+	 * Constructor for ServerStats
+	 * @param _server The server's shared state
+	 */
+	public ServerStats(ServerContext _server)
+	{
+		mServer = _server;
+	}
+	
+	/**
+	 * Takes a snapshot of every statistic, each is read atomically but they are not read all at once
+	 * @return The statistics by name, in a stable order
+	 */
+	public Map<String, Long> snapshot()
+	{
+		ServerMetrics metrics = mServer.metrics();
+		UserManager users = mServer.users();
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		
+		stats.put("uptime_s", metrics.uptime() / 1000);
+		stats.put("connections_open", (long) metrics.connections());
+		stats.put("connections_accepted", metrics.accepted());
+		stats.put("connections_refused", mServer.connections().refused());
+		for(Reaper.Phase phase : Reaper.Phase.values())
+			stats.put("reaped_" + phase, mServer.reaper().reaped(phase));
+		stats.put("reaped_slow", mServer.reaper().tooSlow());
+		
+		addLatency(stats, "handshake", metrics.phase(ServerMetrics.Phase.Handshake));
+		addLatency(stats, "read", metrics.phase(ServerMetrics.Phase.Read));
+		addLatency(stats, "login", metrics.phase(ServerMetrics.Phase.Login));
+		addLatency(stats, "hash", users.hashLatency());
+		addLatency(stats, "query", metrics.phase(ServerMetrics.Phase.Query));
+		
+		for(UserManager.ValidationResult result : UserManager.ValidationResult.values())
+			stats.put("logins_" + result, metrics.results(result));
+		for(int i = 0; i < ServerMetrics.Queries.length; i++)
+			stats.put("queries_" + ServerMetrics.Queries[i], metrics.queries(i));
+		
+		stats.put("lockouts", users.lockouts());
+		stats.put("login_addresses", (long) mServer.limiter().tracked());
+		stats.put("locked_users", (long) users.lockedUsers());
+		stats.put("tokens_live", (long) users.liveTokens());
+		stats.put("timers_pending", (long) mServer.timers().pending());
+		stats.put("timers_failed", mServer.timers().failed());
+		stats.put("secrets_available", (long) mServer.secrets().available());
+		stats.put("secrets_served", mServer.secrets().served());
+		stats.put("secrets_inline", mServer.secrets().inlineFallbacks());
+		stats.put("secrets_throughput", Math.round(mServer.secrets().throughput()));
+		stats.put("secrets_refill_lag_last_us", mServer.secrets().lastRefillLag() / 1000);
+		stats.put("secrets_refill_lag_max_us", mServer.secrets().maxRefillLag() / 1000);
+		stats.put("log_dropped", mServer.log().dropped());
+		stats.put("log_failed", mServer.log().failed());
+		
+		return stats;
+	}
+	
+	/**
+	 * Helper method to add the summary of a histogram
+	 * @param _stats The statistics being gathered
+	 * @param _name The prefix of the summary's names
+	 * @param _histogram The histogram
+	 */
+	private static void addLatency(Map<String, Long> _stats, String _name, LatencyHistogram _histogram)
+	{
+		_stats.put(_name + "_count", _histogram.count());
+		_stats.put(_name + "_mean_us", _histogram.mean() / 1000);
+		_stats.put(_name + "_p50_us", _histogram.percentile(0.5) / 1000);
+		_stats.put(_name + "_p99_us", _histogram.percentile(0.99) / 1000);
+		_stats.put(_name + "_p999_us", _histogram.percentile(0.999) / 1000);
+		_stats.put(_name + "_max_us", _histogram.max() / 1000);
+	}
+	
+	public Object getAttribute(String _name) throws AttributeNotFoundException
+	{
+		Long value = snapshot().get(_name);
+		
+		if(value == null)
+			throw new AttributeNotFoundException(_name);
+		return value;
+	}
+	
+	public AttributeList getAttributes(String[] _names)
+	{
+		// one snapshot answers every attribute asked for at once
+		Map<String, Long> stats = snapshot();
+		AttributeList attributes = new AttributeList();
+		
+		for(String name : _names)
+		{
+			if(stats.containsKey(name))
+				attributes.add(new Attribute(name, stats.get(name)));
+		}
+		
+		return attributes;
+	}
+	
+	public void setAttribute(Attribute _attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException(_attribute.getName() + " is read only");
+	}
+	
+	public AttributeList setAttributes(AttributeList _attributes)
+	{
+		// nothing can be set, so nothing was
+		return new AttributeList();
+	}
+	
+	public Object invoke(String _action, Object[] _params, String[] _signature) throws ReflectionException
+	{
+		throw new ReflectionException(new NoSuchMethodException(_action), "ServerStats has no operations");
+	}
+	
+	public MBeanInfo getMBeanInfo()
+	{
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		
+		for(String name : snapshot().keySet())
+			attributes.add(new MBeanAttributeInfo(name, "long", name.replace('_', ' '), true, false, false));
+		
+		return new MBeanInfo(ServerStats.class.getName(), "CS4520 server statistics",
+				attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+	}
+}
@@ -0,0 +1,76 @@
+package cs4520.server;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Oliver Maskery
+ *
+ * In-memory store of the opaque session tokens handed to clients after a successful login, a client that
+ * presents a live token on a later connection is logged in without its secret being hashed again. Each
+ * token is given a timer when it is issued that removes it once its time to live has passed, so expired
+ * tokens never need to be searched for.
+ */
+public class SessionTokens {
+	private ConcurrentHashMap<String,String> mSessions = new ConcurrentHashMap<String,String>();	// username of each live token, by value
+	private SecureRandom mRandom = new SecureRandom();	// source of token values, tokens must not be guessable
+	private TimerWheel mTimers;							// removes each token when it expires
+	private long mTimeToLive;							// how long (in ms) a token remains valid after it is issued
+	
+	/**
+	 * Constructor for SessionTokens
+	 * @param _timeToLive How long (in ms) a token remains valid after it is issued
+	 * @param _timers The timers that expire tokens
+	 */
+	public SessionTokens(long _timeToLive, TimerWheel _timers)
+	{
+		mTimeToLive = _timeToLive;
+		mTimers = _timers;
+	}
+	
+	/**
+	 * Issues a new token for a user who has just proven their identity
+	 * @param _username The user the token logs in as
+	 * @return The token's value, 32 hexadecimal characters
+	 */
+	public String issue(String _username)
+	{
+		byte[] bytes = new byte[16];
+		mRandom.nextBytes(bytes);
+		
+		StringBuilder token = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes)
+		{
+			token.append(Character.forDigit((b >> 4) & 0xF, 16));
+			token.append(Character.forDigit(b & 0xF, 16));
+		}
+		
+		final String value = token.toString();
+		mSessions.put(value, _username);
+		mTimers.schedule(new Runnable() {
+			public void run() {
+				mSessions.remove(value);
+			}
+		}, mTimeToLive);
+		return value;
+	}
+	
+	/**
+	 * Looks up a token presented by a client
+	 * @param _token The token's value
+	 * @return The username the token logs in as, or null if the token is unknown or has expired
+	 */
+	public String redeem(String _token)
+	{
+		return mSessions.get(_token);
+	}
+	
+	/**
+	 * Getter for the number of live tokens
+	 * @return The number of tokens issued that have not yet expired
+	 */
+	public int live()
+	{
+		return mSessions.size();
+	}
+}
@@ -0,0 +1,395 @@
+package cs4520.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Scheduler shared by everything in the server that must happen after a delay, such as lifting lockouts,
+ * abandoning idle connections and expiring session tokens. Timers are kept in a hierarchical timing wheel,
+ * four levels of 256 slots each, the first level a slot per tick and each level above it a slot per turn
+ * of the level below. A timer is placed in the lowest level whose span covers its delay and moves down a
+ * level each time the wheel reaches its slot, so inserting, cancelling and expiring a timer are all O(1)
+ * however many millions are pending, where a priority queue would cost O(log n) for each.
+ *
+ * Timers may be scheduled and cancelled from any thread, both only queue the change, which is applied to
+ * the wheel by whichever thread advances it. Normally that is the wheel's own thread once started, but a
+ * wheel built on a fake Clock can instead be advanced by hand whenever the clock is moved on. Tasks run on
+ * the advancing thread and must be quick, anything lengthy should be handed to another thread.
+ */
+public class TimerWheel {
+	public static final long DefaultTick = TimeUnit.MILLISECONDS.toNanos(10);	// tick used by the server, finer than any of its deadlines need
+	
+	private static final int SlotBits = 8;					// each level has 2^SlotBits slots
+	private static final int Slots = 1 << SlotBits;
+	private static final int SlotMask = Slots - 1;
+	private static final int Levels = 4;					// the wheel spans 2^32 ticks, later timers wait at the top
+	private static final long Span = 1L << (SlotBits * Levels);
+	
+	private static final int Pending = 0;					// the timer has neither run nor been cancelled
+	private static final int Cancelled = 1;
+	private static final int Expired = 2;					// the timer's task has been run
+	
+	/**
+	 * Object representing one scheduled task, it is linked into the slot it waits in so it can be removed
+	 * from the middle of the slot when cancelled
+	 */
+	public static class Timer
+	{
+		private static final AtomicIntegerFieldUpdater<Timer> State = AtomicIntegerFieldUpdater.newUpdater(Timer.class, "mState");
+		
+		private final TimerWheel mWheel;	// the wheel the timer was scheduled on
+		private final Runnable mTask;		// the task to run when the timer expires
+		private final long mDeadline;		// the tick the timer expires at
+		private volatile int mState;		// Pending, Cancelled or Expired
+		private Slot mSlot;					// the slot the timer waits in, or null if not yet placed, only touched while advancing
+		private Timer mPrev;				// neighbours in mSlot
+		private Timer mNext;
+		
+		private Timer(TimerWheel _wheel, Runnable _task, long _deadline)
+		{
+			mWheel = _wheel;
+			mTask = _task;
+			mDeadline = _deadline;
+		}
+		
+		/**
+		 * Cancels the timer, its task will not be run
+		 * @return True if the timer was cancelled, false if it had already run or been cancelled
+		 */
+		public boolean cancel()
+		{
+			if(!State.compareAndSet(this, Pending, Cancelled))
+				return false;
+			
+			// the timer is unlinked the next time the wheel advances, so its task can be collected long before its deadline
+			mWheel.mCancelled.add(this);
+			return true;
+		}
+		
+		/**
+		 * Checks whether the timer has been cancelled
+		 * @return True if cancel succeeded
+		 */
+		public boolean isCancelled()
+		{
+			return mState == Cancelled;
+		}
+		
+		/**
+		 * Checks whether the timer has run
+		 * @return True if the timer's task has been run
+		 */
+		public boolean isExpired()
+		{
+			return mState == Expired;
+		}
+	}
+	
+	/**
+	 * Object representing one slot of the wheel, a doubly linked list of the timers waiting in it
+	 */
+	private static class Slot
+	{
+		private Timer mHead;
+		private Timer mTail;
+		
+		private void add(Timer _timer)
+		{
+			_timer.mSlot = this;
+			_timer.mPrev = mTail;
+			_timer.mNext = null;
+			
+			if(mTail == null)
+				mHead = _timer;
+			else
+				mTail.mNext = _timer;
+			mTail = _timer;
+		}
+		
+		private void remove(Timer _timer)
+		{
+			if(_timer.mPrev == null)
+				mHead = _timer.mNext;
+			else
+				_timer.mPrev.mNext = _timer.mNext;
+			
+			if(_timer.mNext == null)
+				mTail = _timer.mPrev;
+			else
+				_timer.mNext.mPrev = _timer.mPrev;
+			
+			_timer.mSlot = null;
+			_timer.mPrev = null;
+			_timer.mNext = null;
+		}
+		
+		// empties the slot, returning the first of its timers, which are still linked to one another
+		private Timer clear()
+		{
+			Timer head = mHead;
+			mHead = null;
+			mTail = null;
+			return head;
+		}
+	}
+	
+	// timers scheduled or cancelled since the wheel last advanced, any thread adds to them, only the advancing thread takes
+	private final ConcurrentLinkedQueue<Timer> mScheduled = new ConcurrentLinkedQueue<Timer>();
+	private final ConcurrentLinkedQueue<Timer> mCancelled = new ConcurrentLinkedQueue<Timer>();
+	private final Slot[][] mWheel = new Slot[Levels][Slots];	// the slots of each level
+	private final Clock mClock;			// the clock the wheel follows
+	private final long mTick;			// the length (in ns) of one tick
+	private final long mOrigin;			// the time (in ns) of tick 0
+	private long mNow;					// the next tick to expire, every earlier one has been
+	private volatile int mPending;		// timers placed on the wheel and still waiting
+	private volatile long mFailed;		// tasks that threw rather than returning
+	private final EventLog mLog;		// where failed tasks are reported, or null to only count them
+	private Thread mThread;				// the thread advancing the wheel, or null if it is advanced by hand
+	private volatile boolean mStopped;	// set once the thread has been asked to stop
+	
+	/**
+	 * Constructor for TimerWheel, the wheel is not advanced until start is called or advance is called by hand
+	 * @param _clock The clock the wheel follows
+	 * @param _tick The length (in ns) of one tick, timers run up to one tick after they are due
+	 */
+	public TimerWheel(Clock _clock, long _tick)
+	{
+		this(_clock, _tick, null);
+	}
+	
+	/**
+	 * Constructor for TimerWheel, the wheel is not advanced until start is called or advance is called by hand
+	 * @param _clock The clock the wheel follows
+	 * @param _tick The length (in ns) of one tick, timers run up to one tick after they are due
+	 * @param _log Where tasks that fail are reported, or null to only count them
+	 */
+	public TimerWheel(Clock _clock, long _tick, EventLog _log)
+	{
+		mLog = _log;
+		mClock = _clock;
+		mTick = _tick;
+		mOrigin = _clock.nanoTime();
+		
+		for(Slot[] level : mWheel)
+		{
+			for(int i = 0; i < level.length; i++)
+				level[i] = new Slot();
+		}
+	}
+	
+	/**
+	 * Starts a daemon thread that advances the wheel every tick
+	 * @param _name The name given to the thread
+	 */
+	public synchronized void start(String _name)
+	{
+		if(mThread != null)
+			return;
+		
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				while(!mStopped)
+				{
+					advance();
+					
+					// sleep until the start of the next tick, a late wake is caught up on the next advance
+					long wait;
+					synchronized(TimerWheel.this) {
+						wait = mOrigin + mNow * mTick - mClock.nanoTime();
+					}
+					LockSupport.parkNanos(TimerWheel.this, Math.max(wait, mTick / 10));
+				}
+			}
+		}, _name);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+	
+	/**
+	 * Stops the thread started by start, timers still pending never run
+	 */
+	public synchronized void stop()
+	{
+		mStopped = true;
+		if(mThread != null)
+			LockSupport.unpark(mThread);
+	}
+	
+	/**
+	 * Getter for the clock the wheel follows
+	 * @return The clock
+	 */
+	public Clock clock()
+	{
+		return mClock;
+	}
+	
+	/**
+	 * Schedules a task to run once a delay has passed
+	 * @param _task The task to run
+	 * @param _delay The delay in ms, the task runs no earlier and at most a tick later
+	 * @return The timer, which can be used to cancel the task before it runs
+	 */
+	public Timer schedule(Runnable _task, long _delay)
+	{
+		long due = mClock.nanoTime() - mOrigin + TimeUnit.MILLISECONDS.toNanos(Math.max(0, _delay));
+		// rounded up so the task never runs early
+		Timer timer = new Timer(this, _task, (due + mTick - 1) / mTick);
+		mScheduled.add(timer);
+		return timer;
+	}
+	
+	/**
+	 * Getter for the number of timers waiting on the wheel, not counting those scheduled since it last advanced
+	 * @return The number of pending timers
+	 */
+	public int pending()
+	{
+		return mPending;
+	}
+	
+	/**
+	 * Getter for the number of tasks that have thrown an exception rather than returning
+	 * @return The number of failed tasks
+	 */
+	public long failed()
+	{
+		return mFailed;
+	}
+	
+	/**
+	 * Brings the wheel up to the clock's current time, running the task of every timer that has become due.
+	 * Called by the wheel's own thread once started, or by hand after moving a fake clock on.
+	 * @return The number of tasks run
+	 */
+	public synchronized int advance()
+	{
+		long now = (mClock.nanoTime() - mOrigin) / mTick;
+		int run = 0;
+		
+		placeScheduled();
+		
+		while(mNow <= now)
+		{
+			// each turn of a level brings the next slot of the level above down to the levels below it
+			int level = 1;
+			while(level < Levels && (mNow & ((1L << (SlotBits * level)) - 1)) == 0)
+				level++;
+			while(--level > 0)
+				cascade(mWheel[level][(int) (mNow >>> (SlotBits * level)) & SlotMask]);
+			
+			run += expire(mWheel[0][(int) mNow & SlotMask]);
+			mNow++;
+			
+			// tasks may schedule timers that are due straight away
+			placeScheduled();
+		}
+		
+		return run;
+	}
+	
+	/**
+	 * Helper method to apply the timers scheduled and cancelled since the wheel last advanced
+	 */
+	private void placeScheduled()
+	{
+		Timer timer;
+		
+		while((timer = mScheduled.poll()) != null)
+		{
+			if(timer.mState == Pending)
+			{
+				place(timer);
+				mPending++;
+			}
+		}
+		
+		while((timer = mCancelled.poll()) != null)
+		{
+			// a timer cancelled before it was placed never reached a slot
+			if(timer.mSlot != null)
+			{
+				timer.mSlot.remove(timer);
+				mPending--;
+			}
+		}
+	}
+	
+	/**
+	 * Helper method to put a timer in the slot for its deadline, on the lowest level whose span covers it
+	 * @param _timer The timer to place
+	 */
+	private void place(Timer _timer)
+	{
+		long deadline = Math.max(_timer.mDeadline, mNow);
+		long delay = deadline - mNow;
+		
+		// a timer beyond the top level's span waits in its furthest slot and is placed again from there
+		if(delay >= Span)
+			deadline = mNow + Span - 1;
+		
+		int level = 0;
+		while(level < Levels - 1 && delay >= (1L << (SlotBits * (level + 1))))
+			level++;
+		
+		mWheel[level][(int) (deadline >>> (SlotBits * level)) & SlotMask].add(_timer);
+	}
+	
+	/**
+	 * Helper method to move every timer in a slot of an upper level to the level below that now covers it
+	 * @param _slot The slot to empty
+	 */
+	private void cascade(Slot _slot)
+	{
+		Timer timer = _slot.clear();
+		
+		while(timer != null)
+		{
+			Timer next = timer.mNext;
+			place(timer);
+			timer = next;
+		}
+	}
+	
+	/**
+	 * Helper method to run the task of every timer in a slot of the lowest level
+	 * @param _slot The slot whose tick has been reached
+	 * @return The number of tasks run
+	 */
+	private int expire(Slot _slot)
+	{
+		Timer timer = _slot.clear();
+		int run = 0;
+		
+		while(timer != null)
+		{
+			Timer next = timer.mNext;
+			timer.mSlot = null;
+			timer.mPrev = null;
+			timer.mNext = null;
+			mPending--;
+			
+			// a cancelled timer still in the slot is unlinked when its cancellation is applied, it finds no slot then
+			if(Timer.State.compareAndSet(timer, Pending, Expired))
+			{
+				try {
+					timer.mTask.run();
+					run++;
+				} catch (RuntimeException e) {
+					// one failing task must not stop the others, or the wheel
+					mFailed++;
+					if(mLog != null)
+						mLog.error(null, "timer", e);
+				}
+			}
+			
+			timer = next;
+		}
+		
+		return run;
+	}
+}
@@ -1,6 +1,6 @@
 package cs4520.server;
 
-import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author James Reed
@@ -14,12 +14,20 @@ public class User {
 		Administrator
 	}
 	
-	private final long Timeout = 15*60*1000;	// The timeout used to block multiple logins after max login attempts
-	private final int MaxLoginAttempts = 3;		// Max login attempts allowed before blocking the user
+	public static final long LockTimeout = 15*60*1000;	// The timeout used to block multiple logins after max login attempts
+	public static final int MaxLoginAttempts = 3;	// Max login attempts allowed before blocking the user
 	
-	private long mLastTimeCheck;				// Variable to help check whether user's timeout has ended yet
-	private int mLoginAttempts;					// Number of times user has tried to login
-	private boolean mLocked;					// Variable set to true if user is locked from attempting to log in
+	private static final int AttemptBits = 8;	// low bits of the state holding the attempt count, the rest hold the time the lock began
+	private static final long AttemptMask = (1L << AttemptBits) - 1;
+	
+	// Failed attempts and the time (in ms) the user was locked, or 0 if unlocked, packed together so both
+	// change in a single compare-and-set when logins from many connections fail at once. A user loaded
+	// from a UserStore keeps its state in its record instead, so lockouts survive a restart. The lock is
+	// lifted by a timer the UserManager schedules, or for a lock that survived a restart by the UserManager
+	// when it next looks at the user, so checking it here never needs to read the clock.
+	private final AtomicLong mState;
+	private final UserStore mStore;				// the store holding this user's record, or null if held in memory
+	private final int mSlot;					// the slot of this user's record in mStore
 	
 	private UserSecret mSecret;					// The user's password
 	private String mUsername;					// The user's username
@@ -33,29 +41,58 @@ public class User {
 	 */
 	public User(String _username, UserSecret _secret, Level _level)
 	{
-		mLastTimeCheck = 0;
-		mLoginAttempts = 0;
-		mLocked = false;
+		mState = new AtomicLong();
+		mStore = null;
+		mSlot = -1;
 		
 		mUsername = _username;
 		mSecret = _secret;
 		mLevel = _level;
 	}
 	
+	/**
+	 * Constructor for a User whose record is held in a UserStore, the secret is read from the store each time
+	 * it is needed and the lockout state is updated in place
+	 * @param _store The store holding the user
+	 * @param _slot The slot of the user's record
+	 */
+	public User(UserStore _store, int _slot)
+	{
+		mState = null;
+		mStore = _store;
+		mSlot = _slot;
+		
+		mUsername = _store.username(_slot);
+		mSecret = null;
+		mLevel = _store.level(_slot);
+	}
+	
 	/**
 	 * Method to increment the number of attempted logins by 1
-	 * This method also checks whether the user has reached the max login attempts, and if so, locks the user out
+	 * This method also checks whether the user has reached the max login attempts, and if so, locks the user out.
+	 * Exactly MaxLoginAttempts failures lock the user, however many threads record them at once, and failures
+	 * recorded while the user is already locked are not counted.
+	 * @param _now The current time in ms, recorded as the time the lock began should this attempt lock the user
+	 * @return True if the failure was counted, false if the user was already locked
 	 */
-	public void incrementAttempts()
+	public boolean incrementAttempts(long _now)
 	{
-		System.out.println("login attempts" + mLoginAttempts);
-		if(mLoginAttempts == MaxLoginAttempts)
+		// a lock beginning at 0 would read as no lock at all
+		long now = Math.max(1, _now);
+		
+		while(true)
 		{
-			mLocked = true;
-			mLastTimeCheck = Calendar.getInstance().getTimeInMillis();
+			long state = state();
+			
+			if(lockedAt(state) != 0)
+				return false;
+			
+			long attempts = (state & AttemptMask) + 1;
+			long next = attempts >= MaxLoginAttempts ? (now << AttemptBits) | attempts : attempts;
+			
+			if(compareAndSetState(state, next))
+				return true;
 		}
-		else
-			mLoginAttempts++;
 	}
 	
 	/**
@@ -64,12 +101,35 @@ public class User {
 	 */
 	public boolean isLocked()
 	{
-		if(mLocked && ((Calendar.getInstance().getTimeInMillis() - mLastTimeCheck) > Timeout))
+		return lockedAt(state()) != 0;
+	}
+	
+	/**
+	 * Getter for the time the user was locked
+	 * @return The time (in ms) the lock began, or 0 if the user is not locked
+	 */
+	public long lockedAt()
+	{
+		return lockedAt(state());
+	}
+	
+	/**
+	 * Method to lift a lock once it has lasted LockTimeout, which also starts the count of attempts again
+	 * @param _lockedAt The time the lock to lift began, as returned by lockedAt
+	 * @return True if the lock was lifted, false if the user was not locked or by a different lock
+	 */
+	public boolean unlock(long _lockedAt)
+	{
+		while(true)
 		{
-			mLocked = false;
-			mLoginAttempts = 0;
+			long state = state();
+			
+			// only clear the lock that was seen, a newer one must survive
+			if(lockedAt(state) == 0 || lockedAt(state) != _lockedAt)
+				return false;
+			if(compareAndSetState(state, 0))
+				return true;
 		}
-		return mLocked;
 	}
 	
 	/**
@@ -78,18 +138,49 @@ public class User {
 	 */
 	public int attempts()
 	{
-		return mLoginAttempts;
+		return (int) (state() & AttemptMask);
 	}
-
+	
+	/**
+	 * Helper method to read the packed lockout state from wherever this user is held
+	 * @return The packed state
+	 */
+	private long state()
+	{
+		return mStore == null ? mState.get() : mStore.state(mSlot);
+	}
+	
+	/**
+	 * Helper method to replace the packed lockout state if it still holds the expected value
+	 * @param _expected The state last seen
+	 * @param _state The new state
+	 * @return True if the state was replaced
+	 */
+	private boolean compareAndSetState(long _expected, long _state)
+	{
+		return mStore == null ? mState.compareAndSet(_expected, _state) : mStore.compareAndSetState(mSlot, _expected, _state);
+	}
+	
+	/**
+	 * Helper method to extract the time the user was locked from a packed state
+	 * @param _state The packed state
+	 * @return The time (in ms) the lock began, or 0 if the user was not locked
+	 */
+	private static long lockedAt(long _state)
+	{
+		return _state >>> AttemptBits;
+	}
+	
+	
 	/**
 	 * Method to get the secret of the user
 	 * @return A String, the value of which is the user's secret
 	 */
 	public UserSecret secret()
 	{
-		return mSecret;
+		return mStore == null ? mSecret : mStore.secret(mSlot);
 	}
-
+	
 	/**
 	 * Getter method for retrieving the user's username
 	 * @return The user's username as a String
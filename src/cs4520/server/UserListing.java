@@ -0,0 +1,129 @@
+package cs4520.server;
+
+import java.util.Arrays;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Immutable, versioned snapshot of the user listing with every entry ("username|HASH") already encoded, so
+ * a users query only copies characters. A snapshot is never changed once published, adding users produces
+ * a new snapshot that shares the encoded text of the old one: entries live in blocks of characters that are
+ * only ever appended to, and a block is only copied when it has to grow.
+ */
+public final class UserListing {
+	private static final int BlockShift = 10;					// log2 of the number of entries per block
+	private static final int BlockSize = 1 << BlockShift;		// entries per block
+	private static final int BlockMask = BlockSize - 1;
+	
+	private final long mVersion;		// incremented by every change to the listing
+	private final int mCount;			// number of entries in this snapshot
+	private final char[][] mText;		// encoded entries of each block, back to back
+	private final int[][] mEnds;		// index in mText just past each entry of each block
+	
+	/**
+	 * Constructor for an empty listing
+	 */
+	UserListing()
+	{
+		this(0, 0, new char[0][], new int[0][]);
+	}
+	
+	/**
+	 * Constructor for UserListing
+	 * @param _version The snapshot's version
+	 * @param _count The number of entries
+	 * @param _text The encoded entries of each block
+	 * @param _ends The end of each entry in each block
+	 */
+	private UserListing(long _version, int _count, char[][] _text, int[][] _ends)
+	{
+		mVersion = _version;
+		mCount = _count;
+		mText = _text;
+		mEnds = _ends;
+	}
+	
+	/**
+	 * Getter for the snapshot's version, which changes whenever the listing does
+	 * @return The version
+	 */
+	public long version()
+	{
+		return mVersion;
+	}
+	
+	/**
+	 * Getter for the number of users listed
+	 * @return The number of entries
+	 */
+	public int size()
+	{
+		return mCount;
+	}
+	
+	/**
+	 * Appends one user's pre-encoded entry to a builder
+	 * @param _position The user's position in the listing
+	 * @param _out The builder to append "username|HASH" to
+	 */
+	public void appendEntry(int _position, StringBuilder _out)
+	{
+		if(_position < 0 || _position >= mCount)
+			throw new IndexOutOfBoundsException("entry " + _position + " of " + mCount);
+		
+		int block = _position >>> BlockShift;
+		int index = _position & BlockMask;
+		int start = index == 0 ? 0 : mEnds[block][index - 1];
+		
+		_out.append(mText[block], start, mEnds[block][index] - start);
+	}
+	
+	/**
+	 * Creates the next snapshot, with the users the store holds beyond this snapshot's entries appended.
+	 * Only the caller that published this snapshot may extend it, as the new entries are written into any
+	 * spare room in this snapshot's last block.
+	 * @param _store The store holding the users
+	 * @param _count The number of users to list, at least this snapshot's size
+	 * @return The new snapshot, or this one if there is nothing to add
+	 */
+	UserListing extend(UserStore _store, int _count)
+	{
+		if(_count <= mCount)
+			return this;
+		
+		char[][] text = mText;
+		int[][] ends = mEnds;
+		StringBuilder entry = new StringBuilder(128);
+		
+		for(int position = mCount; position < _count; position++)
+		{
+			int block = position >>> BlockShift;
+			int index = position & BlockMask;
+			
+			if(block == text.length)
+			{
+				text = Arrays.copyOf(text, block + 1);
+				ends = Arrays.copyOf(ends, block + 1);
+				text[block] = new char[1024];
+				ends[block] = new int[BlockSize];
+			}
+			
+			entry.setLength(0);
+			_store.appendListing(position, entry);
+			
+			int start = index == 0 ? 0 : ends[block][index - 1];
+			if(start + entry.length() > text[block].length)
+			{
+				// the block's text is copied rather than grown in place, earlier snapshots keep the old array
+				if(text == mText)
+					text = mText.clone();
+				text[block] = Arrays.copyOf(text[block], Math.max(text[block].length * 2, start + entry.length()));
+			}
+			
+			entry.getChars(0, entry.length(), text[block], start);
+			ends[block][index] = start + entry.length();
+		}
+		
+		return new UserListing(mVersion + 1, _count, text, ends);
+	}
+}
@@ -1,6 +1,11 @@
 package cs4520.server;
 
-import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Supplier;
+
+import cs4520.util.LatencyHistogram;
 
 /**
  * @author Oliver Maskery
@@ -13,29 +18,109 @@ public class UserManager {
 		ValidCredentials,
 		IncorrectUsername,
 		IncorrectSecret,
-		UserIsLocked
+		UserIsLocked,
+		ServerBusy,		// too many logins are already waiting to be hashed, try again later
+		InvalidToken,	// the session token presented is unknown or has expired
+		RateLimited		// too many login attempts have come from the client's address, try again later
+	}
+	
+	private ThreadPoolExecutor mHashing;	// bounded pool that runs key derivation for asynchronous validation
+	private SessionTokens mTokens;			// tokens issued to users who have logged in
+	private TimerWheel mTimers;				// lifts each lockout once it has run its course
+	private UserStore mStore;				// off-heap table of users, read by every connection at once without locking
+	private volatile UserListing mListing;	// latest snapshot of the user listing, or null until it is first needed
+	private LatencyHistogram mHashLatency = new LatencyHistogram();	// how long each key derivation took
+	private AtomicLong mLockouts = new AtomicLong();	// failed logins that locked their user
+	private AtomicInteger mLocked = new AtomicInteger();	// users locked since the manager was created and not yet unlocked, kept so the stats need not visit every user
+	private long mCreated;					// when (in ms) the manager was created, locks from before then were restored from the store
+	
+	/**
+	 * Constructor for a UserManager with one hashing thread per core, a modest queue and 15 minute session tokens
+	 */
+	public UserManager()
+	{
+		this(Runtime.getRuntime().availableProcessors(), 1024, 15*60*1000);
 	}
 	
-	private HashMap<String,User> mUsers = new HashMap<String,User>();
+	/**
+	 * Constructor for UserManager
+	 * @param _hashThreads The number of threads that derive keys for asynchronous validation
+	 * @param _hashQueue The number of validations that may wait for a hashing thread before further logins are rejected
+	 * @param _tokenTimeToLive How long (in ms) a session token remains valid after it is issued
+	 */
+	public UserManager(int _hashThreads, int _hashQueue, long _tokenTimeToLive)
+	{
+		this(_hashThreads, _hashQueue, _tokenTimeToLive, null);
+	}
 	
-	public UserManager() { }
+	/**
+	 * Constructor for UserManager
+	 * @param _hashThreads The number of threads that derive keys for asynchronous validation
+	 * @param _hashQueue The number of validations that may wait for a hashing thread before further logins are rejected
+	 * @param _tokenTimeToLive How long (in ms) a session token remains valid after it is issued
+	 * @param _store A store holding the users, which new users are appended to, or null to hold users in memory only
+	 */
+	public UserManager(int _hashThreads, int _hashQueue, long _tokenTimeToLive, UserStore _store)
+	{
+		this(_hashThreads, _hashQueue, _tokenTimeToLive, _store, startTimers());
+	}
+	
+	/**
+	 * Constructor for UserManager
+	 * @param _hashThreads The number of threads that derive keys for asynchronous validation
+	 * @param _hashQueue The number of validations that may wait for a hashing thread before further logins are rejected
+	 * @param _tokenTimeToLive How long (in ms) a session token remains valid after it is issued
+	 * @param _store A store holding the users, which new users are appended to, or null to hold users in memory only
+	 * @param _timers The timers that expire lockouts and session tokens, on whose clock lockouts are timed
+	 */
+	public UserManager(int _hashThreads, int _hashQueue, long _tokenTimeToLive, UserStore _store, TimerWheel _timers)
+	{
+		mStore = _store != null ? _store : UserStore.inMemory();
+		mTimers = _timers;
+		mTokens = new SessionTokens(_tokenTimeToLive, _timers);
+		mHashing = new ThreadPoolExecutor(_hashThreads, _hashThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(_hashQueue), new ThreadFactory() {
+					private int mNext = 0;
+					
+					public synchronized Thread newThread(Runnable _task) {
+						Thread thread = new Thread(_task, "hashing-" + (mNext++));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		
+		// lockouts stored before a restart lost their timers with the old process, rather than visiting every
+		// record to find them they are lifted as they are next looked at, see isLocked
+		mCreated = _timers.clock().millis();
+	}
 	
 	/**
 	 * Method for adding new users to the UserManager
 	 * @param _username The username of the new user
 	 * @param _secret The user's "secret" for logging in
 	 * @return Whether or not the user was successfully added, false if the username is already in use
+	 * @throws UncheckedIOException If the user could not be written to the store
 	 */
 	public boolean addUser(String _username, String _secret, User.Level _level)
 	{
-		if(mUsers.containsKey(_username))
+		// the secret is only hashed for a username that looks free, the store settles any race for it
+		if(hasUser(_username))
 		{
 			return false;
 		}
-		else
-		{
-			mUsers.put(_username, new User(_username, new UserSecret(_secret), _level));
+		
+		UserSecret secret = new UserSecret(_secret);
+		
+		try {
+			if(mStore.append(_username, secret.salt(), secret.hash(), _level) < 0)
+				return false;
+			
+			// keep the listing current so readers never have to catch it up themselves
+			if(mListing != null)
+				refreshListing();
 			return true;
+		} catch (IOException e) {
+			throw new UncheckedIOException("could not add '" + _username + "'", e);
 		}
 	}
 	
@@ -46,7 +131,7 @@ public class UserManager {
 	 */
 	public boolean hasUser(String _username)
 	{
-		return mUsers.containsKey(_username);
+		return mStore.find(_username) >= 0;
 	}
 	
 	/**
@@ -57,25 +142,111 @@ public class UserManager {
 	 */
 	public ValidationResult validateLogin(String _username, String _secret)
 	{
-		if(!hasUser(_username))
-			return ValidationResult.IncorrectUsername;
+		User user = getUser(_username);
 		
-		User user = mUsers.get(_username);
+		if(user == null)
+			return ValidationResult.IncorrectUsername;
 		
-		if(user.isLocked())
+		if(isLocked(user))
 			return ValidationResult.UserIsLocked;
 		
-		UserSecret storedSecret = user.secret();
+		return checkSecret(user, _secret);
+	}
+	
+	/**
+	 * Method for doing login credential validation without blocking the caller on key derivation. Unknown and
+	 * locked users are answered immediately, otherwise the secret is checked on the hashing pool, and if its
+	 * queue is full the login is rejected straight away with ServerBusy rather than queueing unboundedly.
+	 * @param _username The username provided
+	 * @param _secret The secret provided
+	 * @return A future that completes with the result of the validation attempt
+	 */
+	public CompletableFuture<ValidationResult> validateLoginAsync(String _username, final String _secret)
+	{
+		final User user = getUser(_username);
+		
+		if(user == null)
+			return CompletableFuture.completedFuture(ValidationResult.IncorrectUsername);
+		
+		if(isLocked(user))
+			return CompletableFuture.completedFuture(ValidationResult.UserIsLocked);
+		
+		try {
+			return CompletableFuture.supplyAsync(new Supplier<ValidationResult>() {
+				public ValidationResult get() {
+					return checkSecret(user, _secret);
+				}
+			}, mHashing);
+		} catch (RejectedExecutionException e) {
+			return CompletableFuture.completedFuture(ValidationResult.ServerBusy);
+		}
+	}
+	
+	/**
+	 * Helper method that derives the key for a secret and records the outcome against the user. While the
+	 * key was being derived other failed attempts may have locked the user, in which case even a correct
+	 * secret is refused, so parallel guesses in flight cannot slip past the lockout.
+	 * @param _user The user being logged in as
+	 * @param _secret The secret provided
+	 * @return The result of the validation attempt
+	 */
+	private ValidationResult checkSecret(User _user, String _secret)
+	{
+		long start = System.nanoTime();
+		boolean correct = _user.secret().checkSecret(_secret);
+		mHashLatency.record(System.nanoTime() - start);
 		
-		if(!storedSecret.checkSecret(_secret))
+		if(!correct)
 		{
-			user.incrementAttempts();
+			if(!_user.incrementAttempts(mTimers.clock().millis()))
+				return ValidationResult.UserIsLocked;
+			
+			// the attempt was counted, if it used up the last one it is the attempt that locked the user
+			if(_user.isLocked())
+			{
+				mLockouts.incrementAndGet();
+				mLocked.incrementAndGet();
+				scheduleUnlock(_user);
+			}
 			return ValidationResult.IncorrectSecret;
 		}
 		
+		if(_user.isLocked())
+			return ValidationResult.UserIsLocked;
+		
 		return ValidationResult.ValidCredentials;
 	}
 	
+	/**
+	 * Issues a session token that lets a user who has just logged in skip key derivation on later connections
+	 * @param _username The user that has successfully logged in
+	 * @return The opaque token to hand to the client
+	 */
+	public String issueToken(String _username)
+	{
+		return mTokens.issue(_username);
+	}
+	
+	/**
+	 * Looks up the user a session token logs in as, a single map lookup with no hashing involved
+	 * @param _token The token presented by the client
+	 * @return The User the token belongs to, or null if the token is unknown or has expired
+	 */
+	public User redeemToken(String _token)
+	{
+		String username = mTokens.redeem(_token);
+		return username == null ? null : getUser(username);
+	}
+	
+	/**
+	 * Getter for the number of session tokens issued that have not yet expired
+	 * @return The number of live tokens
+	 */
+	public int liveTokens()
+	{
+		return mTokens.live();
+	}
+	
 	/**
 	 * Fetches a user from the User Manager, returns null if not a valid username
 	 * @param _username The username to search for
@@ -83,26 +254,160 @@ public class UserManager {
 	 */
 	public User getUser(String _username)
 	{
-		return mUsers.get(_username);
+		int slot = mStore.find(_username);
+		return slot < 0 ? null : new User(mStore, slot);
 	}
 	
 	/**
-	 * Fetch the entire user information database as a string including the usernames and passwords
+	 * Fetch the entire user information database as a string including the usernames and passwords. With many
+	 * users this is very large, the users query pages through the database with userCount and appendUser instead.
 	 * @return The user database contents as a string
 	 */
 	public String getUserData()
 	{
-		boolean first = true;
-		
-		String result = "";
-		result += "[";
-		for(User user : mUsers.values())
+		UserListing listing = listing();
+		StringBuilder result = new StringBuilder();
+		result.append("[");
+		for(int position = 0; position < listing.size(); position++)
 		{
-			if(!first) result += ",";
-			first = false;
-			result += user.username() + "|" + user.secret().toString();
+			if(position > 0) result.append(",");
+			listing.appendEntry(position, result);
 		}
-		result += "]";
-		return result;
+		result.append("]");
+		return result.toString();
+	}
+	
+	/**
+	 * Getter for the current snapshot of the user listing, users are listed in the order they were added.
+	 * The snapshot is shared by every caller and never changes, so it can be read without locking. It is
+	 * built the first time it is needed and extended as users are added, entries are never re-encoded.
+	 * @return The listing
+	 */
+	public UserListing listing()
+	{
+		UserListing listing = mListing;
+		
+		if(listing == null || listing.size() < mStore.size())
+			listing = refreshListing();
+		
+		return listing;
+	}
+	
+	/**
+	 * Finds where a listing that resumes after the given user starts, so a listing can be paged through with
+	 * the last username of each page as the cursor for the next
+	 * @param _username The last user already listed
+	 * @return The position of the next user to list, or -1 if there is no such user
+	 */
+	public int positionAfter(String _username)
+	{
+		int slot = mStore.find(_username);
+		return slot < 0 ? -1 : slot + 1;
+	}
+	
+	/**
+	 * Getter for the username at a position in the listing
+	 * @param _position The user's position in the listing
+	 * @return The username
+	 */
+	public String usernameAt(int _position)
+	{
+		return mStore.username(_position);
+	}
+	
+	/**
+	 * Getter for the histogram of how long deriving the key for a login's secret has taken
+	 * @return The key derivation latencies
+	 */
+	public LatencyHistogram hashLatency()
+	{
+		return mHashLatency;
+	}
+	
+	/**
+	 * Getter for the number of failed logins that used up a user's last attempt and locked them
+	 * @return The number of lockouts
+	 */
+	public long lockouts()
+	{
+		return mLockouts.get();
+	}
+	
+	/**
+	 * Getter for the number of users currently locked out, counted as users are locked and unlocked so it is
+	 * cheap enough to poll. Lockouts restored from the store are not counted, as finding them would mean
+	 * visiting every user.
+	 * @return The number of locked users
+	 */
+	public int lockedUsers()
+	{
+		return mLocked.get();
+	}
+	
+	/**
+	 * Helper method to check whether a user is locked out. A lockout made since the manager was created is
+	 * lifted on time by its timer, but one restored from the store has no timer, so it is lifted here the
+	 * first time it is looked at after it has run its course.
+	 * @param _user The user
+	 * @return True if the user is locked
+	 */
+	private boolean isLocked(User _user)
+	{
+		long lockedAt = _user.lockedAt();
+		
+		if(lockedAt != 0 && lockedAt < mCreated && lockedAt + User.LockTimeout - mTimers.clock().millis() <= 0)
+			_user.unlock(lockedAt);
+		
+		return _user.isLocked();
+	}
+	
+	/**
+	 * Helper method to lift a user's lockout once it has run its course, so a locked user is unlocked on time
+	 * rather than whenever their account is next tried
+	 * @param _user The locked user
+	 */
+	private void scheduleUnlock(final User _user)
+	{
+		final long lockedAt = _user.lockedAt();
+		
+		mTimers.schedule(new Runnable() {
+			public void run() {
+				if(_user.unlock(lockedAt))
+					mLocked.decrementAndGet();
+			}
+		}, Math.max(0, lockedAt + User.LockTimeout - mTimers.clock().millis()));
+	}
+	
+	/**
+	 * Stops the hashing threads once the validations already queued have finished, the store is left open
+	 */
+	public void close()
+	{
+		mHashing.shutdown();
+	}
+	
+	/**
+	 * Helper method to start timers for a UserManager that was not given the server's own
+	 * @return The timers, advanced by their own thread
+	 */
+	private static TimerWheel startTimers()
+	{
+		TimerWheel timers = new TimerWheel(Clock.Default, TimerWheel.DefaultTick);
+		timers.start("user-timers");
+		return timers;
+	}
+	
+	/**
+	 * Helper method to publish a listing snapshot that includes every user in the store. Users are added
+	 * by slot so concurrent additions always appear in the order they were stored.
+	 * @return The new snapshot
+	 */
+	private synchronized UserListing refreshListing()
+	{
+		UserListing listing = mListing != null ? mListing : new UserListing();
+		
+		listing = listing.extend(mStore, mStore.size());
+		mListing = listing;
+		return listing;
 	}
 }
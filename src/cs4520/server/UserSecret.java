@@ -58,6 +58,24 @@ public class UserSecret {
 		return Arrays.equals(mHash, generated);
 	}
 	
+	/**
+	 * Getter for the hash generated from the user's secret, for writing to storage
+	 * @return The hash, not copied
+	 */
+	public byte[] hash()
+	{
+		return mHash;
+	}
+	
+	/**
+	 * Getter for the salt used to generate the user's secret hash, for writing to storage
+	 * @return The salt, not copied
+	 */
+	public byte[] salt()
+	{
+		return mSalt;
+	}
+	
 	/**
 	 * String method for converting this object to a String representation
 	 * @return The string representation of the secret
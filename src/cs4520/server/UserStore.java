@@ -0,0 +1,622 @@
+package cs4520.server;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * @author Oliver Maskery
+ *
+ * File backed store of user credentials made of fixed-size records, memory-mapped when opened so that even a
+ * very large store is ready in milliseconds with nothing rehashed or even read until a user logs in. Users
+ * are found through an open-addressing hash index kept in a second file alongside the records.
+ *
+ * A store can also be created in memory only, with the same records and index held in direct buffers. Either
+ * way a user costs one record plus a few index entries, outside the Java heap, so even tens of millions of
+ * users add almost nothing for the garbage collector to trace.
+ *
+ * The records file is a header followed by chunks of records, a chunk is mapped once and never moves, so
+ * growing the store never copies records and a lockout update can never be lost to a concurrent grow. The
+ * index file is rebuilt into a larger file and swapped in when it fills, and rebuilt from the records if it
+ * is ever missing or stale. Lookups take no locks, appends are serialised and each record is forced to disk
+ * before it is published. The index is only a cache of the records, so it is marked stale while appends are
+ * outstanding and forced when the store is closed, rather than forced on every append.
+ */
+public class UserStore {
+	public static final int MaxUsernameLength = 52;		// longest username, in UTF-8 bytes, a record can hold
+	
+	private static final int DataMagic = 0x43535544;	// "CSUD", identifies a records file
+	private static final int IndexMagic = 0x43535549;	// "CSUI", identifies an index file
+	private static final int Version = 1;				// format version of both files
+	private static final int HeaderSize = 64;			// bytes reserved at the start of each file
+	private static final int RecordSize = 128;			// bytes per user record
+	private static final int ChunkRecords = 1 << 16;	// records per mapped chunk of the records file
+	private static final int MinIndexCapacity = 1 << 10;	// smallest index, in entries
+	private static final int MaxIndexCapacity = 1 << 28;	// largest index, in entries, so it fits in one buffer
+	private static final int MaxSaltLength = 32;		// largest salt a record can hold
+	private static final int MaxHashLength = 32;		// largest hash a record can hold
+	
+	// header fields
+	private static final int MagicOffset = 0;
+	private static final int VersionOffset = 4;
+	private static final int RecordSizeOffset = 8;
+	private static final int CountOffset = 12;
+	private static final int CapacityOffset = 16;
+	
+	// record fields, the state comes first so it is 8 byte aligned for atomic access
+	private static final int StateOffset = 0;
+	private static final int LevelOffset = 8;
+	private static final int NameLengthOffset = 9;
+	private static final int SaltLengthOffset = 10;
+	private static final int HashLengthOffset = 11;
+	private static final int SaltOffset = 12;
+	private static final int HashOffset = SaltOffset + MaxSaltLength;
+	private static final int NameOffset = HashOffset + MaxHashLength;
+	
+	private static final VarHandle Longs = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle Ints = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final User.Level[] Levels = User.Level.values();
+	private static final char[] HexDigits = "0123456789ABCDEF".toCharArray();
+	
+	private final Path mPath;					// the records file, or null if held in memory
+	private final Path mIndexPath;				// the index file, or null if held in memory
+	private final FileChannel mData;			// channel of the records file, held open (and locked) while the store is open, or null if held in memory
+	private final ByteBuffer mHeader;			// the records file's header
+	private volatile ByteBuffer[] mChunks;		// chunks of records, replaced by a longer array as the store grows
+	private volatile Index mIndex;				// the current hash index
+	private volatile int mCount;				// number of records published to readers
+	private boolean mIndexStale;				// set while the index file holds appends that have not been forced
+	
+	/**
+	 * A mapped index file, entries hold a record's slot plus one, or zero if empty
+	 */
+	private static class Index {
+		final ByteBuffer mBuffer;			// the mapped file, or a direct buffer if held in memory
+		final int mMask;					// capacity - 1, the capacity is a power of two
+		
+		Index(ByteBuffer _buffer, int _capacity)
+		{
+			mBuffer = _buffer;
+			mMask = _capacity - 1;
+		}
+	}
+	
+	/**
+	 * Opens the store in the given file, creating it if it does not exist. The index is kept in a file of the
+	 * same name with ".idx" appended.
+	 * @param _path The records file
+	 * @return The open store
+	 * @throws IOException If the file cannot be opened, is not a user store, or is in use by another server
+	 */
+	public static UserStore open(Path _path) throws IOException
+	{
+		return new UserStore(_path);
+	}
+	
+	/**
+	 * Creates an empty store held in memory only, in direct buffers outside the Java heap. The records count
+	 * against the JVM's direct memory limit (-XX:MaxDirectMemorySize) rather than its heap.
+	 * @return The new store
+	 */
+	public static UserStore inMemory()
+	{
+		try {
+			return new UserStore();
+		} catch (IOException e) {
+			// nothing is read or written when held in memory
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Constructor for a UserStore held in memory, see inMemory
+	 * @throws IOException
+	 */
+	private UserStore() throws IOException
+	{
+		mPath = null;
+		mIndexPath = null;
+		mData = null;
+		mHeader = ByteBuffer.allocateDirect(HeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+		mHeader.putInt(MagicOffset, DataMagic);
+		mHeader.putInt(VersionOffset, Version);
+		mHeader.putInt(RecordSizeOffset, RecordSize);
+		mCount = 0;
+		mChunks = new ByteBuffer[0];
+		mIndex = rebuildIndex(0);
+	}
+	
+	/**
+	 * Constructor for UserStore, maps the existing records and index, see open
+	 * @param _path The records file
+	 * @throws IOException
+	 */
+	private UserStore(Path _path) throws IOException
+	{
+		mPath = _path;
+		mIndexPath = _path.resolveSibling(_path.getFileName() + ".idx");
+		mData = FileChannel.open(_path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		
+		if(mData.tryLock() == null)
+		{
+			mData.close();
+			throw new IOException(_path + " is in use by another server");
+		}
+		
+		boolean created = mData.size() == 0;
+		mHeader = mData.map(FileChannel.MapMode.READ_WRITE, 0, HeaderSize);
+		mHeader.order(ByteOrder.LITTLE_ENDIAN);
+		
+		if(created)
+		{
+			mHeader.putInt(MagicOffset, DataMagic);
+			mHeader.putInt(VersionOffset, Version);
+			mHeader.putInt(RecordSizeOffset, RecordSize);
+			mHeader.putInt(CountOffset, 0);
+			force(mHeader, 0, HeaderSize);
+		}
+		else if(mHeader.getInt(MagicOffset) != DataMagic || mHeader.getInt(VersionOffset) != Version
+				|| mHeader.getInt(RecordSizeOffset) != RecordSize)
+		{
+			mData.close();
+			throw new IOException(_path + " is not a version " + Version + " user store");
+		}
+		
+		mCount = mHeader.getInt(CountOffset);
+		
+		mChunks = new ByteBuffer[0];
+		for(int chunk = 0; chunk * ChunkRecords < mCount; chunk++)
+			mapChunk(chunk);
+		
+		mIndex = openIndex();
+	}
+	
+	/**
+	 * Getter for the number of users in the store
+	 * @return The number of records
+	 */
+	public int size()
+	{
+		return mCount;
+	}
+	
+	/**
+	 * Getter for the records file
+	 * @return The path the store was opened with, or null if the store is held in memory
+	 */
+	public Path path()
+	{
+		return mPath;
+	}
+	
+	/**
+	 * Looks a user up through the hash index
+	 * @param _username The username to find
+	 * @return The user's slot, or -1 if there is no such user
+	 */
+	public int find(String _username)
+	{
+		byte[] name = _username.getBytes(StandardCharsets.UTF_8);
+		Index index = mIndex;
+		
+		for(int i = hash(name) & index.mMask; ; i = (i + 1) & index.mMask)
+		{
+			int entry = (int) Ints.getAcquire(index.mBuffer, HeaderSize + 4 * i);
+			
+			if(entry == 0)
+				return -1;
+			if(nameEquals(entry - 1, name))
+				return entry - 1;
+		}
+	}
+	
+	/**
+	 * Appends a user to the store, the record is forced to disk (if there is one) before the user can be found
+	 * @param _username The user's username
+	 * @param _salt The salt used to derive the user's hash
+	 * @param _hash The hash derived from the user's secret
+	 * @param _level The user's level
+	 * @return The new user's slot, or -1 if the username is already in use
+	 * @throws IOException If the store is full or cannot be grown or written
+	 * @throws IllegalArgumentException If the username, salt or hash is too long for a record
+	 */
+	public synchronized int append(String _username, byte[] _salt, byte[] _hash, User.Level _level) throws IOException
+	{
+		byte[] name = _username.getBytes(StandardCharsets.UTF_8);
+		
+		if(name.length == 0 || name.length > MaxUsernameLength)
+			throw new IllegalArgumentException("usernames must be 1 to " + MaxUsernameLength + " bytes");
+		if(_salt.length > MaxSaltLength || _hash.length > MaxHashLength)
+			throw new IllegalArgumentException("salt or hash is too long for a record");
+		
+		if(find(_username) >= 0)
+			return -1;
+		
+		int slot = mCount;
+		if(2L * (slot + 1) > MaxIndexCapacity)
+			throw new IOException("user store is full at " + slot + " users");
+		if(slot / ChunkRecords == mChunks.length)
+			mapChunk(slot / ChunkRecords);
+		
+		// write and force the record first, a crash before the count is updated leaves it unused
+		ByteBuffer chunk = chunk(slot);
+		int base = offset(slot);
+		chunk.putLong(base + StateOffset, 0);
+		chunk.put(base + LevelOffset, (byte) _level.ordinal());
+		chunk.put(base + NameLengthOffset, (byte) name.length);
+		chunk.put(base + SaltLengthOffset, (byte) _salt.length);
+		chunk.put(base + HashLengthOffset, (byte) _hash.length);
+		chunk.put(base + SaltOffset, _salt);
+		chunk.put(base + HashOffset, _hash);
+		chunk.put(base + NameOffset, name);
+		force(mChunks[slot / ChunkRecords], base, RecordSize);
+		
+		mHeader.putInt(CountOffset, slot + 1);
+		force(mHeader, 0, HeaderSize);
+		
+		// then publish it to readers through the index
+		if(2 * (slot + 1) > mIndex.mMask + 1)
+		{
+			mCount = slot + 1;
+			mIndex = rebuildIndex(mCount);
+			mIndexStale = false;
+		}
+		else
+		{
+			if(!mIndexStale)
+			{
+				// a crash from here until close leaves an index that is rebuilt when the store is next opened
+				mIndex.mBuffer.putInt(CountOffset, -1);
+				force(mIndex.mBuffer, 0, HeaderSize);
+				mIndexStale = true;
+			}
+			
+			insert(mIndex, slot, hash(name));
+			mCount = slot + 1;
+		}
+		
+		return slot;
+	}
+	
+	/**
+	 * Getter for the username held in a record
+	 * @param _slot The record's slot
+	 * @return The username
+	 */
+	public String username(int _slot)
+	{
+		ByteBuffer chunk = chunk(_slot);
+		int base = offset(_slot);
+		byte[] name = new byte[chunk.get(base + NameLengthOffset)];
+		chunk.get(base + NameOffset, name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Appends a record's listing entry, the username and the hash in hex, to a builder without creating any
+	 * intermediate objects
+	 * @param _slot The record's slot
+	 * @param _out The builder to append "username|HASH" to
+	 */
+	public void appendListing(int _slot, StringBuilder _out)
+	{
+		ByteBuffer chunk = chunk(_slot);
+		int base = offset(_slot);
+		int nameLength = chunk.get(base + NameLengthOffset);
+		
+		// ASCII names are appended byte by byte, anything else is decoded properly
+		boolean ascii = true;
+		for(int i = 0; i < nameLength && ascii; i++)
+			ascii = chunk.get(base + NameOffset + i) >= 0;
+		
+		if(ascii)
+		{
+			for(int i = 0; i < nameLength; i++)
+				_out.append((char) chunk.get(base + NameOffset + i));
+		}
+		else
+		{
+			_out.append(username(_slot));
+		}
+		
+		_out.append('|');
+		
+		int hashLength = chunk.get(base + HashLengthOffset);
+		for(int i = 0; i < hashLength; i++)
+		{
+			int b = chunk.get(base + HashOffset + i) & 0xFF;
+			_out.append(HexDigits[b >>> 4]).append(HexDigits[b & 0x0F]);
+		}
+	}
+	
+	/**
+	 * Getter for the level held in a record
+	 * @param _slot The record's slot
+	 * @return The user's level
+	 */
+	public User.Level level(int _slot)
+	{
+		return Levels[chunk(_slot).get(offset(_slot) + LevelOffset)];
+	}
+	
+	/**
+	 * Getter for the secret held in a record, copied out of the store
+	 * @param _slot The record's slot
+	 * @return The user's salt and hash
+	 */
+	public UserSecret secret(int _slot)
+	{
+		ByteBuffer chunk = chunk(_slot);
+		int base = offset(_slot);
+		byte[] salt = new byte[chunk.get(base + SaltLengthOffset)];
+		byte[] hash = new byte[chunk.get(base + HashLengthOffset)];
+		chunk.get(base + SaltOffset, salt);
+		chunk.get(base + HashOffset, hash);
+		return new UserSecret(hash, salt);
+	}
+	
+	/**
+	 * Getter for the packed lockout state held in a record, see User
+	 * @param _slot The record's slot
+	 * @return The packed state
+	 */
+	public long state(int _slot)
+	{
+		return (long) Longs.getVolatile(chunk(_slot), offset(_slot) + StateOffset);
+	}
+	
+	/**
+	 * Atomically replaces the packed lockout state held in a record if it still holds the expected value. The
+	 * change is written to the mapping and reaches the disk with the page, it is not forced.
+	 * @param _slot The record's slot
+	 * @param _expected The state the caller last saw
+	 * @param _state The new state
+	 * @return True if the state was replaced, false if another thread changed it first
+	 */
+	public boolean compareAndSetState(int _slot, long _expected, long _state)
+	{
+		return Longs.compareAndSet(chunk(_slot), offset(_slot) + StateOffset, _expected, _state);
+	}
+	
+	/**
+	 * Forces any outstanding changes to disk and closes the store
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		if(mData == null)
+			return;
+		
+		for(ByteBuffer chunk : mChunks)
+			force(chunk, 0, chunk.capacity());
+		
+		if(mIndexStale)
+		{
+			force(mIndex.mBuffer, 0, mIndex.mBuffer.capacity());
+			mIndex.mBuffer.putInt(CountOffset, mCount);
+			force(mIndex.mBuffer, 0, HeaderSize);
+			mIndexStale = false;
+		}
+		
+		mData.close();
+	}
+	
+	/**
+	 * Helper method to find the chunk holding a record
+	 * @param _slot The record's slot
+	 * @return The chunk
+	 */
+	private ByteBuffer chunk(int _slot)
+	{
+		return mChunks[_slot / ChunkRecords];
+	}
+	
+	/**
+	 * Helper method to find a record within its chunk
+	 * @param _slot The record's slot
+	 * @return The record's offset in its chunk
+	 */
+	private static int offset(int _slot)
+	{
+		return (_slot % ChunkRecords) * RecordSize;
+	}
+	
+	/**
+	 * Helper method to force part of a buffer to disk, buffers held in memory are left alone
+	 * @param _buffer The buffer
+	 * @param _index The position of the first byte to force
+	 * @param _length The number of bytes to force
+	 */
+	private static void force(ByteBuffer _buffer, int _index, int _length)
+	{
+		if(_buffer instanceof MappedByteBuffer)
+			((MappedByteBuffer) _buffer).force(_index, _length);
+	}
+	
+	/**
+	 * Helper method to extend the records file by a chunk and map it (or allocate it if held in memory),
+	 * earlier chunks are untouched
+	 * @param _chunk The index of the chunk
+	 * @throws IOException
+	 */
+	private void mapChunk(int _chunk) throws IOException
+	{
+		ByteBuffer buffer;
+		
+		if(mData == null)
+		{
+			buffer = ByteBuffer.allocateDirect(ChunkRecords * RecordSize);
+		}
+		else
+		{
+			long position = HeaderSize + (long) _chunk * ChunkRecords * RecordSize;
+			buffer = mData.map(FileChannel.MapMode.READ_WRITE, position, (long) ChunkRecords * RecordSize);
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		ByteBuffer[] chunks = Arrays.copyOf(mChunks, _chunk + 1);
+		chunks[_chunk] = buffer;
+		mChunks = chunks;
+	}
+	
+	/**
+	 * Helper method to map the index file, rebuilding it from the records if it is missing, damaged or does
+	 * not cover every record (for example after a crash part way through an append)
+	 * @return The index
+	 * @throws IOException
+	 */
+	private Index openIndex() throws IOException
+	{
+		if(Files.exists(mIndexPath))
+		{
+			try(FileChannel channel = FileChannel.open(mIndexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				if(channel.size() >= HeaderSize)
+				{
+					MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HeaderSize);
+					header.order(ByteOrder.LITTLE_ENDIAN);
+					int capacity = header.getInt(CapacityOffset);
+					
+					if(header.getInt(MagicOffset) == IndexMagic && header.getInt(VersionOffset) == Version
+							&& header.getInt(CountOffset) == mCount && Integer.bitCount(capacity) == 1
+							&& channel.size() == HeaderSize + 4L * capacity)
+					{
+						MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+						buffer.order(ByteOrder.LITTLE_ENDIAN);
+						return new Index(buffer, capacity);
+					}
+				}
+			}
+		}
+		
+		return rebuildIndex(mCount);
+	}
+	
+	/**
+	 * Helper method to write a new index covering the first records of the store, sized so it is at most
+	 * half full. It is written to a temporary file and moved over the old index so a crash never leaves a
+	 * half written index behind, or simply allocated if the store is held in memory.
+	 * @param _count The number of records to index
+	 * @return The new index
+	 * @throws IOException
+	 */
+	private Index rebuildIndex(int _count) throws IOException
+	{
+		int capacity = MinIndexCapacity;
+		while(capacity < 4L * _count && capacity < MaxIndexCapacity)
+			capacity <<= 1;
+		
+		if(mData == null)
+		{
+			Index index = new Index(ByteBuffer.allocateDirect(HeaderSize + 4 * capacity).order(ByteOrder.LITTLE_ENDIAN), capacity);
+			fillIndex(index, _count);
+			return index;
+		}
+		
+		Path temporary = mIndexPath.resolveSibling(mIndexPath.getFileName() + ".tmp");
+		Index index;
+		
+		try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HeaderSize + 4L * capacity);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			index = new Index(buffer, capacity);
+			fillIndex(index, _count);
+			buffer.force();
+		}
+		
+		Files.move(temporary, mIndexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return index;
+	}
+	
+	/**
+	 * Helper method to add the first records of the store to an empty index and fill in its header
+	 * @param _index The index to fill
+	 * @param _count The number of records to add
+	 */
+	private void fillIndex(Index _index, int _count)
+	{
+		for(int slot = 0; slot < _count; slot++)
+		{
+			ByteBuffer chunk = chunk(slot);
+			int base = offset(slot);
+			insert(_index, slot, hash(chunk, base + NameOffset, chunk.get(base + NameLengthOffset)));
+		}
+		
+		_index.mBuffer.putInt(MagicOffset, IndexMagic);
+		_index.mBuffer.putInt(VersionOffset, Version);
+		_index.mBuffer.putInt(CountOffset, _count);
+		_index.mBuffer.putInt(CapacityOffset, _index.mMask + 1);
+	}
+	
+	/**
+	 * Helper method to add a record to an index, the entry is published with release semantics so a reader
+	 * that sees it also sees the record
+	 * @param _index The index to add to
+	 * @param _slot The record's slot
+	 * @param _hash The hash of the record's username
+	 */
+	private static void insert(Index _index, int _slot, int _hash)
+	{
+		int i = _hash & _index.mMask;
+		
+		while(_index.mBuffer.getInt(HeaderSize + 4 * i) != 0)
+			i = (i + 1) & _index.mMask;
+		
+		Ints.setRelease(_index.mBuffer, HeaderSize + 4 * i, _slot + 1);
+	}
+	
+	/**
+	 * Helper method to compare the username held in a record with a username
+	 * @param _slot The record's slot
+	 * @param _name The username as UTF-8
+	 * @return True if they are the same
+	 */
+	private boolean nameEquals(int _slot, byte[] _name)
+	{
+		ByteBuffer chunk = chunk(_slot);
+		int base = offset(_slot);
+		
+		if(chunk.get(base + NameLengthOffset) != _name.length)
+			return false;
+		
+		for(int i = 0; i < _name.length; i++)
+		{
+			if(chunk.get(base + NameOffset + i) != _name[i])
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Helper method to hash a username for the index, FNV-1a so the hash is the same on every JVM
+	 * @param _name The username as UTF-8
+	 * @return The hash
+	 */
+	private static int hash(byte[] _name)
+	{
+		return hash(ByteBuffer.wrap(_name), 0, _name.length);
+	}
+	
+	/**
+	 * Helper method to hash a username held in a buffer, see hash(byte[])
+	 * @param _buffer The buffer holding the username
+	 * @param _offset The position of the username's first byte
+	 * @param _length The username's length in bytes
+	 * @return The hash
+	 */
+	private static int hash(ByteBuffer _buffer, int _offset, int _length)
+	{
+		int hash = 0x811C9DC5;
+		for(int i = 0; i < _length; i++)
+		{
+			hash ^= (_buffer.get(_offset + i) & 0xFF);
+			hash *= 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,140 @@
+package cs4520.util;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * @author Oliver Maskery
+ *
+ * Histogram of durations in the style of an HdrHistogram: values are counted in buckets whose width grows
+ * with the value, so any duration from a nanosecond to days is recorded to within about 3% using a fixed,
+ * small table. Recording is a few atomic updates and never allocates or locks, so it is cheap enough
+ * to call on every request. Percentiles are read from the live counts, so they are approximate while other
+ * threads are recording, which is fine for monitoring.
+ */
+public class LatencyHistogram {
+	private static final int SubBits = 5;					// log2 of the buckets per power of two
+	private static final int SubCount = 1 << SubBits;		// buckets per power of two, sets the precision
+	private static final int Buckets = (64 - SubBits) * SubCount;	// enough buckets for any positive long
+	
+	private final AtomicLongArray mCounts = new AtomicLongArray(Buckets);	// values recorded in each bucket
+	private final AtomicLong mCount = new AtomicLong();	// values recorded altogether
+	private final AtomicLong mTotal = new AtomicLong();	// sum of the values recorded, for the mean
+	private final AtomicLong mMax = new AtomicLong();	// largest value recorded
+	
+	/**
+	 * Records one duration
+	 * @param _nanos The duration in ns, negative durations are recorded as 0
+	 */
+	public void record(long _nanos)
+	{
+		long value = Math.max(0, _nanos);
+		
+		mCounts.incrementAndGet(bucket(value));
+		mCount.incrementAndGet();
+		mTotal.addAndGet(value);
+		
+		long max = mMax.get();
+		while(value > max && !mMax.compareAndSet(max, value))
+			max = mMax.get();
+	}
+	
+	/**
+	 * Records one duration measured by a caller that meant to start a new measurement every expected interval.
+	 * A duration longer than the interval held back the measurements that should have started meanwhile, so
+	 * the durations they would have seen are recorded as well, correcting for coordinated omission.
+	 * @param _nanos The duration in ns
+	 * @param _expectedInterval The time (in ns) the caller meant to leave between measurements, 0 to record only the duration
+	 */
+	public void record(long _nanos, long _expectedInterval)
+	{
+		record(_nanos);
+		if(_expectedInterval <= 0)
+			return;
+		
+		for(long missed = _nanos - _expectedInterval; missed >= _expectedInterval; missed -= _expectedInterval)
+			record(missed);
+	}
+	
+	/**
+	 * Getter for the number of durations recorded
+	 * @return The count
+	 */
+	public long count()
+	{
+		return mCount.get();
+	}
+	
+	/**
+	 * Getter for the longest duration recorded
+	 * @return The maximum in ns, or 0 if nothing has been recorded
+	 */
+	public long max()
+	{
+		return mMax.get();
+	}
+	
+	/**
+	 * Getter for the mean duration recorded
+	 * @return The mean in ns, or 0 if nothing has been recorded
+	 */
+	public long mean()
+	{
+		long count = mCount.get();
+		return count == 0 ? 0 : mTotal.get() / count;
+	}
+	
+	/**
+	 * Finds the duration that a given fraction of the recorded durations did not exceed
+	 * @param _fraction The fraction, for example 0.99 for the 99th percentile
+	 * @return The highest duration (in ns) in the bucket holding the percentile, or 0 if nothing has been recorded
+	 */
+	public long percentile(double _fraction)
+	{
+		long count = mCount.get();
+		if(count == 0)
+			return 0;
+		
+		// the rank of the value wanted, at least the first so that the 0th percentile is the minimum
+		long rank = Math.max(1, (long) Math.ceil(_fraction * count));
+		long seen = 0;
+		
+		for(int i = 0; i < Buckets; i++)
+		{
+			seen += mCounts.get(i);
+			if(seen >= rank)
+				return Math.min(highest(i), mMax.get());
+		}
+		
+		return mMax.get();
+	}
+	
+	/**
+	 * Helper method to find the bucket a value is counted in: values below 2 * SubCount have a bucket each,
+	 * above that each power of two is split into SubCount buckets
+	 * @param _value The value, not negative
+	 * @return The bucket's index
+	 */
+	private static int bucket(long _value)
+	{
+		if(_value < SubCount)
+			return (int) _value;
+		
+		int shift = (63 - Long.numberOfLeadingZeros(_value)) - SubBits;
+		return (shift + 1) * SubCount + (int) ((_value >>> shift) & (SubCount - 1));
+	}
+	
+	/**
+	 * Helper method to find the highest value counted in a bucket
+	 * @param _bucket The bucket's index
+	 * @return The highest value that bucket() maps to it
+	 */
+	private static long highest(int _bucket)
+	{
+		if(_bucket < SubCount)
+			return _bucket;
+		
+		int shift = _bucket / SubCount - 1;
+		long lowest = (long) (SubCount + _bucket % SubCount) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}